@@ -0,0 +1,7 @@
+package java.lang;
+
+public class ArrayIndexOutOfBoundsException extends RuntimeException {
+  public ArrayIndexOutOfBoundsException(String msg) {
+    super(msg);
+  }
+}
@@ -0,0 +1,213 @@
+package com.codemacro.jvm;
+
+import org.freeinternals.format.FileFormatException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A jar/zip file mapped once, entries are located by an index of the central directory.
+ * Stored entries are slices of the mapping, deflated entries are inflated into pooled buffers.
+ * ZIP64 archives are not supported.
+ */
+public class ArchiveFile {
+  private static final int EOCD_SIG = 0x06054b50;
+  private static final int EOCD_SIZE = 22;
+  private static final int CEN_SIG = 0x02014b50;
+  private static final int CEN_SIZE = 46;
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int LOC_SIZE = 30;
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+
+  public interface EntryReader<T> {
+    // `data' is only valid inside this call
+    T read(ByteBuffer data) throws IOException, FileFormatException;
+  }
+
+  private static class Entry {
+    final int method;
+    final int localOffset;
+    final int compressedSize;
+    final int size;
+    Entry(int method, int localOffset, int compressedSize, int size) {
+      this.method = method;
+      this.localOffset = localOffset;
+      this.compressedSize = compressedSize;
+      this.size = size;
+    }
+  }
+
+  private final String mPath;
+  private final MappedByteBuffer mBuffer;
+  private final Map<String, Entry> mEntries;
+  private Map<String, List<String>> mPackages = null; // package -> its class names
+  private final ConcurrentLinkedQueue<Inflater> mInflaters = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<byte[]> mBuffers = new ConcurrentLinkedQueue<>();
+
+  public ArchiveFile(String path) throws IOException {
+    mPath = path;
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("archive too large:" + path);
+      }
+      mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    mEntries = readCentralDirectory();
+  }
+
+  public String getPath() { return mPath; }
+
+  public boolean contains(String name) {
+    return mEntries.containsKey(name);
+  }
+
+  public Set<String> names() {
+    return Collections.unmodifiableSet(mEntries.keySet());
+  }
+
+  // the simple names of the classes in `pkg', in internal form, e.g. java/lang
+  public synchronized List<String> classNames(String pkg) {
+    if (mPackages == null) {
+      mPackages = new HashMap<>();
+      for (String name : mEntries.keySet()) {
+        int sep = name.lastIndexOf('/');
+        if (name.endsWith(".class")) {
+          mPackages.computeIfAbsent(sep < 0 ? "" : name.substring(0, sep), k -> new ArrayList<>())
+              .add(name.substring(sep + 1, name.length() - ".class".length()));
+        }
+      }
+    }
+    return mPackages.getOrDefault(pkg, Collections.emptyList());
+  }
+
+  /**
+   * Read an entry by `reader', returns null if there's no such entry.
+   */
+  public <T> T read(String name, EntryReader<T> reader) throws IOException, FileFormatException {
+    Entry entry = mEntries.get(name);
+    if (entry == null) {
+      return null;
+    }
+    ByteBuffer compressed = slice(dataOffset(entry), entry.compressedSize);
+    if (entry.method == STORED) {
+      return reader.read(compressed);
+    }
+    if (entry.method != DEFLATED) {
+      throw new IOException("unsupported compression method " + entry.method + " of " + name);
+    }
+    Inflater inflater = mInflaters.poll();
+    if (inflater == null) {
+      inflater = new Inflater(true); // no zlib header in zip entries
+    }
+    byte[] input = borrowBuffer(entry.compressedSize);
+    byte[] buf = borrowBuffer(entry.size);
+    try {
+      compressed.get(input, 0, entry.compressedSize);
+      inflater.setInput(input, 0, entry.compressedSize);
+      int n = 0;
+      while (n < entry.size && !inflater.finished()) {
+        int len = inflater.inflate(buf, n, entry.size - n);
+        if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        n += len;
+      }
+      if (n != entry.size) {
+        throw new IOException("corrupted entry " + name + " in " + mPath);
+      }
+      return reader.read(ByteBuffer.wrap(buf, 0, n));
+    } catch (DataFormatException e) {
+      throw new IOException("inflate " + name + " failed", e);
+    } finally {
+      inflater.reset();
+      mInflaters.offer(inflater);
+      mBuffers.offer(input);
+      mBuffers.offer(buf);
+    }
+  }
+
+  private byte[] borrowBuffer(int size) {
+    byte[] buf = mBuffers.poll();
+    if (buf == null || buf.length < size) {
+      buf = new byte[Math.max(size, 8192)];
+    }
+    return buf;
+  }
+
+  private Map<String, Entry> readCentralDirectory() throws IOException {
+    int eocd = findEndOfCentralDirectory();
+    int count = mBuffer.getShort(eocd + 10) & 0xffff;
+    int pos = mBuffer.getInt(eocd + 16);
+    Map<String, Entry> entries = new HashMap<>(count * 2);
+    byte[] name = new byte[256];
+    for (int i = 0; i < count; ++i) {
+      if (mBuffer.getInt(pos) != CEN_SIG) {
+        throw new IOException("invalid central directory in " + mPath);
+      }
+      int method = mBuffer.getShort(pos + 10) & 0xffff;
+      int compressedSize = mBuffer.getInt(pos + 20);
+      int size = mBuffer.getInt(pos + 24);
+      int nameLen = mBuffer.getShort(pos + 28) & 0xffff;
+      int extraLen = mBuffer.getShort(pos + 30) & 0xffff;
+      int commentLen = mBuffer.getShort(pos + 32) & 0xffff;
+      int localOffset = mBuffer.getInt(pos + 42);
+      if (compressedSize == -1 || size == -1 || localOffset == -1) {
+        throw new IOException("ZIP64 archive not supported:" + mPath);
+      }
+      if (name.length < nameLen) {
+        name = new byte[nameLen];
+      }
+      slice(pos + CEN_SIZE, nameLen).get(name, 0, nameLen);
+      entries.put(new String(name, 0, nameLen, StandardCharsets.UTF_8),
+          new Entry(method, localOffset, compressedSize, size));
+      pos += CEN_SIZE + nameLen + extraLen + commentLen;
+    }
+    return entries;
+  }
+
+  // the record is at the end, followed by a comment of at most 64K
+  private int findEndOfCentralDirectory() throws IOException {
+    int min = Math.max(0, mBuffer.limit() - EOCD_SIZE - 0xffff);
+    for (int pos = mBuffer.limit() - EOCD_SIZE; pos >= min; --pos) {
+      if (mBuffer.getInt(pos) == EOCD_SIG) {
+        return pos;
+      }
+    }
+    throw new IOException("not a zip file:" + mPath);
+  }
+
+  // the local header may have a different extra field length from the central directory
+  private int dataOffset(Entry entry) throws IOException {
+    int pos = entry.localOffset;
+    if (mBuffer.getInt(pos) != LOC_SIG) {
+      throw new IOException("invalid local header in " + mPath);
+    }
+    int nameLen = mBuffer.getShort(pos + 26) & 0xffff;
+    int extraLen = mBuffer.getShort(pos + 28) & 0xffff;
+    return pos + LOC_SIZE + nameLen + extraLen;
+  }
+
+  private ByteBuffer slice(int pos, int len) {
+    ByteBuffer buf = mBuffer.duplicate();
+    buf.position(pos);
+    buf.limit(pos + len);
+    return buf.slice();
+  }
+}
@@ -0,0 +1,462 @@
+package com.codemacro.jvm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The off-heap guest heap of `-Xheap:arena'. Guest objects are kept in one direct ByteBuffer of
+ * `-Xmx' bytes instead of host objects, and are addressed by int handles: the offset of the
+ * object in the buffer, 0 is null. The layout, in 4 byte words:
+ * <pre>
+ *   object: u4 class id, u4 GC word, slots [Class.getSlotCount()]
+ *   string: u4 0,        u4 GC word, u4 length, u2 chars [length]
+ *   array:  u4 ARRAY_ID + ArrayType, u4 GC word, u4 length, elements [length]
+ *   filler: u4 -size,    u4 GC word, the unused tail of a TLAB
+ * </pre>
+ * Objects are bump-pointer allocated in the Tlab of the thread from the bottom, string constants
+ * from the top and are never collected. The TLABs and the constants are carved by a CAS on the
+ * bounds of the free space. When it runs out the objects are compacted by a sliding
+ * mark-compact, the GC word holds the mark and then the forwarding handle.
+ * The host GC sees none of the guest objects, only the buffer.
+ * The roots are the handles on the stacks of the attached threads, a GC assumes the other
+ * threads are stopped.
+ */
+public class Arena {
+  private static final Logger logger = Logger.getLogger(Arena.class.getName());
+  private static final int OBJECT_ALIGN = 8;
+  private static final int HEADER_SIZE = 8;
+  private static final int GC_WORD = 4;
+  private static final int STRING_ID = 0;
+  private static final int ARRAY_ID = 1 << 30; // above any class id
+  private static final int MARKED = 1; // forwarding handles are aligned, never 1
+
+  private final ByteBuffer mBuffer;
+  // the free space, the constant bottom << 32 | the top, handle 0 is null
+  private final AtomicLong mBounds;
+  private int mTlabSize = Tlab.DEFAULT_SIZE;
+  // class id -> class, the string id is 0
+  private final List<Class> mClasses = new CopyOnWriteArrayList<>();
+  private final Map<String, Integer> mConstants = new ConcurrentHashMap<>();
+  private final List<Thread> mThreads = new ArrayList<>();
+  // GC state: the top when collecting, the mark stack
+  private int mTop;
+  private int[] mPending = new int[64];
+  private int mPendingCount = 0;
+
+  private long mDetachedAllocated = 0; // by the detached threads
+  private int mGCCount = 0;
+  private long mGCNanos = 0;
+
+  public Arena(long size) {
+    if (size > Integer.MAX_VALUE - OBJECT_ALIGN || size < 1024) {
+      throw new IllegalArgumentException("invalid arena size:" + size);
+    }
+    mBuffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+    mBounds = new AtomicLong(bounds((int) size & ~(OBJECT_ALIGN - 1), OBJECT_ALIGN));
+    mClasses.add(null);
+  }
+
+  // a TLAB takes 1/8 of the arena at most, 0 carves a chunk for each object
+  public void setTlabSize(int size) {
+    mTlabSize = Math.min(size, mBuffer.capacity() / 8) & ~(OBJECT_ALIGN - 1);
+  }
+
+  synchronized void attach(Thread thread) {
+    mThreads.add(thread);
+  }
+
+  synchronized void detach(Thread thread) {
+    retire(thread.getTlab());
+    mDetachedAllocated += thread.getTlab().getAllocatedBytes();
+    mThreads.remove(thread);
+  }
+
+  // returns 0 if the arena is exhausted
+  public int newObject(Tlab tlab, Class clazz) {
+    int id = clazz.getArenaId();
+    if (id == 0) {
+      id = register(clazz);
+    }
+    int h = allocate(tlab, HEADER_SIZE + 4 * clazz.getSlotCount());
+    if (h != 0) {
+      mBuffer.putInt(h, id);
+    }
+    return h;
+  }
+
+  private synchronized int register(Class clazz) {
+    if (clazz.getArenaId() == 0) {
+      mClasses.add(clazz);
+      clazz.setArenaId(mClasses.size() - 1);
+    }
+    return clazz.getArenaId();
+  }
+
+  public int newString(Tlab tlab, String s) {
+    int h = newString(tlab, s.length());
+    if (h != 0) {
+      for (int i = 0; i < s.length(); ++i) {
+        mBuffer.putChar(charAt(h, i), s.charAt(i));
+      }
+    }
+    return h;
+  }
+
+  // an array of ArrayType `type', the references are handles, returns 0 if the arena is exhausted
+  public int newArray(Tlab tlab, int type, int length) {
+    long size = HEADER_SIZE + 4 + ((long) length << ArrayType.shift(type));
+    if (size > mBuffer.capacity()) {
+      return 0;
+    }
+    int h = allocate(tlab, (int) size);
+    if (h != 0) {
+      mBuffer.putInt(h, ARRAY_ID + type);
+      mBuffer.putInt(h + HEADER_SIZE, length);
+    }
+    return h;
+  }
+
+  public int arrayLength(int h) {
+    return mBuffer.getInt(checkNull(h) + HEADER_SIZE);
+  }
+
+  // elements of int, float and reference arrays, the index is checked by the caller
+  public int loadInt(int h, int i) { return mBuffer.getInt(elementAt(h, i, 2)); }
+  public void storeInt(int h, int i, int v) { mBuffer.putInt(elementAt(h, i, 2), v); }
+  // elements of long and double arrays
+  public long loadLong(int h, int i) { return mBuffer.getLong(elementAt(h, i, 3)); }
+  public void storeLong(int h, int i, long v) { mBuffer.putLong(elementAt(h, i, 3), v); }
+  // elements of byte and boolean arrays
+  public byte loadByte(int h, int i) { return mBuffer.get(elementAt(h, i, 0)); }
+  public void storeByte(int h, int i, byte v) { mBuffer.put(elementAt(h, i, 0), v); }
+  public char loadChar(int h, int i) { return mBuffer.getChar(elementAt(h, i, 1)); }
+  public void storeChar(int h, int i, char v) { mBuffer.putChar(elementAt(h, i, 1), v); }
+  public short loadShort(int h, int i) { return mBuffer.getShort(elementAt(h, i, 1)); }
+  public void storeShort(int h, int i, short v) { mBuffer.putShort(elementAt(h, i, 1), v); }
+
+  // a string of `length' chars which are filled by copyChars, returns 0 if the arena is exhausted
+  public int newString(Tlab tlab, int length) {
+    int h = allocate(tlab, HEADER_SIZE + 4 + 2 * length);
+    if (h != 0) {
+      mBuffer.putInt(h, STRING_ID);
+      mBuffer.putInt(h + HEADER_SIZE, length);
+    }
+    return h;
+  }
+
+  // a string literal, the same value is allocated once
+  public int constant(String s) {
+    Integer cached = mConstants.get(s);
+    if (cached != null) {
+      return cached;
+    }
+    int size = align(HEADER_SIZE + 4 + 2 * s.length());
+    int h = carveConstant(size);
+    if (h == 0) {
+      collect();
+      h = carveConstant(size);
+      if (h == 0) {
+        return 0;
+      }
+    }
+    mBuffer.putInt(h, STRING_ID);
+    mBuffer.putInt(h + GC_WORD, 0);
+    mBuffer.putInt(h + HEADER_SIZE, s.length());
+    for (int i = 0; i < s.length(); ++i) {
+      mBuffer.putChar(charAt(h, i), s.charAt(i));
+    }
+    cached = mConstants.putIfAbsent(s, h); // the copy of a racing thread is left unused
+    return cached != null ? cached : h;
+  }
+
+  public int getInt(int h, Class.Field field) {
+    return mBuffer.getInt(slotAt(h, field.slot));
+  }
+
+  public void setInt(int h, Class.Field field, int v) {
+    mBuffer.putInt(slotAt(h, field.slot), v);
+  }
+
+  // a long or double field takes 2 slots
+  public long getLong(int h, Class.Field field) {
+    return mBuffer.getLong(slotAt(h, field.slot));
+  }
+
+  public void setLong(int h, Class.Field field, long v) {
+    mBuffer.putLong(slotAt(h, field.slot), v);
+  }
+
+  // references are stored as handles, there's no write barrier
+  public int getRef(int h, Class.Field field) {
+    return mBuffer.getInt(slotAt(h, field.slot));
+  }
+
+  public void setRef(int h, Class.Field field, int ref) {
+    mBuffer.putInt(slotAt(h, field.slot), ref);
+  }
+
+  // null for a string or an array
+  public Class classOf(int h) {
+    int id = mBuffer.getInt(checkNull(h));
+    return id >= ARRAY_ID ? null : mClasses.get(id);
+  }
+
+  public int stringLength(int h) {
+    return mBuffer.getInt(checkNull(h) + HEADER_SIZE);
+  }
+
+  // copy the chars of string `from' into string `to' at `pos'
+  public void copyChars(int from, int to, int pos) {
+    int len = stringLength(from);
+    for (int i = 0; i < len; ++i) {
+      mBuffer.putChar(charAt(to, pos + i), mBuffer.getChar(charAt(from, i)));
+    }
+  }
+
+  // a host copy of the string, e.g. to print it
+  public String getString(int h) {
+    char[] chars = new char[stringLength(h)];
+    for (int i = 0; i < chars.length; ++i) {
+      chars[i] = mBuffer.getChar(charAt(h, i));
+    }
+    return new String(chars);
+  }
+
+  public long getSize() { return mBuffer.capacity(); }
+
+  public long getUsed() {
+    long bounds = mBounds.get();
+    return top(bounds) + (mBuffer.capacity() - bottom(bounds));
+  }
+
+  public synchronized long getAllocated() {
+    long allocated = mDetachedAllocated;
+    for (Thread thread : mThreads) {
+      allocated += thread.getTlab().getAllocatedBytes();
+    }
+    return allocated;
+  }
+
+  public int getGCCount() { return mGCCount; }
+  public long getGCMillis() { return mGCNanos / 1000000; }
+
+  @Override
+  public String toString() {
+    return String.format("arena %dK/%dK (constants %dK), allocated %dK, %d GCs, %d ms",
+        getUsed() >> 10, getSize() >> 10, (mBuffer.capacity() - bottom(mBounds.get())) >> 10,
+        getAllocated() >> 10, mGCCount, getGCMillis());
+  }
+
+  private static int checkNull(int h) {
+    if (h == 0) {
+      throw new NullPointerException("null guest reference");
+    }
+    return h;
+  }
+
+  private static int slotAt(int h, int slot) {
+    return checkNull(h) + HEADER_SIZE + 4 * slot;
+  }
+
+  private static int elementAt(int h, int i, int shift) {
+    return h + HEADER_SIZE + 4 + (i << shift);
+  }
+
+  private static int charAt(int h, int i) {
+    return h + HEADER_SIZE + 4 + 2 * i;
+  }
+
+  private static long bounds(int bottom, int top) {
+    return ((long) bottom << 32) | top;
+  }
+
+  private static int top(long bounds) { return (int) bounds; }
+  private static int bottom(long bounds) { return (int) (bounds >>> 32); }
+
+  // returns the handle of `size' zeroed bytes, or 0 if the arena is exhausted even after a GC
+  private int allocate(Tlab tlab, int size) {
+    size = align(size);
+    tlab.count(size);
+    if (!tlab.tryBump(size)) {
+      if (!refill(tlab, size)) {
+        collect();
+        if (!refill(tlab, size)) {
+          return 0;
+        }
+      }
+      tlab.tryBump(size);
+    }
+    int h = (int) tlab.top - size;
+    for (int i = h; i < h + size; i += 8) {
+      mBuffer.putLong(i, 0);
+    }
+    return h;
+  }
+
+  // carve a new chunk for `tlab' without locking, the last chunk may be smaller than a TLAB
+  private boolean refill(Tlab tlab, int size) {
+    int chunk = Math.max(mTlabSize, size);
+    while (true) {
+      long bounds = mBounds.get();
+      int top = top(bounds);
+      int len = Math.min(chunk, bottom(bounds) - top);
+      if (len < size) {
+        return false;
+      }
+      if (mBounds.compareAndSet(bounds, bounds(bottom(bounds), top + len))) {
+        fill(tlab);
+        tlab.refill(top, len);
+        return true;
+      }
+    }
+  }
+
+  // returns 0 if there's no space
+  private int carveConstant(int size) {
+    while (true) {
+      long bounds = mBounds.get();
+      int bottom = bottom(bounds) - size;
+      if (bottom < top(bounds)) {
+        return 0;
+      }
+      if (mBounds.compareAndSet(bounds, bounds(bottom, top(bounds)))) {
+        return bottom;
+      }
+    }
+  }
+
+  // keep the unused tail of `tlab' walkable
+  private void fill(Tlab tlab) {
+    int size = (int) (tlab.end - tlab.top);
+    if (size > 0) {
+      mBuffer.putInt((int) tlab.top, -size);
+      mBuffer.putInt((int) tlab.top + GC_WORD, 0);
+    }
+  }
+
+  private void retire(Tlab tlab) {
+    fill(tlab);
+    tlab.retire();
+  }
+
+  private int sizeOf(int h) {
+    int id = mBuffer.getInt(h);
+    if (id < 0) { // filler
+      return -id;
+    }
+    if (id == STRING_ID) {
+      return align(HEADER_SIZE + 4 + 2 * mBuffer.getInt(h + HEADER_SIZE));
+    }
+    if (id >= ARRAY_ID) {
+      return align(HEADER_SIZE + 4 + (mBuffer.getInt(h + HEADER_SIZE) << ArrayType.shift(id - ARRAY_ID)));
+    }
+    return align(HEADER_SIZE + 4 * mClasses.get(id).getSlotCount());
+  }
+
+  private synchronized void collect() {
+    long start = System.nanoTime();
+    for (Thread thread : mThreads) {
+      retire(thread.getTlab());
+    }
+    mTop = top(mBounds.get());
+    int before = mTop;
+    // mark from the roots
+    for (Thread thread : mThreads) {
+      thread.updateHandles((h) -> {
+        mark(h);
+        return h;
+      });
+    }
+    while (mPendingCount > 0) {
+      int h = mPending[--mPendingCount];
+      int id = mBuffer.getInt(h);
+      if (id == ARRAY_ID + ArrayType.T_REF) {
+        for (int i = 0; i < arrayLength(h); ++i) {
+          mark(loadInt(h, i));
+        }
+      } else if (id != STRING_ID && id < ARRAY_ID) {
+        for (int slot : mClasses.get(id).getRefSlots()) {
+          mark(mBuffer.getInt(h + HEADER_SIZE + 4 * slot));
+        }
+      }
+    }
+    // compute the new handles
+    int free = OBJECT_ALIGN;
+    for (int h = OBJECT_ALIGN; h < mTop; h += sizeOf(h)) {
+      if (mBuffer.getInt(h + GC_WORD) == MARKED) {
+        mBuffer.putInt(h + GC_WORD, free);
+        free += sizeOf(h);
+      }
+    }
+    // update the references
+    for (Thread thread : mThreads) {
+      thread.updateHandles(this::forward);
+    }
+    for (int h = OBJECT_ALIGN; h < mTop; h += sizeOf(h)) {
+      int id = mBuffer.getInt(h);
+      if (id == ARRAY_ID + ArrayType.T_REF && mBuffer.getInt(h + GC_WORD) != 0) {
+        for (int i = 0; i < arrayLength(h); ++i) {
+          storeInt(h, i, forward(loadInt(h, i)));
+        }
+      } else if (id > 0 && id < ARRAY_ID && mBuffer.getInt(h + GC_WORD) != 0) {
+        for (int slot : mClasses.get(id).getRefSlots()) {
+          int pos = h + HEADER_SIZE + 4 * slot;
+          mBuffer.putInt(pos, forward(mBuffer.getInt(pos)));
+        }
+      }
+    }
+    // slide the live objects down, an object never moves up so a forward copy is safe
+    for (int h = OBJECT_ALIGN; h < mTop; ) {
+      int size = sizeOf(h);
+      int to = mBuffer.getInt(h + GC_WORD);
+      if (to != 0) {
+        for (int i = 0; i < size; i += 8) {
+          mBuffer.putLong(to + i, mBuffer.getLong(h + i));
+        }
+        mBuffer.putInt(to + GC_WORD, 0);
+      }
+      h += size;
+    }
+    long bounds;
+    do { // constants may be carved by the other threads
+      bounds = mBounds.get();
+    } while (!mBounds.compareAndSet(bounds, bounds(bottom(bounds), free)));
+    mTop = free;
+    if (mPending.length > 1024) {
+      mPending = new int[64];
+    }
+    mGCCount++;
+    long elapsed = System.nanoTime() - start;
+    mGCNanos += elapsed;
+    if (Trace.GC) {
+      logger.info(String.format("arena GC: %dK->%dK, %d us", before >> 10, mTop >> 10, elapsed / 1000));
+    }
+  }
+
+  private void mark(int h) {
+    if (h == 0 || h >= mTop || mBuffer.getInt(h + GC_WORD) != 0) { // null, constant or marked
+      return;
+    }
+    mBuffer.putInt(h + GC_WORD, MARKED);
+    if (mPendingCount == mPending.length) {
+      mPending = Arrays.copyOf(mPending, mPendingCount * 2);
+    }
+    mPending[mPendingCount++] = h;
+  }
+
+  private int forward(int h) {
+    return h == 0 || h >= mTop ? h : mBuffer.getInt(h + GC_WORD);
+  }
+
+  private static int align(int size) {
+    return (size + OBJECT_ALIGN - 1) & ~(OBJECT_ALIGN - 1);
+  }
+}
@@ -0,0 +1,53 @@
+package com.codemacro.jvm;
+
+/**
+ * The element types of guest arrays, the `atype' codes of newarray and T_REF for references.
+ * Arrays have no Class: a primitive array is a host array of Heap, or an Arena array, and a
+ * reference array is a VObject of references only.
+ */
+public final class ArrayType {
+  public static final int T_BOOLEAN = 4;
+  public static final int T_CHAR = 5;
+  public static final int T_FLOAT = 6;
+  public static final int T_DOUBLE = 7;
+  public static final int T_BYTE = 8;
+  public static final int T_SHORT = 9;
+  public static final int T_INT = 10;
+  public static final int T_LONG = 11;
+  public static final int T_REF = 12;
+
+  private ArrayType() {}
+
+  public static boolean isValid(int type) {
+    return type >= T_BOOLEAN && type <= T_REF;
+  }
+
+  // log2 of the element size, a boolean takes a byte
+  public static int shift(int type) {
+    switch (type) {
+      case T_BOOLEAN: case T_BYTE:
+        return 0;
+      case T_CHAR: case T_SHORT:
+        return 1;
+      case T_DOUBLE: case T_LONG:
+        return 3;
+      default:
+        return 2;
+    }
+  }
+
+  // the type of the elements of an array of descriptor `[<desc>'
+  public static int of(char desc) {
+    switch (desc) {
+      case 'Z': return T_BOOLEAN;
+      case 'C': return T_CHAR;
+      case 'F': return T_FLOAT;
+      case 'D': return T_DOUBLE;
+      case 'B': return T_BYTE;
+      case 'S': return T_SHORT;
+      case 'I': return T_INT;
+      case 'J': return T_LONG;
+      default: return T_REF;
+    }
+  }
+}
@@ -1,8 +1,20 @@
 package com.codemacro.jvm;
 
-import org.freeinternals.format.FileFormatException;
+import com.codemacro.jvm.instruction.DecodedCode;
+import com.codemacro.jvm.instruction.InlineCache;
+import com.codemacro.jvm.instruction.InstructionFactory;
 import org.freeinternals.format.classfile.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Logger;
 
 /**
@@ -13,21 +25,91 @@ public class Class {
   private final ClassFile mCF;
   private final ClassLoader mClassLoader;
   private boolean mStaticInited = false;
+  // the caches below may be filled by any thread, MethodInfo keys are compared by identity.
+  // An empty value means the method can not be decoded, run it on the code stream
+  private final Map<MethodInfo, Optional<DecodedCode>> mDecodedCodes = new ConcurrentHashMap<>();
+  // the inline caches of the invoke sites of each method by bytecode offset
+  private final Map<MethodInfo, Map<Integer, InlineCache>> mInlineCaches = new ConcurrentHashMap<>();
+  // the caches of the sites of the methods inlined into a method by scalar replacement
+  private final Map<MethodInfo, Map<String, InlineCache>> mInlinedCaches = new ConcurrentHashMap<>();
+  private final Map<MethodInfo, MethodCounters> mCounters = new ConcurrentHashMap<>();
+  private Class mSuperClass = null;
+  private Class[] mInterfaces = NO_CLASSES; // the direct super interfaces
+  // virtual methods by slot, the super class slots first, built when linking. An interface's
+  // slots are its own methods, they're the slots of its itable in an implementing class
+  private MethodRef[] mVTable = NO_METHODS;
+  // every interface implemented, and its itable: its slots mapped to the methods of this class
+  private Class[] mAllInterfaces = NO_CLASSES;
+  private MethodRef[][] mITables = new MethodRef[0][];
+  // instance field layout including super class fields, computed when linking
+  private Map<Symbol, Field> mFields = new HashMap<>();
+  // name -> methods with the name, built when linking
+  private final Map<Symbol, MethodEntry> mMethods = new HashMap<>();
+  private int mIntFieldCount = 0;
+  private int mRefFieldCount = 0;
+  // Arena layout: one word per slot, the slots of the references
+  private int mSlotCount = 0;
+  private int[] mRefSlots = new int[0];
+  private int mArenaId = 0; // assigned by Arena, 0 if not yet
+  private boolean mArchived = false; // linked with the layouts of the shared archive
+  // resolved entries parallel to the constant pool: MethodRef, Field, Class, String or Symbol for Utf8
+  private final AtomicReferenceArray<Object> mResolved;
+  // marks an entry resolved to null, e.g. the ignored java/lang/Object
+  private static final Object NULL_ENTRY = new Object();
+  private static final Class[] NO_CLASSES = new Class[0];
+  private static final MethodRef[] NO_METHODS = new MethodRef[0];
+  private Symbol mName = null;
 
-  public static class Symbol {
+  public static class MethodRef {
     public Class clazz;
     public MethodInfo method;
     public int argCnt;
-    public Symbol(Class clazz, MethodInfo method, int argCnt) {
+    // the vtable slot of a virtual method in the class referenced, or the itable slot of an
+    // interface method of `clazz', -1 if it's not dispatched on the receiver
+    public int index = -1;
+    public MethodRef(Class clazz, MethodInfo method, int argCnt) {
       this.clazz = clazz;
       this.method = method;
       this.argCnt = argCnt;
     }
+
+    public Symbol getName() { return clazz.getSymbol(method.getNameIndex()); }
+    public Symbol getDescriptor() { return clazz.getSymbol(method.getDescriptorIndex()); }
+  }
+
+  /**
+   * An instance field slot in VObject, ints and references are laid out separately.
+   * In an Arena object the fields are laid out in declaration order at word `slot'.
+   */
+  public static class Field {
+    public final int offset;
+    public final int slot;
+    public final boolean isRef;
+    public final boolean isWide; // long & double take 2 int slots
+    public Field(int offset, int slot, boolean isRef, boolean isWide) {
+      this.offset = offset;
+      this.slot = slot;
+      this.isRef = isRef;
+      this.isWide = isWide;
+    }
+  }
+
+  // overloaded methods are chained
+  private static class MethodEntry {
+    final Symbol descriptor;
+    final MethodInfo method;
+    final MethodEntry next;
+    MethodEntry(Symbol descriptor, MethodInfo method, MethodEntry next) {
+      this.descriptor = descriptor;
+      this.method = method;
+      this.next = next;
+    }
   }
 
   public Class(final ClassFile cf, final ClassLoader loader) {
     mCF = cf;
     mClassLoader = loader;
+    mResolved = new AtomicReferenceArray<>(cf.getCPCount().getValue());
   }
 
   public boolean isStaticInited() { return mStaticInited; }
@@ -37,68 +119,423 @@ public class Class {
     return (mCF.getAccessFlags().getValue() & AccessFlags.ACC_PUBLIC) != 0;
   }
 
+  public boolean isInterface() {
+    return (mCF.getAccessFlags().getValue() & AccessFlags.ACC_INTERFACE) != 0;
+  }
+
   public String getName() {
-    return resolveClassName(mCF.getThisClass().getValue());
+    return getNameSymbol().toString();
+  }
+
+  public Symbol getNameSymbol() {
+    if (mName == null) {
+      mName = resolveClassNameSymbol(mCF.getThisClass().getValue());
+    }
+    return mName;
   }
 
   public MethodInfo findMethod(String name, String descriptor) {
+    return findMethod(Symbol.intern(name), Symbol.intern(descriptor));
+  }
+
+  public MethodInfo findMethod(Symbol name, Symbol descriptor) {
+    for (MethodEntry e = mMethods.get(name); e != null; e = e.next) {
+      if (e.descriptor == descriptor) {
+        return e.method;
+      }
+    }
+    return null;
+  }
+
+  void indexMethods() {
+    if (mCF.getMethods() == null) {
+      return;
+    }
     for (MethodInfo m : mCF.getMethods()) {
-      String methodName = getNameInConstantPool(m.getNameIndex());
-      String methodDesc = getNameInConstantPool(m.getDescriptorIndex());
-      if (methodName.equals(name) && methodDesc.equals(descriptor)) {
-        logger.info("found method " + name + ":" + descriptor);
-        return m;
+      Symbol methodName = getSymbol(m.getNameIndex());
+      Symbol methodDesc = getSymbol(m.getDescriptorIndex());
+      mMethods.put(methodName, new MethodEntry(methodDesc, m, mMethods.get(methodName)));
+    }
+  }
+
+  public Class getSuperClass() { return mSuperClass; }
+  void setSuperClass(Class clazz) { mSuperClass = clazz; }
+  void setInterfaces(Class[] interfaces) { mInterfaces = interfaces; }
+
+  public MethodRef vtableMethod(int slot) {
+    return mVTable[slot];
+  }
+
+  // the method of slot `slot' of interface `iface', null if it's not implemented
+  public MethodRef itableMethod(Class iface, int slot) {
+    for (int i = 0; i < mAllInterfaces.length; ++i) {
+      if (mAllInterfaces[i] == iface) {
+        return mITables[i][slot];
       }
     }
     return null;
   }
 
-  public FieldInfo findField(String name) {
-    for (FieldInfo field : mCF.getFields()) {
-      String fname = getNameInConstantPool(field.getNameIndex());
-      if (fname.equals(name)) {
-        return field;
+  // a method overrides the slot of the same name and descriptor, the interface methods not
+  // implemented, e.g. default methods, take new slots after the class's own methods
+  void layoutVTable() {
+    Set<Class> interfaces = new LinkedHashSet<>();
+    if (mSuperClass != null) {
+      interfaces.addAll(Arrays.asList(mSuperClass.mAllInterfaces));
+    }
+    for (Class iface : mInterfaces) {
+      interfaces.add(iface);
+      interfaces.addAll(Arrays.asList(iface.mAllInterfaces));
+    }
+    mAllInterfaces = interfaces.toArray(NO_CLASSES);
+    List<MethodRef> vtable = new ArrayList<>();
+    if (mSuperClass != null && !isInterface()) {
+      vtable.addAll(Arrays.asList(mSuperClass.mVTable));
+    }
+    for (MethodInfo m : mCF.getMethods() == null ? new MethodInfo[0] : mCF.getMethods()) {
+      if (!isVirtual(m)) {
+        continue;
+      }
+      MethodRef ref = new MethodRef(this, m, parseArgCount(m, m.getDescriptorIndex()));
+      int slot = findSlot(vtable, getSymbol(m.getNameIndex()), getSymbol(m.getDescriptorIndex()));
+      if (slot >= 0) {
+        vtable.set(slot, ref);
+      } else {
+        vtable.add(ref);
+      }
+    }
+    if (isInterface()) {
+      mVTable = vtable.toArray(NO_METHODS);
+      return;
+    }
+    for (Class iface : mAllInterfaces) {
+      for (MethodRef ref : iface.mVTable) {
+        if (findSlot(vtable, ref.getName(), ref.getDescriptor()) < 0) {
+          vtable.add(ref);
+        }
+      }
+    }
+    mVTable = vtable.toArray(NO_METHODS);
+    mITables = new MethodRef[mAllInterfaces.length][];
+    for (int i = 0; i < mAllInterfaces.length; ++i) {
+      MethodRef[] methods = mAllInterfaces[i].mVTable;
+      mITables[i] = new MethodRef[methods.length];
+      for (int slot = 0; slot < methods.length; ++slot) {
+        mITables[i][slot] = mVTable[findSlot(vtable, methods[slot].getName(), methods[slot].getDescriptor())];
+      }
+    }
+  }
+
+  private boolean isVirtual(MethodInfo m) {
+    return (m.getAccessFlags() & (MethodInfo.ACC_STATIC | MethodInfo.ACC_PRIVATE)) == 0
+        && getSymbol(m.getNameIndex()).byteAt(0) != '<';
+  }
+
+  private static int findSlot(List<MethodRef> vtable, Symbol name, Symbol descriptor) {
+    for (int i = 0; i < vtable.size(); ++i) {
+      MethodRef ref = vtable.get(i);
+      if (ref.getName() == name && ref.getDescriptor() == descriptor) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // the layouts computed by layoutFields and layoutVTable, for the shared archive
+  SharedArchive.Layout saveLayout() {
+    SharedArchive.Layout layout = new SharedArchive.Layout();
+    layout.intFieldCount = mIntFieldCount;
+    layout.refFieldCount = mRefFieldCount;
+    layout.slotCount = mSlotCount;
+    layout.refSlots = mRefSlots;
+    List<Symbol> names = new ArrayList<>();
+    for (FieldInfo info : mCF.getFields() == null ? new FieldInfo[0] : mCF.getFields()) {
+      if ((info.getAccessFlags() & FieldInfo.ACC_STATIC) == 0) {
+        names.add(getSymbol(info.getNameIndex()));
+      }
+    }
+    layout.fieldNames = names.toArray(new Symbol[names.size()]);
+    layout.fields = new Field[layout.fieldNames.length];
+    for (int i = 0; i < layout.fields.length; ++i) {
+      layout.fields[i] = mFields.get(layout.fieldNames[i]);
+    }
+    List<MethodInfo> methods = mCF.getMethods() == null ? new ArrayList<>() : Arrays.asList(mCF.getMethods());
+    layout.vtable = new int[mVTable.length];
+    for (int slot = 0; slot < mVTable.length; ++slot) {
+      MethodRef ref = mVTable[slot];
+      if (ref.clazz == this) {
+        layout.vtable[slot] = methods.indexOf(ref.method);
+      } else if (mSuperClass != null && slot < mSuperClass.mVTable.length && mSuperClass.mVTable[slot] == ref) {
+        layout.vtable[slot] = SharedArchive.Layout.INHERITED;
+      } else {
+        layout.vtable[slot] = interfaceSlot(ref);
+      }
+    }
+    layout.interfaces = new Symbol[mAllInterfaces.length];
+    for (int i = 0; i < mAllInterfaces.length; ++i) {
+      layout.interfaces[i] = mAllInterfaces[i].getNameSymbol();
+    }
+    List<MethodRef> vtable = Arrays.asList(mVTable);
+    layout.itables = new int[mITables.length][];
+    for (int i = 0; i < mITables.length; ++i) {
+      layout.itables[i] = new int[mITables[i].length];
+      for (int slot = 0; slot < mITables[i].length; ++slot) {
+        layout.itables[i][slot] = vtable.indexOf(mITables[i][slot]);
+      }
+    }
+    return layout;
+  }
+
+  // the slot taken from an interface, e.g. a default method
+  private int interfaceSlot(MethodRef ref) {
+    for (int i = 0; i < mAllInterfaces.length; ++i) {
+      int slot = Arrays.asList(mAllInterfaces[i].mVTable).indexOf(ref);
+      if (slot >= 0) {
+        return SharedArchive.Layout.fromInterface(i, slot);
+      }
+    }
+    throw new IllegalStateException("vtable method not found in " + getName());
+  }
+
+  // link with the layouts saved by the shared archive instead of computing them, they're valid
+  // only if the super class and interfaces were linked with theirs. Returns false if not
+  boolean restoreLayout(SharedArchive.Layout layout) {
+    if (mSuperClass != null && !mSuperClass.mArchived) {
+      return false;
+    }
+    for (Class iface : mInterfaces) {
+      if (!iface.mArchived) {
+        return false;
+      }
+    }
+    if (mSuperClass != null) {
+      mFields.putAll(mSuperClass.mFields);
+    }
+    for (int i = 0; i < layout.fields.length; ++i) {
+      mFields.put(layout.fieldNames[i], layout.fields[i]);
+    }
+    mIntFieldCount = layout.intFieldCount;
+    mRefFieldCount = layout.refFieldCount;
+    mSlotCount = layout.slotCount;
+    mRefSlots = layout.refSlots;
+    mAllInterfaces = new Class[layout.interfaces.length];
+    for (int i = 0; i < mAllInterfaces.length; ++i) {
+      mAllInterfaces[i] = mClassLoader.loadClass(layout.interfaces[i].toString()); // loaded by the super types
+    }
+    MethodInfo[] methods = mCF.getMethods();
+    mVTable = new MethodRef[layout.vtable.length];
+    for (int slot = 0; slot < mVTable.length; ++slot) {
+      int source = layout.vtable[slot];
+      if (source >= 0) {
+        MethodInfo m = methods[source];
+        mVTable[slot] = new MethodRef(this, m, parseArgCount(m, m.getDescriptorIndex()));
+      } else if (source == SharedArchive.Layout.INHERITED) {
+        mVTable[slot] = mSuperClass.mVTable[slot];
+      } else {
+        mVTable[slot] = mAllInterfaces[SharedArchive.Layout.interfaceOf(source)]
+            .mVTable[SharedArchive.Layout.interfaceSlotOf(source)];
+      }
+    }
+    mITables = new MethodRef[layout.itables.length][];
+    for (int i = 0; i < mITables.length; ++i) {
+      mITables[i] = new MethodRef[layout.itables[i].length];
+      for (int slot = 0; slot < mITables[i].length; ++slot) {
+        mITables[i][slot] = mVTable[layout.itables[i][slot]];
       }
     }
-    throw new RuntimeException("not found field:" + name);
+    mArchived = true;
+    return true;
   }
 
-  public String resolveFieldName(int idx) {
-    AbstractCPInfo[] pool = mCF.getConstantPool();
-    ConstantFieldrefInfo info = (ConstantFieldrefInfo) pool[idx];
-    ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) pool[info.getNameAndTypeIndex()];
-    String fieldName = getNameInConstantPool(nameAndType.getNameIndex());
-    return fieldName;
+  // a Utf8 constant interned by the shared archive
+  void presetSymbol(int idx, Symbol symbol) {
+    mResolved.set(idx, symbol);
   }
 
-  public Symbol resolveMethodByRef(int poolIdx) {
-    AbstractCPInfo[] pool = mCF.getConstantPool();
-    AbstractCPInfo info = pool[poolIdx];
-    assert(info.getTag() == AbstractCPInfo.CONSTANT_Methodref);
-    ConstantMethodrefInfo refInfo = (ConstantMethodrefInfo) info;
-    int clazzIdx = refInfo.getClassIndex();
-    ConstantClassInfo clazzInfo = (ConstantClassInfo) pool[clazzIdx];
-    String clazzName = getNameInConstantPool(clazzInfo.getNameIndex());
+  public int getIntFieldCount() { return mIntFieldCount; }
+  public int getRefFieldCount() { return mRefFieldCount; }
+  public int getSlotCount() { return mSlotCount; }
+  public int[] getRefSlots() { return mRefSlots; }
+  int getArenaId() { return mArenaId; }
+  void setArenaId(int id) { mArenaId = id; }
+
+  // super class fields first, so a super class method accesses the same offsets
+  void layoutFields() {
+    if (mSuperClass != null) {
+      mFields.putAll(mSuperClass.mFields);
+      mIntFieldCount = mSuperClass.mIntFieldCount;
+      mRefFieldCount = mSuperClass.mRefFieldCount;
+      mSlotCount = mSuperClass.mSlotCount;
+      mRefSlots = mSuperClass.mRefSlots;
+    }
+    if (mCF.getFields() == null) {
+      return;
+    }
+    for (FieldInfo info : mCF.getFields()) {
+      if ((info.getAccessFlags() & FieldInfo.ACC_STATIC) != 0) {
+        continue;
+      }
+      Symbol name = getSymbol(info.getNameIndex());
+      char type = (char) getSymbol(info.getDescriptorIndex()).byteAt(0);
+      Field field;
+      if (type == 'L' || type == '[') {
+        field = new Field(mRefFieldCount++, mSlotCount, true, false);
+        mRefSlots = Arrays.copyOf(mRefSlots, mRefSlots.length + 1);
+        mRefSlots[mRefSlots.length - 1] = mSlotCount++;
+      } else {
+        boolean wide = type == 'J' || type == 'D';
+        field = new Field(mIntFieldCount, mSlotCount, false, wide);
+        mIntFieldCount += wide ? 2 : 1;
+        mSlotCount += wide ? 2 : 1;
+      }
+      mFields.put(name, field); // hides the super class field with the same name
+    }
+  }
+
+  public Field findField(String name) {
+    return findField(Symbol.intern(name));
+  }
+
+  public Field findField(Symbol name) {
+    Field field = mFields.get(name);
+    if (field == null) {
+      throw new RuntimeException("not found field:" + name);
+    }
+    return field;
+  }
+
+  public Field resolveField(int idx) {
+    Object resolved = mResolved.get(idx);
+    if (resolved != null) {
+      return (Field) resolved;
+    }
+    ConstantFieldrefInfo info = (ConstantFieldrefInfo) mCF.getCPInfo(idx);
+    Class clazz = resolveClass(info.getClassIndex());
+    ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) mCF.getCPInfo(info.getNameAndTypeIndex());
+    Field field = clazz.findField(getSymbol(nameAndType.getNameIndex()));
+    mResolved.set(idx, field);
+    return field;
+  }
+
+  public MethodRef resolveMethodByRef(int poolIdx) {
+    Object resolved = mResolved.get(poolIdx);
+    if (resolved == null) {
+      MethodRef ref = doResolveMethodByRef(poolIdx);
+      resolved = ref == null ? NULL_ENTRY : ref;
+      mResolved.set(poolIdx, resolved);
+    }
+    return resolved == NULL_ENTRY ? null : (MethodRef) resolved;
+  }
+
+  private MethodRef doResolveMethodByRef(int poolIdx) {
+    AbstractCPInfo info = mCF.getCPInfo(poolIdx);
+    int classIdx, nameTypeIdx;
+    if (info.getTag() == AbstractCPInfo.CONSTANT_InterfaceMethodref) {
+      ConstantInterfaceMethodrefInfo refInfo = (ConstantInterfaceMethodrefInfo) info;
+      classIdx = refInfo.getClassIndex();
+      nameTypeIdx = refInfo.getNameAndTypeIndex();
+    } else {
+      assert(info.getTag() == AbstractCPInfo.CONSTANT_Methodref);
+      ConstantMethodrefInfo refInfo = (ConstantMethodrefInfo) info;
+      classIdx = refInfo.getClassIndex();
+      nameTypeIdx = refInfo.getNameAndTypeIndex();
+    }
     // load class, maybe the class is this
-    Class clazz = mClassLoader.loadClass(clazzName);
+    Class clazz = resolveClass(classIdx);
     if (clazz == null) {
       return null;
     }
-    int nameTypeIdx = refInfo.getNameAndTypeIndex();
     // load method name and prototype descriptor
-    ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) pool[nameTypeIdx];
-    String methodName = getNameInConstantPool(nameAndType.getNameIndex());
-    String descriptor = getNameInConstantPool(nameAndType.getDescriptorIndex());
+    ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) mCF.getCPInfo(nameTypeIdx);
+    Symbol methodName = getSymbol(nameAndType.getNameIndex());
+    Symbol descriptor = getSymbol(nameAndType.getDescriptorIndex());
     // find the real method by name and descriptor
-    MethodInfo method = clazz.findMethod(methodName, descriptor);
-    return new Symbol(clazz, method, parseArgCount(method, descriptor));
+    MethodRef ref = clazz.lookupMethod(methodName, descriptor);
+    if (ref == null) {
+      throw new RuntimeException("not found method:" + clazz.getName() + "." + methodName + descriptor);
+    }
+    if (!ref.clazz.isVirtual(ref.method)) {
+      return ref;
+    }
+    if (!clazz.isInterface()) {
+      ref.index = findSlot(Arrays.asList(clazz.mVTable), methodName, descriptor);
+    } else if (ref.clazz.isInterface()) {
+      ref.index = findSlot(Arrays.asList(ref.clazz.mVTable), methodName, descriptor);
+    }
+    return ref;
+  }
+
+  // the method declared by this class, a super class, or else an interface
+  private MethodRef lookupMethod(Symbol name, Symbol descriptor) {
+    for (Class clazz = this; clazz != null; clazz = clazz.mSuperClass) {
+      MethodInfo method = clazz.findMethod(name, descriptor);
+      if (method != null) {
+        return new MethodRef(clazz, method, parseArgCount(method, descriptor));
+      }
+    }
+    for (Class iface : mAllInterfaces) {
+      MethodInfo method = iface.findMethod(name, descriptor);
+      if (method != null) {
+        return new MethodRef(iface, method, parseArgCount(method, descriptor));
+      }
+    }
+    return null;
+  }
+
+  // load the class referenced by a CONSTANT_Class entry
+  public Class resolveClass(int idx) {
+    Object resolved = mResolved.get(idx);
+    if (resolved == null) {
+      Class clazz = mClassLoader.loadClass(resolveClassName(idx));
+      resolved = clazz == null ? NULL_ENTRY : clazz;
+      mResolved.set(idx, resolved);
+    }
+    return resolved == NULL_ENTRY ? null : (Class) resolved;
+  }
+
+  public String resolveString(int idx) {
+    Object resolved = mResolved.get(idx);
+    if (resolved == null) {
+      ConstantStringInfo info = (ConstantStringInfo) mCF.getCPInfo(idx);
+      resolved = getNameInConstantPool(info.getStringIndex());
+      mResolved.set(idx, resolved);
+    }
+    return (String) resolved;
+  }
+
+  // an Integer, Float, Long or Double constant, boxed once when resolved
+  public Object resolveConstant(int idx) {
+    Object resolved = mResolved.get(idx);
+    if (resolved == null) {
+      AbstractCPInfo info = mCF.getCPInfo(idx);
+      switch (info.getTag()) {
+        case AbstractCPInfo.CONSTANT_Integer:
+          resolved = ((ConstantIntegerInfo) info).getValue();
+          break;
+        case AbstractCPInfo.CONSTANT_Float:
+          resolved = ((ConstantFloatInfo) info).getValue();
+          break;
+        case AbstractCPInfo.CONSTANT_Long:
+          resolved = ((ConstantLongInfo) info).getValue();
+          break;
+        case AbstractCPInfo.CONSTANT_Double:
+          resolved = ((ConstantDoubleInfo) info).getValue();
+          break;
+        default:
+          throw new RuntimeException("not a numeric constant at " + idx);
+      }
+      mResolved.set(idx, resolved);
+    }
+    return resolved;
   }
 
   public String resolveClassName(int idx) {
-    AbstractCPInfo[] pool = mCF.getConstantPool();
-    ConstantClassInfo clazzInfo = (ConstantClassInfo) pool[idx];
-    String clazzName = getNameInConstantPool(clazzInfo.getNameIndex());
-    return clazzName;
+    return resolveClassNameSymbol(idx).toString();
+  }
+
+  public Symbol resolveClassNameSymbol(int idx) {
+    ConstantClassInfo clazzInfo = (ConstantClassInfo) mCF.getCPInfo(idx);
+    return getSymbol(clazzInfo.getNameIndex());
   }
 
   public ClassLoader getClassLoader() {
@@ -106,30 +543,103 @@ public class Class {
   }
 
   public String getNameInConstantPool(int idx) {
-    try {
-      return mCF.getConstantUtf8Value(idx);
-    } catch (FileFormatException e) {
-      throw new RuntimeException("not found Utf8 constant value at " + idx);
+    return getSymbol(idx).toString();
+  }
+
+  // the interned Utf8 constant at `idx'
+  public Symbol getSymbol(int idx) {
+    Object resolved = mResolved.get(idx);
+    if (resolved == null) {
+      AbstractCPInfo info = mCF.getCPInfo(idx);
+      if (info == null || info.getTag() != AbstractCPInfo.CONSTANT_Utf8) {
+        throw new RuntimeException("not found Utf8 constant value at " + idx);
+      }
+      byte[] bytes = ((ConstantUtf8Info) info).getBytes();
+      resolved = Symbol.intern(bytes, 0, bytes.length);
+      mResolved.set(idx, resolved);
     }
+    return (Symbol) resolved;
   }
 
   public ClassFile getClassFile() {
     return mCF;
   }
 
+  public DecodedCode getDecodedCode(MethodInfo method, AttributeCode code) {
+    Optional<DecodedCode> decoded = mDecodedCodes.get(method);
+    if (decoded == null) { // not computeIfAbsent, decoding may decode the methods it inlines
+      decoded = Optional.ofNullable(InstructionFactory.decode(this, method, code));
+      Optional<DecodedCode> other = mDecodedCodes.putIfAbsent(method, decoded);
+      decoded = other != null ? other : decoded;
+    }
+    return decoded.orElse(null);
+  }
+
+  // the inline cache of the invokevirtual or invokeinterface `cpIdx' at `pc' of `method'
+  public InlineCache getInlineCache(MethodInfo method, int pc, int cpIdx, boolean isInterface) {
+    return mInlineCaches.computeIfAbsent(method, k -> new ConcurrentHashMap<>())
+        .computeIfAbsent(pc, k -> new InlineCache(this, cpIdx, isInterface));
+  }
+
+  // the methods whose sites have run, and their caches by bytecode offset
+  public Map<MethodInfo, Map<Integer, InlineCache>> getInlineCaches() {
+    return mInlineCaches;
+  }
+
+  // the cache of the site at `pc' of `clazz' inlined into `method' by the call at `callPc', each
+  // caller has its own, the site is `<callPc>><class>@<pc>#<cpIdx>'
+  public InlineCache getInlinedCache(MethodInfo method, int callPc, Class clazz, int pc, int cpIdx,
+                                     boolean isInterface) {
+    String site = callPc + ">" + clazz.getName() + "@" + pc + "#" + cpIdx;
+    return mInlinedCaches.computeIfAbsent(method, k -> new ConcurrentHashMap<>())
+        .computeIfAbsent(site, k -> new InlineCache(clazz, cpIdx, isInterface));
+  }
+
+  // the methods with inlined sites that have run, and their caches by site
+  public Map<MethodInfo, Map<String, InlineCache>> getInlinedCaches() {
+    return mInlinedCaches;
+  }
+
+  public MethodCounters getCounters(MethodInfo method, AttributeCode code) {
+    return mCounters.computeIfAbsent(method, k -> new MethodCounters(code.getCodeLength(), mClassLoader.getConfig()));
+  }
+
+  // the methods invoked, and their counters
+  public Map<MethodInfo, MethodCounters> getMethodCounters() {
+    return mCounters;
+  }
+
+  // the Code attribute of `method', null if it's native or abstract
+  public static AttributeCode getCode(MethodInfo method) {
+    for (int i = 0; i < method.getAttributesCount(); ++i) {
+      AttributeInfo attr = method.getAttribute(i);
+      if (attr.getName().equals(AttributeInfo.TypeCode)) {
+        return (AttributeCode) attr;
+      }
+    }
+    return null;
+  }
+
   public int parseArgCount(MethodInfo method, int descIdx) {
-    String descriptor = getNameInConstantPool(descIdx);
-    return parseArgCount(method, descriptor);
+    return parseArgCount(method, getSymbol(descIdx));
   }
 
-  // TODO: handle float & double type
-  public int parseArgCount(MethodInfo method, String descriptor) {
-    int i1 = descriptor.indexOf('(');
-    int i2 = descriptor.indexOf(')');
+  // the argument slots, long & double take 2
+  public int parseArgCount(MethodInfo method, Symbol descriptor) {
     int cnt = (method.getAccessFlags() & MethodInfo.ACC_STATIC) == 0 ? 1 : 0;
-    for (int i = i1 + 1; i < i2; ++i, ++cnt) {
-      if (descriptor.charAt(i) == 'L') {
-        i = descriptor.indexOf(';', i + 1);
+    for (int i = 1; descriptor.byteAt(i) != ')'; ++i, ++cnt) { // skip '('
+      byte type = descriptor.byteAt(i);
+      if (type == 'J' || type == 'D') {
+        ++cnt;
+        continue;
+      }
+      while (descriptor.byteAt(i) == '[') { // an array is a reference whatever the element type
+        ++i;
+      }
+      if (descriptor.byteAt(i) == 'L') {
+        while (descriptor.byteAt(i) != ';') {
+          ++i;
+        }
       }
     }
     return cnt;
@@ -1,22 +1,45 @@
 package com.codemacro.jvm;
 
 import org.freeinternals.format.classfile.ClassFile;
+import org.freeinternals.format.classfile.Interface;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
  * Created on 2017/2/18.
+ * Thread-safe, a class being loaded is a placeholder in the class table, so concurrent loaders
+ * of the same class wait for the single definition while other classes load in parallel.
  */
 public class ClassLoader {
   private static Logger logger = Logger.getLogger(ClassLoader.class.getName());
   private final ClassPath mCP;
-  private final Map<String, Class> mClassTable;
+  private final VM.Config mConf; // of the VM running the classes loaded
+  private final ConcurrentMap<String, Placeholder> mClassTable;
+  private volatile SharedArchive mShared = null;
+
+  // completed with the defined class, or exceptionally if the loading failed
+  private static class Placeholder extends CompletableFuture<Class> {
+    final java.lang.Thread owner = java.lang.Thread.currentThread();
+  }
 
   public ClassLoader(final ClassPath cp) {
+    this(cp, new VM.Config());
+  }
+
+  public ClassLoader(final ClassPath cp, final VM.Config conf) {
     mCP = cp;
-    mClassTable = new HashMap<>();
+    mConf = conf;
+    mClassTable = new ConcurrentHashMap<>();
+  }
+
+  public VM.Config getConfig() {
+    return mConf;
   }
 
   public Class loadClass(String fullName) {
@@ -28,38 +51,113 @@ public class ClassLoader {
       logger.warning("ignore java/lang/Throwable");
       return null;
     }
-    Class clazz = mClassTable.get(fullName);
-    if (clazz != null) {
+    if (fullName.charAt(0) == '[') { // arrays have no class, see ArrayType
+      return null;
+    }
+    Placeholder placeholder = mClassTable.get(fullName);
+    if (placeholder == null) {
+      Placeholder mine = new Placeholder();
+      placeholder = mClassTable.putIfAbsent(fullName, mine);
+      if (placeholder == null) {
+        return define(fullName, mine);
+      }
+    }
+    if (!placeholder.isDone() && placeholder.owner == java.lang.Thread.currentThread()) {
+      throw new RuntimeException("class circularity:" + fullName); // e.g. a class extends itself
+    }
+    try {
+      return placeholder.join();
+    } catch (CompletionException e) { // rethrow what the defining thread failed with
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  private Class define(String fullName, Placeholder placeholder) {
+    try {
+      Class clazz = loadAndLink(fullName);
+      placeholder.complete(clazz);
       return clazz;
+    } catch (Throwable e) { // Errors too, or the waiting loaders would block forever
+      mClassTable.remove(fullName, placeholder); // let a later load retry
+      placeholder.completeExceptionally(e);
+      throw e;
     }
-    ClassFile cf = mCP.loadClass(fullName);
+  }
+
+  private Class loadAndLink(String fullName) {
+    SharedArchive.ArchivedClass archived = mShared != null ? mShared.load(fullName) : null;
+    ClassFile cf = archived != null ? archived.getClassFile() : mCP.loadClass(fullName);
     if (cf == null) {
       throw new RuntimeException("class not found:" + fullName);
     }
-    clazz = newClass(cf);
+    Class clazz = newClass(cf);
+    if (archived != null) {
+      archived.presetSymbols(clazz);
+    }
     resolveSuperClass(clazz);
     resolveInterfaces(clazz);
-    link(clazz);
-    logger.info("loaded class " + fullName);
-    mClassTable.put(fullName, clazz);
+    link(clazz, archived);
+    if (Trace.CLASSLOAD) {
+      logger.info("loaded class " + fullName);
+    }
     return clazz;
   }
 
+  // the classes defined so far
+  public List<Class> getLoadedClasses() {
+    List<Class> classes = new ArrayList<>();
+    for (Placeholder placeholder : mClassTable.values()) {
+      if (placeholder.isDone() && !placeholder.isCompletedExceptionally()) {
+        classes.add(placeholder.join());
+      }
+    }
+    return classes;
+  }
+
+  public void setSharedArchive(SharedArchive archive) {
+    mShared = archive;
+  }
+
   private void resolveSuperClass(Class clazz) {
-    // TODO
+    int idx = clazz.getClassFile().getSuperClass().getValue();
+    if (idx != 0) {
+      clazz.setSuperClass(loadClass(clazz.resolveClassName(idx)));
+    }
   }
 
   private void resolveInterfaces(Class clazz) {
-    // TODO
+    Interface[] interfaces = clazz.getClassFile().getInterfaces();
+    if (interfaces == null) {
+      return;
+    }
+    List<Class> resolved = new ArrayList<>(interfaces.length);
+    for (Interface iface : interfaces) {
+      Class c = loadClass(clazz.resolveClassName(iface.getValue()));
+      if (c != null) {
+        resolved.add(c);
+      }
+    }
+    clazz.setInterfaces(resolved.toArray(new Class[resolved.size()]));
   }
 
-  private void link(Class clazz) {
+  private void link(Class clazz, SharedArchive.ArchivedClass archived) {
     // TODO: verify
-    prepare(clazz);
+    prepare(clazz, archived);
   }
 
-  private void prepare(Class clazz) {
-
+  private void prepare(Class clazz, SharedArchive.ArchivedClass archived) {
+    clazz.indexMethods();
+    if (archived == null || !clazz.restoreLayout(archived.getLayout())) {
+      clazz.layoutVTable();
+      clazz.layoutFields();
+    }
   }
 
   private Class newClass(ClassFile cf) {
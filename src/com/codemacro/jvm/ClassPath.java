@@ -1,10 +1,20 @@
 package com.codemacro.jvm;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.logging.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.freeinternals.format.FileFormatException;
@@ -12,63 +22,234 @@ import org.freeinternals.format.classfile.ClassFile;
 
 /**
  * Created on 2017/2/18.
+ * Thread-safe, classes may be loaded by the preloading threads.
  */
 public class ClassPath {
   private static Logger logger = Logger.getLogger(ClassPath.class.getName());
+  // bigger class files are mapped instead of read into the buffer
+  private static final int MAP_THRESHOLD = 64 * 1024;
   private String[] mPathList;
+  // scan class files only and decode the entries on demand
+  private boolean mLazyParse = false;
+  // reused to read class files, the parsed ClassFile does not refer to it
+  private final ThreadLocal<ByteBuffer> mReadBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8192));
+  // archives are opened once, an archive failed to open is retried when indexing another package
+  private final Map<String, ArchiveFile> mArchives = new ConcurrentHashMap<>();
+
+  // class name -> indexes of the path entries having it in class path order, filled a package at a time
+  private final Map<String, int[]> mClasses = new ConcurrentHashMap<>();
+  // the packages indexed into mClasses
+  private final Map<String, PackageIndex> mPackages = new ConcurrentHashMap<>();
+
+  // the classes of a package, and the mtimes of its directories when they were listed
+  private static class PackageIndex {
+    final Set<String> classes;
+    final long[] mtimes; // of the package directory under each path entry, 0 if missing or an archive
+
+    PackageIndex(Set<String> classes, long[] mtimes) {
+      this.classes = classes;
+      this.mtimes = mtimes;
+    }
+  }
 
   public ClassPath(String[] pathList) {
     mPathList = pathList;
   }
 
+  public void setLazyParse(boolean lazy) {
+    mLazyParse = lazy;
+  }
+
+  public boolean isLazyParse() { return mLazyParse; }
+
   public ClassFile loadClass(String fullName) {
-    for (String path : mPathList) {
-      ClassFile cf = loadClass(path, fullName);
-      if (cf != null) {
-        logger.info("success loaded class " + fullName + " from " + path);
-        return cf;
+    if (mLazyParse) { // the lazy ClassFile keeps the image, copy it out of the reused buffers
+      return readClass(fullName, (data) -> {
+        ByteBuffer image = ByteBuffer.allocate(data.remaining());
+        image.put(data).flip();
+        return new ClassFile(image, true);
+      });
+    }
+    return readClass(fullName, ClassFile::new);
+  }
+
+  // the class file image, null if not found
+  public byte[] readClassBytes(String fullName) {
+    return readClass(fullName, (data) -> {
+      byte[] bytes = new byte[data.remaining()];
+      data.get(bytes);
+      return bytes;
+    });
+  }
+
+  // the index of the first path entry having the class, -1 if not found
+  public int findEntry(String fullName) {
+    int[] entries = findEntries(fullName);
+    return entries == null ? -1 : entries[0];
+  }
+
+  private int[] findEntries(String fullName) {
+    int[] entries = mClasses.get(fullName);
+    if (entries == null) { // the first class loaded from its package, or not on the class path
+      entries = refresh(fullName);
+    }
+    return entries;
+  }
+
+  // index the package of `fullName' if it's not indexed yet or a directory of it changed since
+  private int[] refresh(String fullName) {
+    int sep = fullName.lastIndexOf('/');
+    String pkg = sep < 0 ? "" : fullName.substring(0, sep);
+    mPackages.compute(pkg, (k, index) -> {
+      long[] mtimes = mtimesOf(pkg);
+      return index != null && Arrays.equals(index.mtimes, mtimes) ? index : indexPackage(pkg, mtimes, index);
+    });
+    return mClasses.get(fullName);
+  }
+
+  // {size, mtime} of the class file under directory entry `pathIdx', or of the archive entry
+  // itself, which is read once; {-1, 0} if it's missing
+  public long[] stampOf(int pathIdx, String fullName) {
+    String path = mPathList[pathIdx];
+    File file = isArchive(path) ? new File(path) : new File(path, fullName + ".class");
+    return file.isFile() ? new long[] { file.length(), file.lastModified() } : new long[] { -1, 0 };
+  }
+
+  private <T> T readClass(String fullName, ArchiveFile.EntryReader<T> reader) {
+    int[] entries = findEntries(fullName);
+    if (entries == null) {
+      return null;
+    }
+    T ret = readClass(entries, fullName, reader);
+    if (ret == null) { // removed or broken after indexed, a changed package is indexed again
+      int[] refreshed = refresh(fullName);
+      if (refreshed != null && refreshed != entries) {
+        ret = readClass(refreshed, fullName, reader);
+      }
+    }
+    return ret;
+  }
+
+  // read the class from the first of `entries' it can be read from
+  private <T> T readClass(int[] entries, String fullName, ArchiveFile.EntryReader<T> reader) {
+    for (int pathIdx : entries) {
+      String path = mPathList[pathIdx];
+      T ret = readClass(path, fullName, reader);
+      if (ret != null) {
+        if (Trace.CLASSLOAD) {
+          logger.info("success loaded class " + fullName + " from " + path);
+        }
+        return ret;
       }
     }
     return null;
   }
 
-  private ClassFile loadClass(String path, String fullName) {
-    if (path.endsWith(".jar")) {
-      return loadClassFromArchive(path, fullName);
+  // the mtime of the `pkg' directory under each directory entry
+  private long[] mtimesOf(String pkg) {
+    long[] mtimes = new long[mPathList.length];
+    for (int i = 0; i < mPathList.length; ++i) {
+      mtimes[i] = isArchive(mPathList[i]) ? 0 : new File(mPathList[i], pkg).lastModified();
+    }
+    return mtimes;
+  }
+
+  // put the classes of `pkg' into mClasses with the path entries having each, replacing the
+  // classes of its `old' index
+  private PackageIndex indexPackage(String pkg, long[] mtimes, PackageIndex old) {
+    String prefix = pkg.isEmpty() ? "" : pkg + '/';
+    Map<String, List<Integer>> classes = new LinkedHashMap<>();
+    for (int i = 0; i < mPathList.length; ++i) {
+      String path = mPathList[i];
+      if (isArchive(path)) {
+        ArchiveFile archive = openArchive(path);
+        if (archive != null) {
+          for (String name : archive.classNames(pkg)) {
+            classes.computeIfAbsent(prefix + name, k -> new ArrayList<>()).add(i);
+          }
+        }
+        continue;
+      }
+      String[] names = mtimes[i] != 0 ? new File(path, pkg).list((d, name) -> name.endsWith(".class")) : null;
+      for (String name : names != null ? names : new String[0]) {
+        String fullName = prefix + name.substring(0, name.length() - ".class".length());
+        classes.computeIfAbsent(fullName, k -> new ArrayList<>()).add(i);
+      }
+    }
+    classes.forEach((name, entries) -> mClasses.put(name, entries.stream().mapToInt(Integer::intValue).toArray()));
+    if (old != null) {
+      old.classes.stream().filter(name -> !classes.containsKey(name)).forEach(mClasses::remove);
+    }
+    if (Trace.CLASSLOAD) {
+      logger.info("indexed package '" + pkg + "'");
+    }
+    return new PackageIndex(new HashSet<>(classes.keySet()), mtimes);
+  }
+
+  private <T> T readClass(String path, String fullName, ArchiveFile.EntryReader<T> reader) {
+    if (isArchive(path)) {
+      return readClassFromArchive(path, fullName, reader);
     }
-    String fileName = path + "/" + fullName + ".class";
-    File file = new File(fileName);
-    if (!file.exists() || !file.isFile()) {
-      logger.fine("not found file in " + path);
+    Path file = Paths.get(path, fullName + ".class");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size >= MAP_THRESHOLD) {
+        return reader.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+      }
+      ByteBuffer buf = mReadBuffer.get();
+      if (buf.capacity() < size) {
+        buf = ByteBuffer.allocate((int) size);
+        mReadBuffer.set(buf);
+      }
+      buf.clear();
+      buf.limit((int) size);
+      while (buf.hasRemaining()) {
+        if (channel.read(buf) < 0) {
+          throw new IOException("unexpected end of " + file);
+        }
+      }
+      buf.flip();
+      return reader.read(buf);
+    } catch (IOException e) {
+      logger.severe(e.toString());
+    } catch (FileFormatException e) {
+      logger.severe(e.getMessage());
+    }
+    return null;
+  }
+
+  private <T> T readClassFromArchive(String path, String fullName, ArchiveFile.EntryReader<T> reader) {
+    ArchiveFile archive = openArchive(path);
+    if (archive == null) {
       return null;
     }
-    FileInputStream fs = null;
-    byte[] data = new byte[(int)file.length()];
     try {
-      fs = new FileInputStream(file);
-      fs.read(data);
-      return new ClassFile(data);
-    } catch (FileNotFoundException e) {
-      logger.severe(e.getMessage());
+      return archive.read(fullName + ".class", reader);
     } catch (IOException e) {
       logger.severe(e.getMessage());
     } catch (FileFormatException e) {
       logger.severe(e.getMessage());
-    } finally {
+    }
+    return null;
+  }
+
+  private ArchiveFile openArchive(String path) {
+    return mArchives.computeIfAbsent(path, (p) -> {
       try {
-        if (fs != null) {
-          fs.close();
-        }
+        return new ArchiveFile(p);
       } catch (IOException e) {
-        logger.log(Level.SEVERE, null, e);
+        logger.warning("open archive failed: " + e.getMessage());
+        return null;
       }
-    }
-    return null;
+    });
   }
 
-  private ClassFile loadClassFromArchive(String path, String fullName) {
-    logger.log(Level.WARNING, "not implemented");
-    return null;
+  public String[] getPathList() {
+    return mPathList;
+  }
+
+  static boolean isArchive(String path) {
+    return path.endsWith(".jar") || path.endsWith(".zip");
   }
 
   public static void main(String[] args) {
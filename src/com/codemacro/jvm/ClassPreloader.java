@@ -0,0 +1,98 @@
+package com.codemacro.jvm;
+
+import org.freeinternals.format.FileFormatException;
+import org.freeinternals.format.classfile.AbstractCPInfo;
+import org.freeinternals.format.classfile.ClassFile;
+import org.freeinternals.format.classfile.ConstantClassInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Load a class and the classes it references transitively on a fork-join pool before running.
+ * The classes are defined by the ClassLoader, so they're published in its class table and a
+ * concurrent load of the same class waits for the definition instead of parsing it again.
+ */
+public class ClassPreloader {
+  private static final Logger logger = Logger.getLogger(ClassPreloader.class.getName());
+  private final ClassLoader mLoader;
+  private final ForkJoinPool mPool;
+  private final Set<String> mVisited = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger mLoaded = new AtomicInteger();
+
+  public ClassPreloader(final ClassLoader loader, final ForkJoinPool pool) {
+    mLoader = loader;
+    mPool = pool;
+  }
+
+  // blocks until all the reachable classes are loaded
+  public void preload(String fullName) {
+    long start = System.nanoTime();
+    mVisited.add(fullName);
+    mPool.invoke(new ParseTask(fullName));
+    if (Trace.CLASSLOAD) {
+      logger.info(String.format("preloaded %d classes in %d ms", mLoaded.get(),
+          (System.nanoTime() - start) / 1000000));
+    }
+  }
+
+  private class ParseTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final String mName;
+
+    ParseTask(String name) {
+      mName = name;
+    }
+
+    @Override
+    protected void compute() {
+      Class clazz;
+      try {
+        clazz = mLoader.loadClass(mName);
+      } catch (RuntimeException e) { // not found, it fails again if the program uses it
+        return;
+      }
+      if (clazz == null) { // e.g. java/lang/Object which is not on the class path
+        return;
+      }
+      mLoaded.incrementAndGet();
+      List<ParseTask> tasks = new ArrayList<>();
+      for (String name : referencedClasses(clazz.getClassFile())) {
+        if (mVisited.add(name)) {
+          tasks.add(new ParseTask(name));
+        }
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  // the classes named by CONSTANT_Class entries, array classes are taken as their element class
+  static List<String> referencedClasses(ClassFile cf) {
+    List<String> names = new ArrayList<>();
+    for (int i = 1; i < cf.getCPCount().getValue(); ++i) {
+      if (cf.getCPTag(i) != AbstractCPInfo.CONSTANT_Class) {
+        continue;
+      }
+      try {
+        String name = cf.getConstantUtf8Value(((ConstantClassInfo) cf.getCPInfo(i)).getNameIndex());
+        if (name.startsWith("[")) { // array class, preload the element class
+          int elem = name.lastIndexOf('[') + 1;
+          if (name.charAt(elem) != 'L') {
+            continue;
+          }
+          name = name.substring(elem + 1, name.length() - 1);
+        }
+        names.add(name);
+      } catch (FileFormatException e) {
+        logger.warning(e.getMessage());
+      }
+    }
+    return names;
+  }
+}
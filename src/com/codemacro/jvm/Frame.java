@@ -1,5 +1,6 @@
 package com.codemacro.jvm;
 
+import com.codemacro.jvm.instruction.DecodedCode;
 import com.codemacro.jvm.instruction.InstructionFactory;
 import com.codemacro.jvm.jit.IR;
 import com.codemacro.jvm.jit.InstParser;
@@ -10,6 +11,8 @@ import org.freeinternals.format.classfile.*;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,11 +25,21 @@ public class Frame {
   private final Class mClazz;
   private final MethodInfo mMethod;
   private int mPC = 0;
-  private Slot[] mLocals;
-  private Slot[] mOperStacks;
+  // each slot is kept in a pair of arrays, the reference is null when the slot holds an int
+  // and HANDLE when the int is an Arena handle
+  private int[] mLocalInts;
+  private Object[] mLocalRefs;
+  private int[] mStackInts;
+  private Object[] mStackRefs;
   private int mStackPos;
   private PosDataInputStream mCodeStream;
+  private int[] mOperands;
+  private DecodedCode mDecoded = null;
+  private int mIndex = 0; // next instruction index in mDecoded
   private ToyJIT mJIT = null;
+  private MethodCounters mCounters;
+  private boolean mTriedDecoded = false; // tried moving on the pre-decoded code at a hot loop
+  private static final Object HANDLE = new Object();
 
   public Frame(final Thread thread, final Class clazz, final MethodInfo method) {
     mThread = thread;
@@ -40,22 +53,36 @@ public class Frame {
       runNative();
       return;
     }
-    InstructionFactory.Instruction inst = InstructionFactory.createInstruction(mCodeStream);
+    if (mDecoded != null) {
+      runDecoded();
+      return;
+    }
     try {
       mPC = mCodeStream.getPos();
-      inst.exec(mCodeStream, this);
+      InstructionFactory.execute(mCodeStream, mPC, this, mOperands);
     } catch (IOException e) {
       throw new RuntimeException("load op value failed", e);
     }
   }
 
+  // run until another frame is pushed or this frame is popped
+  private void runDecoded() {
+    final DecodedCode code = mDecoded;
+    while (mThread.topFrame() == this) {
+      int idx = mIndex ++;
+      code.insts[idx].exec(this, code.op1[idx], code.op2[idx]);
+    }
+  }
+
   private void runNative() {
-    logger.info(getName() + " run into compiled code");
+    if (Trace.FRAMES) {
+      logger.info(getName() + " run into compiled code");
+    }
     int arg_cnt = getArgsCount();
     int[] args = new int[arg_cnt];
     for (int i = 0; i < arg_cnt; ++i) {
-      if (mLocals[i].type != Slot.Type.NUM) throw new RuntimeException("only supported number arg in jit");
-      args[i] = mLocals[i].i;
+      if (mLocalRefs[i] != null) throw new RuntimeException("only supported number arg in jit");
+      args[i] = mLocalInts[i];
     }
     int ret = mJIT.invoke(args);
     mThread.popFrame();
@@ -65,102 +92,270 @@ public class Frame {
   }
 
   public void pushInt(int i) {
-    mOperStacks[mStackPos++] = new Slot(i);
+    mStackInts[mStackPos] = i;
+    mStackRefs[mStackPos++] = null;
   }
 
   public int popInt() {
-    mStackPos --;
-    return mOperStacks[mStackPos].i;
+    return mStackInts[--mStackPos];
   }
 
-  public void pushRef(Object ref) {
-    mOperStacks[mStackPos++] = new Slot(ref);
+  // long and double take two int slots, the high word first, float is kept as its bits
+  public void pushLong(long v) {
+    pushInt((int) (v >>> 32));
+    pushInt((int) v);
+  }
+
+  public long popLong() {
+    int lo = popInt();
+    int hi = popInt();
+    return ((long) hi << 32) | (lo & 0xffffffffL);
+  }
+
+  public void pushFloat(float f) {
+    pushInt(Float.floatToRawIntBits(f));
   }
 
-  public void pushSlot(Slot s) {
-    mOperStacks[mStackPos++] = s;
+  public float popFloat() {
+    return Float.intBitsToFloat(popInt());
+  }
+
+  public void pushDouble(double d) {
+    pushLong(Double.doubleToRawLongBits(d));
+  }
+
+  public double popDouble() {
+    return Double.longBitsToDouble(popLong());
+  }
+
+  public void pushRef(Object ref) {
+    mStackInts[mStackPos] = 0;
+    mStackRefs[mStackPos++] = ref;
   }
 
   public Object popRef() {
-    mStackPos --;
-    return mOperStacks[mStackPos].obj;
+    return mStackRefs[--mStackPos];
+  }
+
+  public void pushHandle(int h) {
+    mStackInts[mStackPos] = h;
+    mStackRefs[mStackPos++] = h == 0 ? null : HANDLE;
+  }
+
+  // aconst_null pushes 0 too
+  public int popHandle() {
+    return mStackInts[--mStackPos];
   }
 
-  public Slot popSlot() {
+  public int peekHandle(int depth) {
+    return mStackInts[mStackPos - 1 - depth];
+  }
+
+  // pop a reference or a handle, true if it's null
+  public boolean popNull() {
+    return mStackRefs[--mStackPos] == null;
+  }
+
+  // pop 2 references or handles, true if they're the same object
+  public boolean popSame() {
+    mStackPos -= 2;
+    return mStackRefs[mStackPos] == mStackRefs[mStackPos + 1] && mStackInts[mStackPos] == mStackInts[mStackPos + 1];
+  }
+
+  public Object peekRef(int depth) {
+    return mStackRefs[mStackPos - 1 - depth];
+  }
+
+  public void pop() {
     mStackPos --;
-    return mOperStacks[mStackPos];
+  }
+
+  // an exception handler starts on an empty stack
+  public void clearStack() {
+    mStackPos = 0;
+  }
+
+  public void dup() {
+    mStackInts[mStackPos] = mStackInts[mStackPos - 1];
+    mStackRefs[mStackPos] = mStackRefs[mStackPos - 1];
+    mStackPos ++;
+  }
+
+  // insert a copy of the top `cnt' slots under the `skip' slots below them, dup_x1 is (1, 1)
+  public void dup(int cnt, int skip) {
+    int to = mStackPos - cnt - skip;
+    System.arraycopy(mStackInts, to, mStackInts, to + cnt, cnt + skip);
+    System.arraycopy(mStackRefs, to, mStackRefs, to + cnt, cnt + skip);
+    System.arraycopy(mStackInts, mStackPos, mStackInts, to, cnt);
+    System.arraycopy(mStackRefs, mStackPos, mStackRefs, to, cnt);
+    mStackPos += cnt;
+  }
+
+  public void swap() {
+    int i = mStackInts[mStackPos - 1];
+    Object ref = mStackRefs[mStackPos - 1];
+    mStackInts[mStackPos - 1] = mStackInts[mStackPos - 2];
+    mStackRefs[mStackPos - 1] = mStackRefs[mStackPos - 2];
+    mStackInts[mStackPos - 2] = i;
+    mStackRefs[mStackPos - 2] = ref;
+  }
+
+  // pop `cnt' slots as the arguments of the callee
+  public void popArgs(Frame callee, int cnt) {
+    mStackPos -= cnt;
+    System.arraycopy(mStackInts, mStackPos, callee.mLocalInts, 0, cnt);
+    System.arraycopy(mStackRefs, mStackPos, callee.mLocalRefs, 0, cnt);
   }
 
   public void storeLocal(int i, int v) {
-    mLocals[i] = new Slot(v);
+    mLocalInts[i] = v;
+    mLocalRefs[i] = null;
   }
 
   public void storeLocal(int i, Object ref) {
-    mLocals[i] = new Slot(ref);
+    mLocalInts[i] = 0;
+    mLocalRefs[i] = ref;
   }
 
-  public void storeLocal(int i, Slot slot) {
-    mLocals[i] = slot;
+  public void storeLocalHandle(int i, int h) {
+    mLocalInts[i] = h;
+    mLocalRefs[i] = h == 0 ? null : HANDLE;
   }
 
   public int loadLocal(int i) {
-    return mLocals[i].i;
+    return mLocalInts[i];
   }
 
   public Object loadRefLocal(int i) {
-    return mLocals[i].obj;
+    return mLocalRefs[i];
+  }
+
+  // move the top slot as it is, a reference or a handle, to a local or to the caller
+  public void storeLocalSlot(int i) {
+    --mStackPos;
+    mLocalInts[i] = mStackInts[mStackPos];
+    mLocalRefs[i] = mStackRefs[mStackPos];
+  }
+
+  public void loadLocalSlot(int i) {
+    mStackInts[mStackPos] = mLocalInts[i];
+    mStackRefs[mStackPos++] = mLocalRefs[i];
+  }
+
+  public void returnSlot(Frame caller) {
+    --mStackPos;
+    caller.mStackInts[caller.mStackPos] = mStackInts[mStackPos];
+    caller.mStackRefs[caller.mStackPos++] = mStackRefs[mStackPos];
+  }
+
+  void forEachRef(Consumer<Object> visitor) {
+    for (Object ref : mLocalRefs) {
+      if (ref != null && ref != HANDLE) {
+        visitor.accept(ref);
+      }
+    }
+    for (int i = 0; i < mStackPos; ++i) {
+      if (mStackRefs[i] != null && mStackRefs[i] != HANDLE) {
+        visitor.accept(mStackRefs[i]);
+      }
+    }
+  }
+
+  // replace each handle by `update', the handles may be moved by Arena
+  void updateHandles(IntUnaryOperator update) {
+    for (int i = 0; i < mLocalRefs.length; ++i) {
+      if (mLocalRefs[i] == HANDLE) {
+        mLocalInts[i] = update.applyAsInt(mLocalInts[i]);
+      }
+    }
+    for (int i = 0; i < mStackPos; ++i) {
+      if (mStackRefs[i] == HANDLE) {
+        mStackInts[i] = update.applyAsInt(mStackInts[i]);
+      }
+    }
   }
 
   public Thread getThread() {
     return mThread;
   }
+  public MethodInfo getMethod() {
+    return mMethod;
+  }
+
   public Class getClazz() {
     return mClazz;
   }
   public AttributeCode.ExceptionTable getExceptionTable(int idx) { return getCode().getExceptionTable(idx); }
   public int getExceptionTableLength() { return getCode().getExceptionTableLength(); }
 
-  public int getPC() { return mPC; }
+  public int getPC() {
+    return mDecoded != null ? mDecoded.pcs[mIndex - 1] : mPC;
+  }
 
+  // set the bytecode offset of the next instruction, e.g. an exception handler, it's not a branch
   public void setPC(int pc) {
-    int offset = pc - mPC + 1; // offset OpCode
-    offsetPC(offset);
+    if (mDecoded != null) {
+      mIndex = mDecoded.indexOf(pc);
+      return;
+    }
+    moveTo(pc);
   }
 
-  public void offsetPC(int offset) {
-    int pc = mPC - 1;
-    if (offset < 0) {
-      try {
-        mCodeStream.reset();
-        offset = pc + offset;
-      } catch (IOException e) {
-        throw new RuntimeException("reset code stream failed", e);
+  // jump to a branch target decoded by InstructionFactory, a backward one is a backedge
+  public void jump(int target) {
+    if (mDecoded != null) {
+      if (target < mIndex) {
+        mCounters.backedge(mDecoded.pcs[target]);
       }
-    } else {
-      offset = offset - (mCodeStream.getPos() - mPC) - 1;
+      mIndex = target;
+      return;
     }
+    if (target <= mPC && mCounters.backedge(target) && !mTriedDecoded && getConfig().predecode) {
+      mTriedDecoded = true;
+      if (enterDecoded(target)) {
+        return;
+      }
+    }
+    moveTo(target);
+  }
+
+  private void moveTo(int pc) {
     try {
-      mCodeStream.skip(offset);
+      mCodeStream.reset();
+      mCodeStream.skip(pc);
     } catch (IOException e) {
-      throw new RuntimeException("offset PC exception", e);
+      throw new RuntimeException("jump to " + pc + " failed", e);
+    }
+  }
+
+  // move on the pre-decoded code at the loop head `pc', the frame has no place for the scalar
+  // replaced objects of the code, if any
+  private boolean enterDecoded(int pc) {
+    DecodedCode code = mClazz.getDecodedCode(mMethod, getCode());
+    if (code == null || code.extraLocals > 0 || code.extraStack > 0) {
+      return false;
+    }
+    if (Trace.FRAMES) {
+      logger.info(getName() + " enters pre-decoded code at " + pc);
     }
+    mDecoded = code;
+    mIndex = code.indexOf(pc);
+    return true;
   }
 
   public void dump() {
     logger.info("Dump frame ==> " + getName());
     logger.info("Local Variables:");
     String line = "";
-    for (Slot s : mLocals) {
-      if (s != null) { // `main' function
-        line = line + (s.toString() + " ");
-      }
+    for (int i = 0; i < mLocalInts.length; ++i) {
+      line = line + (slotToString(mLocalInts[i], mLocalRefs[i]) + " ");
     }
     logger.info(line);
     if (mStackPos > 0) {
       logger.info("Stack:");
       line = "";
       for (int i = 0; i < mStackPos; ++i) {
-        line = line + (mOperStacks[i].toString() + " ");
+        line = line + (slotToString(mStackInts[i], mStackRefs[i]) + " ");
       }
       logger.info(line);
     } else {
@@ -168,6 +363,13 @@ public class Frame {
     }
   }
 
+  private static String slotToString(int i, Object ref) {
+    if (ref == HANDLE) {
+      return String.format("#%d", i);
+    }
+    return ref == null ? String.format("0x%04x", i) : ref.toString();
+  }
+
   public String getName() {
     return mClazz.getNameInConstantPool(mMethod.getNameIndex());
   }
@@ -178,21 +380,36 @@ public class Frame {
     if (attr == null) {
       throw new RuntimeException("not found code attribute");
     }
-    mLocals = new Slot [attr.getMaxLocals()];
-    mOperStacks = new Slot [attr.getMaxStack()];
+    mCounters = mClazz.getCounters(mMethod, attr);
+    int tier = mCounters.invoke();
+    if (tier >= 1 && getConfig().predecode) {
+      mDecoded = mClazz.getDecodedCode(mMethod, attr);
+    }
+    // inlined methods keep their locals and operands after the method's own
+    int maxLocals = attr.getMaxLocals() + (mDecoded != null ? mDecoded.extraLocals : 0);
+    int maxStack = attr.getMaxStack() + (mDecoded != null ? mDecoded.extraStack : 0);
+    mLocalInts = new int [maxLocals];
+    mLocalRefs = new Object [maxLocals];
+    mStackInts = new int [maxStack];
+    mStackRefs = new Object [maxStack];
     mStackPos = 0;
-    mCodeStream = new PosDataInputStream(new PosByteArrayInputStream(attr.getCode()));
-    try {
-      mCodeStream.mark(mCodeStream.available()); // so that we can reset to the beginning
-    } catch (IOException e) {
-      logger.log(Level.SEVERE, null, e);
+    if (mDecoded == null) {
+      mOperands = new int[2];
+      mCodeStream = new PosDataInputStream(new PosByteArrayInputStream(attr.getCode()));
+      try {
+        mCodeStream.mark(mCodeStream.available()); // so that we can reset to the beginning
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, null, e);
+      }
+    }
+    if (tier == 2 && getConfig().jit) {
+      mJIT = mCounters.getCompiled(() -> tryByJIT(attr.getCode(), attr.getMaxLocals(), attr.getMaxStack()));
     }
-    tryByJIT(attr.getCode(), attr.getMaxLocals(), attr.getMaxStack());
   }
 
-  private void tryByJIT(final byte[] codes, int maxLocals, int maxStack) {
+  private ToyJIT tryByJIT(final byte[] codes, int maxLocals, int maxStack) {
     String descriptor = mClazz.getNameInConstantPool(mMethod.getDescriptorIndex());
-    mJIT = JITMethodFactory.compile(mClazz.getName(), getName(), descriptor, codes, maxLocals, maxStack,
+    return JITMethodFactory.compile(mClazz.getName(), getName(), descriptor, codes, maxLocals, maxStack,
         getArgsCount(), hasReturnType());
   }
 
@@ -206,17 +423,11 @@ public class Frame {
     return !descriptor.endsWith("V");
   }
 
-  private AttributeCode getCode() {
-    return (AttributeCode) getAttribute(AttributeInfo.TypeCode);
+  private VM.Config getConfig() {
+    return mClazz.getClassLoader().getConfig();
   }
 
-  private AttributeInfo getAttribute(String name) {
-    for (int i = 0; i < mMethod.getAttributesCount(); ++i) {
-      AttributeInfo attr = mMethod.getAttribute(i);
-      if (attr.getName().equals(name)) {
-        return attr;
-      }
-    }
-    return null;
+  private AttributeCode getCode() {
+    return Class.getCode(mMethod);
   }
 }
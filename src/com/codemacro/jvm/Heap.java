@@ -0,0 +1,422 @@
+package com.codemacro.jvm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * The guest heap, bounded by `-Xmx' with a young generation of `-Xmn'.
+ * Objects are still host objects (VObject, String and the primitive arrays), the heap accounts
+ * their guest size and decides which of them the VM keeps:
+ * <ul>
+ *   <li>the young generation is bump-pointer allocated, a minor GC traces it from the roots
+ *   and the remembered set, survivors are evacuated to the start of the young space and
+ *   promoted to the old generation after TENURE_AGE collections;</li>
+ *   <li>the old generation is collected by a full mark-compact when it's full.</li>
+ * </ul>
+ * The roots are the locals and operand stacks of the attached threads. Static fields are
+ * not supported by the interpreter yet, so classes contribute no roots.
+ * A thread allocates young objects in its Tlab, the chunks are carved from the young
+ * generation by a CAS. Large objects and the GC take the heap lock, a GC assumes the other
+ * threads are stopped.
+ * An allocation returns null when the heap is exhausted even after a full GC.
+ */
+public class Heap {
+  private static final Logger logger = Logger.getLogger(Heap.class.getName());
+  public static final long DEFAULT_MAX_SIZE = 64L << 20;
+  private static final int TENURE_AGE = 3;
+  private static final int OBJECT_ALIGN = 8;
+  private static final int HEADER_SIZE = 8;
+
+  private final long mMaxSize;
+  private final long mYoungSize;
+  // young generation objects handed by the TLABs, mYoungTop is the bump pointer of the chunks
+  private Object[] mYoung = new Object[1024];
+  private byte[] mAges = new byte[1024];
+  private int mYoungCount = 0;
+  private final AtomicLong mYoungTop = new AtomicLong();
+  private int mTlabSize;
+  private Object[] mOld = new Object[1024];
+  private int mOldCount = 0;
+  private long mOldUsed = 0;
+  // old objects which may refer to young objects, recorded by the write barrier
+  private List<VObject> mRemembered = new ArrayList<>();
+  private final List<Thread> mThreads = new ArrayList<>();
+
+  private long mDetachedAllocated = 0; // by the detached threads
+  private int mMinorCount = 0;
+  private int mMajorCount = 0;
+  private long mGCNanos = 0;
+
+  public Heap() {
+    this(DEFAULT_MAX_SIZE, 0);
+  }
+
+  // `youngSize' 0 takes 1/3 of the heap
+  public Heap(long maxSize, long youngSize) {
+    if (youngSize <= 0) {
+      youngSize = maxSize / 3;
+    }
+    if (youngSize >= maxSize) {
+      throw new IllegalArgumentException("young generation " + youngSize + " exceeds the heap " + maxSize);
+    }
+    mMaxSize = maxSize;
+    mYoungSize = youngSize;
+    setTlabSize(Tlab.DEFAULT_SIZE);
+  }
+
+  // a TLAB takes 1/8 of the young generation at most, 0 carves a chunk for each object
+  public void setTlabSize(int size) {
+    mTlabSize = (int) Math.min(size, mYoungSize / 8);
+  }
+
+  synchronized void attach(Thread thread) {
+    mThreads.add(thread);
+  }
+
+  synchronized void detach(Thread thread) {
+    retireTlabs();
+    mDetachedAllocated += thread.getTlab().getAllocatedBytes();
+    mThreads.remove(thread);
+  }
+
+  public VObject newObject(Tlab tlab, Class clazz) {
+    int size = align(HEADER_SIZE + 4 * (clazz.getIntFieldCount() + clazz.getRefFieldCount()));
+    VObject object = new VObject(clazz);
+    return allocate(tlab, object, size) ? object : null;
+  }
+
+  // a host primitive array, or a VObject of references for T_REF, null if the heap is exhausted
+  public Object newArray(Tlab tlab, int type, int length) {
+    long size = HEADER_SIZE + 4 + ((long) length << ArrayType.shift(type));
+    if (size > Math.min(mMaxSize, Integer.MAX_VALUE)) {
+      return null;
+    }
+    Object array;
+    switch (type) {
+      case ArrayType.T_BOOLEAN: case ArrayType.T_BYTE:
+        array = new byte[length];
+        break;
+      case ArrayType.T_CHAR:
+        array = new char[length];
+        break;
+      case ArrayType.T_SHORT:
+        array = new short[length];
+        break;
+      case ArrayType.T_INT:
+        array = new int[length];
+        break;
+      case ArrayType.T_FLOAT:
+        array = new float[length];
+        break;
+      case ArrayType.T_LONG:
+        array = new long[length];
+        break;
+      case ArrayType.T_DOUBLE:
+        array = new double[length];
+        break;
+      default:
+        array = new VObject(length);
+        break;
+    }
+    return allocate(tlab, array, align((int) size)) ? array : null;
+  }
+
+  // account a string created by the guest, returns null if the heap is exhausted
+  public String newString(Tlab tlab, String s) {
+    return allocate(tlab, s, sizeOf(s)) ? s : null;
+  }
+
+  /**
+   * Called when a reference is stored into `object', remembers an old object referring to
+   * an object which may be young.
+   */
+  public void writeBarrier(VObject object, Object ref) {
+    if (object.isOld() && !object.isRemembered() && ref != null
+        && !(ref instanceof VObject && ((VObject) ref).isOld())) {
+      remember(object);
+    }
+  }
+
+  private synchronized void remember(VObject object) {
+    if (!object.isRemembered()) {
+      object.setRemembered(true);
+      mRemembered.add(object);
+    }
+  }
+
+  public long getMaxSize() { return mMaxSize; }
+  public long getUsed() { return mYoungTop.get() + mOldUsed; }
+
+  public synchronized long getAllocated() {
+    long allocated = mDetachedAllocated;
+    for (Thread thread : mThreads) {
+      allocated += thread.getTlab().getAllocatedBytes();
+    }
+    return allocated;
+  }
+
+  public int getMinorCount() { return mMinorCount; }
+  public int getMajorCount() { return mMajorCount; }
+  public long getGCMillis() { return mGCNanos / 1000000; }
+
+  @Override
+  public String toString() {
+    return String.format("heap %dK/%dK (young %dK/%dK, old %dK/%dK), allocated %dK, " +
+        "%d minor GCs, %d full GCs, %d ms", getUsed() >> 10, mMaxSize >> 10, mYoungTop.get() >> 10,
+        mYoungSize >> 10, mOldUsed >> 10, oldSize() >> 10, getAllocated() >> 10, mMinorCount,
+        mMajorCount, getGCMillis());
+  }
+
+  private long oldSize() { return mMaxSize - mYoungSize; }
+
+  // bump `size' bytes in `tlab', refill it or collect if needed
+  private boolean allocate(Tlab tlab, Object object, int size) {
+    tlab.count(size);
+    if (size > mYoungSize / 2) { // large objects are allocated in the old generation directly
+      return allocateOld(object, size);
+    }
+    if (!tlab.tryBump(size)) {
+      if (!refill(tlab, size)) {
+        if (!collect() || !refill(tlab, size)) {
+          return false;
+        }
+      }
+      tlab.tryBump(size);
+    }
+    tlab.add(object);
+    return true;
+  }
+
+  // carve a new chunk for `tlab' without locking, the last chunk may be smaller than a TLAB
+  private boolean refill(Tlab tlab, int size) {
+    long chunk = Math.max(mTlabSize, size);
+    while (true) {
+      long top = mYoungTop.get();
+      long len = Math.min(chunk, mYoungSize - top);
+      if (len < size) {
+        return false;
+      }
+      if (mYoungTop.compareAndSet(top, top + len)) {
+        tlab.refill(top, len);
+        return true;
+      }
+    }
+  }
+
+  private synchronized boolean allocateOld(Object object, int size) {
+    if (mOldUsed + size > oldSize()) {
+      majorGC();
+    }
+    if (mOldUsed + size > oldSize()) {
+      return false;
+    }
+    promote(object, size);
+    return true;
+  }
+
+  // returns false if the old generation is still full
+  private synchronized boolean collect() {
+    minorGC();
+    if (mOldUsed > oldSize()) { // promoted too much
+      majorGC();
+    }
+    return mOldUsed <= oldSize();
+  }
+
+  // hand the objects of all the TLABs to the young generation
+  private void retireTlabs() {
+    for (Thread thread : mThreads) {
+      Tlab tlab = thread.getTlab();
+      tlab.retire();
+      if (mYoungCount + tlab.objectCount > mYoung.length) {
+        int len = Math.max(mYoungCount + tlab.objectCount, mYoung.length * 2);
+        mYoung = Arrays.copyOf(mYoung, len);
+        mAges = Arrays.copyOf(mAges, len);
+      }
+      System.arraycopy(tlab.objects, 0, mYoung, mYoungCount, tlab.objectCount);
+      Arrays.fill(mAges, mYoungCount, mYoungCount + tlab.objectCount, (byte) 0);
+      mYoungCount += tlab.objectCount;
+      tlab.clearObjects();
+    }
+  }
+
+  private void promote(Object object, int size) {
+    if (mOldCount == mOld.length) {
+      mOld = Arrays.copyOf(mOld, mOldCount * 2);
+    }
+    mOld[mOldCount++] = object;
+    mOldUsed += size;
+    if (object instanceof VObject) {
+      VObject vobj = (VObject) object;
+      vobj.setOld();
+      vobj.forEachRef((ref) -> writeBarrier(vobj, ref));
+    }
+  }
+
+  private void minorGC() {
+    long start = System.nanoTime();
+    long youngBefore = mYoungTop.get();
+    long oldBefore = mOldUsed;
+    retireTlabs();
+    IdentityHashMap<Object, Integer> young = new IdentityHashMap<>(mYoungCount * 2);
+    for (int i = 0; i < mYoungCount; ++i) {
+      young.put(mYoung[i], i);
+    }
+    boolean[] live = new boolean[mYoungCount];
+    ArrayDeque<Object> pending = new ArrayDeque<>();
+    Consumer<Object> mark = (ref) -> {
+      Integer idx = young.get(ref);
+      if (idx != null && !live[idx]) {
+        live[idx] = true;
+        pending.push(ref);
+      }
+    };
+    visitRoots(mark);
+    for (VObject object : mRemembered) {
+      object.forEachRef(mark);
+    }
+    drain(pending, mark);
+
+    List<VObject> remembered = mRemembered;
+    mRemembered = new ArrayList<>();
+    for (VObject object : remembered) {
+      object.setRemembered(false);
+    }
+    // evacuate the survivors, promote the old enough ones or the overflow
+    int count = 0;
+    long used = 0;
+    for (int i = 0; i < mYoungCount; ++i) {
+      if (!live[i]) {
+        continue;
+      }
+      Object object = mYoung[i];
+      int size = sizeOf(object);
+      int age = mAges[i] + 1;
+      if (age >= TENURE_AGE || used + size > mYoungSize / 2) {
+        promote(object, size);
+      } else {
+        mYoung[count] = object;
+        mAges[count++] = (byte) age;
+        used += size;
+      }
+    }
+    Arrays.fill(mYoung, count, mYoungCount, null);
+    mYoungCount = count;
+    mYoungTop.set(used);
+    for (VObject object : remembered) {
+      object.forEachRef((ref) -> writeBarrier(object, ref));
+    }
+    mMinorCount++;
+    long elapsed = System.nanoTime() - start;
+    mGCNanos += elapsed;
+    if (Trace.GC) {
+      logger.info(String.format("minor GC: young %dK->%dK, old %dK->%dK, %d us", youngBefore >> 10,
+          mYoungTop.get() >> 10, oldBefore >> 10, mOldUsed >> 10, elapsed / 1000));
+    }
+  }
+
+  // mark the whole heap, compact the old generation and promote all the young survivors
+  private void majorGC() {
+    long start = System.nanoTime();
+    long before = getUsed();
+    retireTlabs();
+    IdentityHashMap<Object, Boolean> marked = new IdentityHashMap<>();
+    ArrayDeque<Object> pending = new ArrayDeque<>();
+    Consumer<Object> mark = (ref) -> {
+      if (ref != null && marked.put(ref, Boolean.TRUE) == null) {
+        pending.push(ref);
+      }
+    };
+    visitRoots(mark);
+    drain(pending, mark);
+
+    int count = 0;
+    long used = 0;
+    for (int i = 0; i < mOldCount; ++i) { // slide the live objects down
+      Object object = mOld[i];
+      if (marked.containsKey(object)) {
+        mOld[count++] = object;
+        used += sizeOf(object);
+      }
+      if (object instanceof VObject) { // the young generation is emptied below
+        ((VObject) object).setRemembered(false);
+      }
+    }
+    Arrays.fill(mOld, count, mOldCount, null);
+    mOldCount = count;
+    mOldUsed = used;
+    mRemembered = new ArrayList<>();
+    for (int i = 0; i < mYoungCount; ++i) {
+      if (marked.containsKey(mYoung[i])) {
+        promote(mYoung[i], sizeOf(mYoung[i]));
+      }
+    }
+    Arrays.fill(mYoung, 0, mYoungCount, null);
+    mYoungCount = 0;
+    mYoungTop.set(0);
+    mMajorCount++;
+    long elapsed = System.nanoTime() - start;
+    mGCNanos += elapsed;
+    if (Trace.GC) {
+      logger.info(String.format("full GC: %dK->%dK, %d us", before >> 10, getUsed() >> 10,
+          elapsed / 1000));
+    }
+  }
+
+  private void visitRoots(Consumer<Object> visitor) {
+    for (Thread thread : mThreads) {
+      thread.forEachRef(visitor);
+    }
+  }
+
+  private static void drain(ArrayDeque<Object> pending, Consumer<Object> mark) {
+    while (!pending.isEmpty()) {
+      Object object = pending.pop();
+      if (object instanceof VObject) {
+        ((VObject) object).forEachRef(mark);
+      }
+    }
+  }
+
+  private static int sizeOf(Object object) {
+    if (object instanceof VObject) {
+      VObject vobj = (VObject) object;
+      if (vobj.isArray()) {
+        return align(HEADER_SIZE + 4 + 4 * vobj.getLength());
+      }
+      Class clazz = vobj.getClazz();
+      return align(HEADER_SIZE + 4 * (clazz.getIntFieldCount() + clazz.getRefFieldCount()));
+    }
+    if (object instanceof String) {
+      return align(HEADER_SIZE + 8 + 2 * ((String) object).length()); // header, length & chars
+    }
+    return align(HEADER_SIZE + 4 + arrayBytes(object)); // header, length & elements
+  }
+
+  private static int arrayBytes(Object array) {
+    if (array instanceof int[]) {
+      return 4 * ((int[]) array).length;
+    } else if (array instanceof byte[]) {
+      return ((byte[]) array).length;
+    } else if (array instanceof char[]) {
+      return 2 * ((char[]) array).length;
+    } else if (array instanceof long[]) {
+      return 8 * ((long[]) array).length;
+    } else if (array instanceof double[]) {
+      return 8 * ((double[]) array).length;
+    } else if (array instanceof float[]) {
+      return 4 * ((float[]) array).length;
+    }
+    return 2 * ((short[]) array).length;
+  }
+
+  private static int align(int size) {
+    return (size + OBJECT_ALIGN - 1) & ~(OBJECT_ALIGN - 1);
+  }
+}
@@ -2,15 +2,101 @@ package com.codemacro.jvm;
 
 import org.apache.commons.cli.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Function;
 
 /**
  * Created on 2017/2/23.
  */
 public class Main {
-  public static void run(String cp, String mainClass, VM.Config conf) {
+  // e.g. 64m, 512k or bytes
+  private static long parseSize(String s) {
+    int units = "kmg".indexOf(Character.toLowerCase(s.charAt(s.length() - 1))) + 1; // 0 for bytes
+    if (units > 0) {
+      s = s.substring(0, s.length() - 1);
+    }
+    return Long.parseLong(s) << (10 * units);
+  }
+
+  // `<invocations>[,<backedges>]', the backedges are `backedges' if not given
+  private static int[] parseThresholds(String s, int backedges) {
+    String[] parts = s.split(",");
+    return new int[] { Integer.parseInt(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : backedges };
+  }
+
+  // the VM options given on the command line, throws IllegalArgumentException on a bad one
+  private static VM.Config parseConfig(CommandLine line) {
+    VM.Config conf = new VM.Config();
+    for (String x : line.hasOption("X") ? line.getOptionValues("X") : new String[0]) {
+      if (x.startsWith("share:")) {
+        conf.share = VM.Share.valueOf(x.substring("share:".length()).toUpperCase());
+      } else if (x.startsWith("mx")) {
+        conf.heapMaxSize = parseSize(x.substring(2));
+      } else if (x.startsWith("mn")) {
+        conf.heapYoungSize = parseSize(x.substring(2));
+      } else if (x.startsWith("heap:")) {
+        String mode = x.substring("heap:".length());
+        if (!mode.equals("arena") && !mode.equals("objects")) {
+          throw new IllegalArgumentException("unknown heap mode:" + mode);
+        }
+        conf.arenaHeap = mode.equals("arena");
+      } else if (x.startsWith("tlab:")) {
+        conf.tlabSize = (int) parseSize(x.substring("tlab:".length()));
+      } else if (x.startsWith("tier1:")) {
+        int[] thresholds = parseThresholds(x.substring("tier1:".length()), conf.tier1Backedges);
+        conf.tier1Invocations = thresholds[0];
+        conf.tier1Backedges = thresholds[1];
+      } else if (x.startsWith("tier2:")) {
+        int[] thresholds = parseThresholds(x.substring("tier2:".length()), conf.tier2Backedges);
+        conf.tier2Invocations = thresholds[0];
+        conf.tier2Backedges = thresholds[1];
+      } else {
+        throw new IllegalArgumentException("unknown -X option:" + x);
+      }
+    }
+    if (line.hasOption("sharedarchive")) {
+      conf.sharedArchive = line.getOptionValue("sharedarchive");
+    }
+    if (line.hasOption("jit")) {
+      conf.jit = true;
+    }
+    if (line.hasOption("predecode")) {
+      conf.predecode = true;
+    }
+    if (line.hasOption("escape")) {
+      conf.escapeAnalysis = true;
+    }
+    if (line.hasOption("preload")) {
+      conf.preload = true;
+    }
+    if (line.hasOption("lazyparse")) {
+      conf.lazyParse = true;
+    }
+    if (line.hasOption("stackdepth")) {
+      conf.maxStackDepth = Integer.parseInt(line.getOptionValue("stackdepth"));
+    }
+    return conf;
+  }
+
+  public static void run(String cp, String mainClass, String[] args, VM.Config conf) {
     VM vm = new VM(cp.split(";|:"), conf);
-    vm.run(mainClass.replace('.', '/'));
+    vm.run(mainClass.replace('.', '/'), args);
+  }
+
+  // dump the classes in `classList' file if any, or those reachable from the main class
+  public static void dump(String cp, String mainClass, String classList, VM.Config conf) throws IOException {
+    List<String> classes = new ArrayList<>();
+    if (classList != null) {
+      classes.addAll(SharedArchive.parseClassList(Files.readAllLines(Paths.get(classList))));
+    }
+    if (mainClass != null) {
+      classes.add(mainClass.replace('.', '/'));
+    }
+    new VM(cp.split(";|:"), conf).dumpSharedArchive(classes);
   }
 
   public static void main(String[] args) {
@@ -18,30 +104,55 @@ public class Main {
     Options options = new Options();
     options.addOption("cp", "classpath", true, "specify class path" );
     options.addOption("jit", "jit", false, "enable jit" );
+    options.addOption("predecode", "predecode", false, "run on pre-decoded instructions" );
+    options.addOption("escape", "escape", false, "scalar replace objects not escaping pre-decoded methods" );
+    options.addOption("preload", "preload", false, "parse referenced classes in parallel before running" );
+    options.addOption("lazyparse", "lazyparse", false, "decode class file entries on first access" );
+    options.addOption("stackdepth", "stackdepth", true, "max frames of a thread" );
+    options.addOption("trace", "trace", true, "trace categories: dispatch,frames,classload,natives,gc,profile,exceptions,decode,all" );
+    options.addOption("X", true, "share:dump|on|off, class data sharing; mx<size>, max heap size; " +
+        "mn<size>, young generation size; heap:arena|objects, guest objects off-heap or as host objects; " +
+        "tlab:<size>, thread-local allocation buffer size, 0 to disable; tier1:<invocations>[,<backedges>], " +
+        "before a method runs pre-decoded; tier2:<invocations>[,<backedges>], before it's compiled" );
+    options.addOption("sharedarchive", "sharedarchive", true, "shared archive file, " + SharedArchive.DEFAULT_FILE + " by default" );
+    options.addOption("sharedclasslist", "sharedclasslist", true, "file of class names to dump" );
     options.addOption("h", "help", false, "print this message" );
     Function<Void, Integer> pHelp = (v) -> {
       HelpFormatter formatter = new HelpFormatter();
       formatter.printHelp( "jvm", options);
       return -1;
     };
+    CommandLine line;
+    VM.Config conf;
+    try {
+      line = parser.parse(options, args, true); // the arguments after the main class are its own
+      conf = parseConfig(line);
+    } catch(ParseException | IllegalArgumentException exp) {
+      System.err.println(exp.getMessage());
+      pHelp.apply(null);
+      return;
+    }
     try {
       String cp = "";
-      CommandLine line = parser.parse(options, args);
       if( line.hasOption("classpath")) {
         cp = line.getOptionValue("classpath");
       }
-      if (line.getArgList().size() == 0) {
+      String mainClass = line.getArgList().size() > 0 ? line.getArgList().get(0) : null;
+      if (conf.share == VM.Share.DUMP) {
+        dump(cp, mainClass, line.getOptionValue("sharedclasslist"), conf);
+        return;
+      }
+      if (mainClass == null) {
         pHelp.apply(null);
         return;
       }
-      VM.Config conf = new VM.Config();
-      if (line.hasOption("jit")) {
-        conf.jit = true;
+      if (line.hasOption("trace")) { // before any Trace flag is read
+        System.setProperty(Trace.PROPERTY, line.getOptionValue("trace"));
       }
-      String mainClass = line.getArgList().get(0);
-      run(cp, mainClass, conf);
-    } catch(ParseException exp) {
-      pHelp.apply(null);
+      List<String> argList = line.getArgList();
+      run(cp, mainClass, argList.subList(1, argList.size()).toArray(new String[0]), conf);
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
     }
   }
 }
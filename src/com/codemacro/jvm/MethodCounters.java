@@ -0,0 +1,77 @@
+package com.codemacro.jvm;
+
+import com.codemacro.jvm.jit.ToyJIT;
+
+import java.util.function.Supplier;
+
+/**
+ * The invocation and backedge counters of a method, driving tiered execution: tier 0 runs the
+ * code stream, tier 1 the pre-decoded code (with -predecode) and tier 2 the JIT compiled code
+ * (with -jit). A method moves up a tier on the invocation after its invocations or the
+ * backward branches taken in it reach the thresholds of the tier. A frame looping on the code
+ * stream moves to the pre-decoded code at the loop head whose own backedges reach the tier 1
+ * threshold. The counters saturate instead of wrapping around.
+ */
+public class MethodCounters {
+  public static final int DEFAULT_TIER1_INVOCATIONS = 2;
+  public static final int DEFAULT_TIER1_BACKEDGES = 1000;
+  public static final int DEFAULT_TIER2_INVOCATIONS = 1000;
+  public static final int DEFAULT_TIER2_BACKEDGES = 20000;
+
+  private final VM.Config mConf; // the thresholds of the tiers
+  private int mInvocations = 0;
+  private int mBackedges = 0;
+  private final int[] mLoops; // backedges taken to each loop head, by its bytecode offset
+  private boolean mCompiled = false; // tried to compile, it's not tried again if it failed
+  private ToyJIT mJIT = null;
+
+  MethodCounters(int codeLength, VM.Config conf) {
+    mLoops = new int[codeLength];
+    mConf = conf;
+  }
+
+  // counts an invocation, returns the tier it runs at, by the counts before it
+  int invoke() {
+    int tier = reached(mConf.tier2Invocations, mConf.tier2Backedges) ? 2
+        : reached(mConf.tier1Invocations, mConf.tier1Backedges) ? 1 : 0;
+    mInvocations = increment(mInvocations);
+    return tier;
+  }
+
+  // counts a backward branch to `loopPc', returns true if the loop is hot for tier 1
+  boolean backedge(int loopPc) {
+    mBackedges = increment(mBackedges);
+    mLoops[loopPc] = increment(mLoops[loopPc]);
+    return mLoops[loopPc] >= mConf.tier1Backedges;
+  }
+
+  // the compiled code, compiled by `compiler' on the first invocation at tier 2
+  ToyJIT getCompiled(Supplier<ToyJIT> compiler) {
+    if (!mCompiled) {
+      mCompiled = true;
+      mJIT = compiler.get();
+    }
+    return mJIT;
+  }
+
+  private boolean reached(int invocations, int backedges) {
+    return mInvocations >= invocations || mBackedges >= backedges;
+  }
+
+  private static int increment(int count) {
+    return count < Integer.MAX_VALUE ? count + 1 : count;
+  }
+
+  public int getInvocations() { return mInvocations; }
+  public int getBackedges() { return mBackedges; }
+
+  @Override
+  public String toString() {
+    int loops = 0;
+    for (int count : mLoops) {
+      loops += count > 0 ? 1 : 0;
+    }
+    return String.format("%d invocations, %d backedges in %d loops%s", mInvocations, mBackedges, loops,
+        mJIT != null ? ", compiled" : mCompiled ? ", not compiled" : "");
+  }
+}
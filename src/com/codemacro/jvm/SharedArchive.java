@@ -0,0 +1,437 @@
+package com.codemacro.jvm;
+
+import org.freeinternals.format.FileFormatException;
+import org.freeinternals.format.classfile.AbstractCPInfo;
+import org.freeinternals.format.classfile.ClassFile;
+import org.freeinternals.format.classfile.ConstantUtf8Info;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Class data sharing archive. `-Xshare:dump' loads the classes of a class list and those they
+ * reference, and writes what loading them computed: the offsets found by the lazy scan of each
+ * class file, its Utf8 constants interned into one symbol table, and its instance field, vtable
+ * and itable layouts, along with the class file image. `-Xshare:on' maps the archive read-only.
+ * A class found in it is decoded lazily from the mapping without a scan, its Utf8 constants are
+ * preset to the archived symbols, and it is linked with the archived layouts when its super
+ * class and interfaces were linked with theirs.
+ * The layout:
+ * <pre>
+ *   u4 magic, u4 version, utf class path, { u8 size, u8 mtime } [path entries]
+ *   u4 symbol count, u4 class count, u4 symbols length, u4 classes length
+ *   { u4 offset } [symbol count], { utf name, u4 offset } [class count]
+ *   symbols: { u2 length, Utf8 bytes }
+ *   classes: { u2 path entry, u8 size, u8 mtime, u4 image offset, u4 image length,
+ *              u4 count, { u4 scan offset } [count], u2 count, { u2 cp index, u4 symbol } [count],
+ *              u4 int fields, u4 ref fields, u4 slots, u2 count, { u4 ref slot } [count],
+ *              u2 count, { u4 name symbol, u4 offset, u4 slot, u1 ref | wide << 1 } [count],
+ *              u2 count, { u4 vtable source } [count], u2 count, { u4 interface symbol } [count],
+ *              u2 count, { u2 count, { u2 vtable slot } [count] } [count] }
+ *   class file images
+ * </pre>
+ * The archive is not used if it was dumped with another class path or an archive on the class
+ * path changed since. A class is taken from the class path instead if its class file changed
+ * or another path entry has it now.
+ */
+public class SharedArchive {
+  private static final Logger logger = Logger.getLogger(SharedArchive.class.getName());
+  private static final int MAGIC = 0x544a5341; // TJSA
+  private static final int VERSION = 2;
+  public static final String DEFAULT_FILE = "toyjvm.jsa";
+
+  /**
+   * The instance field, vtable and itable layouts of a class, as Class computes them when linking.
+   */
+  static class Layout {
+    // a vtable source is the method index in the class, INHERITED for the super class's slot,
+    // or an interface index and slot in the interface's vtable
+    static final int INHERITED = -1;
+    int intFieldCount;
+    int refFieldCount;
+    int slotCount;
+    int[] refSlots;
+    Symbol[] fieldNames; // the instance fields declared by the class
+    Class.Field[] fields;
+    int[] vtable;
+    Symbol[] interfaces; // all the interfaces implemented
+    int[][] itables; // the vtable slot of each interface slot
+
+    static int fromInterface(int iface, int slot) { return -2 - (iface << 16 | slot); }
+    static int interfaceOf(int source) { return (-2 - source) >>> 16; }
+    static int interfaceSlotOf(int source) { return (-2 - source) & 0xffff; }
+  }
+
+  /**
+   * A class found in the archive.
+   */
+  class ArchivedClass {
+    private final ClassFile mCF;
+    private final ByteBuffer mRecord; // positioned at the symbols of the class
+
+    private ArchivedClass(ClassFile cf, ByteBuffer record) {
+      mCF = cf;
+      mRecord = record;
+    }
+
+    ClassFile getClassFile() { return mCF; }
+
+    // preset the Utf8 constants of `clazz' to the archived symbols
+    void presetSymbols(Class clazz) {
+      ByteBuffer in = mRecord.duplicate();
+      for (int i = in.getShort() & 0xffff; i > 0; --i) {
+        int idx = in.getShort() & 0xffff;
+        clazz.presetSymbol(idx, symbol(in.getInt()));
+      }
+    }
+
+    Layout getLayout() {
+      ByteBuffer in = mRecord.duplicate();
+      in.position(in.position() + 2 + (in.getShort(in.position()) & 0xffff) * 6);
+      Layout layout = new Layout();
+      layout.intFieldCount = in.getInt();
+      layout.refFieldCount = in.getInt();
+      layout.slotCount = in.getInt();
+      layout.refSlots = new int[in.getShort() & 0xffff];
+      for (int i = 0; i < layout.refSlots.length; ++i) {
+        layout.refSlots[i] = in.getInt();
+      }
+      int count = in.getShort() & 0xffff;
+      layout.fieldNames = new Symbol[count];
+      layout.fields = new Class.Field[count];
+      for (int i = 0; i < count; ++i) {
+        layout.fieldNames[i] = symbol(in.getInt());
+        int offset = in.getInt();
+        int slot = in.getInt();
+        int flags = in.get();
+        layout.fields[i] = new Class.Field(offset, slot, (flags & 1) != 0, (flags & 2) != 0);
+      }
+      layout.vtable = new int[in.getShort() & 0xffff];
+      for (int i = 0; i < layout.vtable.length; ++i) {
+        layout.vtable[i] = in.getInt();
+      }
+      layout.interfaces = new Symbol[in.getShort() & 0xffff];
+      for (int i = 0; i < layout.interfaces.length; ++i) {
+        layout.interfaces[i] = symbol(in.getInt());
+      }
+      layout.itables = new int[in.getShort() & 0xffff][];
+      for (int i = 0; i < layout.itables.length; ++i) {
+        layout.itables[i] = new int[in.getShort() & 0xffff];
+        for (int slot = 0; slot < layout.itables[i].length; ++slot) {
+          layout.itables[i][slot] = in.getShort() & 0xffff;
+        }
+      }
+      return layout;
+    }
+  }
+
+  private final ClassPath mCP;
+  private final MappedByteBuffer mBuffer;
+  private final int[] mSymbolOffsets;
+  private final AtomicReferenceArray<Symbol> mSymbols; // interned on first use
+  private final Map<String, Integer> mIndex; // class name -> offset of its record
+  private final int mImageBase;
+
+  private SharedArchive(ClassPath cp, MappedByteBuffer buffer, int[] symbolOffsets, Map<String, Integer> index,
+                        int imageBase) {
+    mCP = cp;
+    mBuffer = buffer;
+    mSymbolOffsets = symbolOffsets;
+    mSymbols = new AtomicReferenceArray<>(symbolOffsets.length);
+    mIndex = index;
+    mImageBase = imageBase;
+  }
+
+  /**
+   * Dump `classes' and the classes they reference transitively, loaded and linked by `loader',
+   * returns the number of classes.
+   */
+  public static int dump(ClassPath cp, ClassLoader loader, List<String> classes, String file) throws IOException {
+    Map<String, Class> loaded = new LinkedHashMap<>();
+    Set<String> visited = new HashSet<>();
+    Deque<String> pending = new ArrayDeque<>(classes);
+    while (!pending.isEmpty()) {
+      String name = pending.poll();
+      if (!visited.add(name)) {
+        continue;
+      }
+      Class clazz;
+      try {
+        clazz = loader.loadClass(name);
+      } catch (RuntimeException e) {
+        logger.warning("skip class " + name + ": " + e.getMessage());
+        continue;
+      }
+      if (clazz == null) { // e.g. java/lang/Object
+        continue;
+      }
+      loaded.put(name, clazz); // the super class and interfaces are referenced too
+      pending.addAll(ClassPreloader.referencedClasses(clazz.getClassFile()));
+    }
+    Map<Symbol, Integer> symbolIds = new LinkedHashMap<>();
+    ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+    Map<String, Integer> offsets = new LinkedHashMap<>();
+    for (Map.Entry<String, Class> e : loaded.entrySet()) {
+      String name = e.getKey();
+      byte[] image = cp.readClassBytes(name);
+      ClassFile scanned;
+      try {
+        scanned = new ClassFile(ByteBuffer.wrap(image), true);
+      } catch (FileFormatException ex) {
+        logger.warning("skip invalid class " + name + ": " + ex.getMessage());
+        continue;
+      }
+      offsets.put(name, classBytes.size());
+      DataOutputStream out = new DataOutputStream(classBytes);
+      int pathIdx = cp.findEntry(name);
+      long[] stamp = cp.stampOf(pathIdx, name);
+      out.writeShort(pathIdx);
+      out.writeLong(stamp[0]);
+      out.writeLong(stamp[1]);
+      out.writeInt(imageBytes.size());
+      out.writeInt(image.length);
+      imageBytes.write(image);
+      writeClass(out, scanned, e.getValue().saveLayout(), symbolIds);
+    }
+    ByteArrayOutputStream symbolBytes = new ByteArrayOutputStream();
+    DataOutputStream symbols = new DataOutputStream(symbolBytes);
+    int[] symbolOffsets = new int[symbolIds.size()];
+    int i = 0;
+    for (Symbol symbol : symbolIds.keySet()) {
+      symbolOffsets[i++] = symbolBytes.size();
+      symbols.writeShort(symbol.length());
+      for (int j = 0; j < symbol.length(); ++j) {
+        symbols.writeByte(symbol.byteAt(j));
+      }
+    }
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(classPathKey(cp));
+      for (int pathIdx = 0; pathIdx < cp.getPathList().length; ++pathIdx) {
+        long[] stamp = archiveStamp(cp, pathIdx);
+        out.writeLong(stamp[0]);
+        out.writeLong(stamp[1]);
+      }
+      out.writeInt(symbolOffsets.length);
+      out.writeInt(offsets.size());
+      out.writeInt(symbolBytes.size());
+      out.writeInt(classBytes.size());
+      for (int offset : symbolOffsets) {
+        out.writeInt(offset);
+      }
+      for (Map.Entry<String, Integer> e : offsets.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeInt(e.getValue());
+      }
+      symbolBytes.writeTo(out);
+      classBytes.writeTo(out);
+      imageBytes.writeTo(out);
+    }
+    return offsets.size();
+  }
+
+  private static void writeClass(DataOutputStream out, ClassFile scanned, Layout layout,
+                                 Map<Symbol, Integer> symbolIds) throws IOException {
+    int[] scanOffsets = scanned.getScanOffsets();
+    out.writeInt(scanOffsets.length);
+    for (int offset : scanOffsets) {
+      out.writeInt(offset);
+    }
+    List<Integer> utf8s = new ArrayList<>();
+    for (int i = 1; i < scanned.getCPCount().getValue(); ++i) {
+      if (scanned.getCPTag(i) == AbstractCPInfo.CONSTANT_Utf8) {
+        utf8s.add(i);
+      }
+    }
+    out.writeShort(utf8s.size());
+    for (int idx : utf8s) {
+      byte[] bytes = ((ConstantUtf8Info) scanned.getCPInfo(idx)).getBytes();
+      out.writeShort(idx);
+      out.writeInt(symbolId(Symbol.intern(bytes, 0, bytes.length), symbolIds));
+    }
+    out.writeInt(layout.intFieldCount);
+    out.writeInt(layout.refFieldCount);
+    out.writeInt(layout.slotCount);
+    out.writeShort(layout.refSlots.length);
+    for (int slot : layout.refSlots) {
+      out.writeInt(slot);
+    }
+    out.writeShort(layout.fields.length);
+    for (int i = 0; i < layout.fields.length; ++i) {
+      Class.Field field = layout.fields[i];
+      out.writeInt(symbolId(layout.fieldNames[i], symbolIds));
+      out.writeInt(field.offset);
+      out.writeInt(field.slot);
+      out.writeByte((field.isRef ? 1 : 0) | (field.isWide ? 2 : 0));
+    }
+    out.writeShort(layout.vtable.length);
+    for (int source : layout.vtable) {
+      out.writeInt(source);
+    }
+    out.writeShort(layout.interfaces.length);
+    for (Symbol iface : layout.interfaces) {
+      out.writeInt(symbolId(iface, symbolIds));
+    }
+    out.writeShort(layout.itables.length);
+    for (int[] itable : layout.itables) {
+      out.writeShort(itable.length);
+      for (int slot : itable) {
+        out.writeShort(slot);
+      }
+    }
+  }
+
+  private static int symbolId(Symbol symbol, Map<Symbol, Integer> symbolIds) {
+    return symbolIds.computeIfAbsent(symbol, k -> symbolIds.size());
+  }
+
+  /**
+   * Map an archive, returns null if it's missing, invalid, or the class path changed since it was
+   * dumped.
+   */
+  public static SharedArchive open(ClassPath cp, String file) {
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        logger.warning("invalid shared archive:" + file);
+        return null;
+      }
+      if (!readUTF(buffer).equals(classPathKey(cp))) {
+        logger.warning("shared archive " + file + " was dumped with another class path");
+        return null;
+      }
+      for (int pathIdx = 0; pathIdx < cp.getPathList().length; ++pathIdx) {
+        long[] stamp = archiveStamp(cp, pathIdx);
+        long size = buffer.getLong();
+        long mtime = buffer.getLong();
+        if (size != stamp[0] || mtime != stamp[1]) {
+          logger.warning("shared archive " + file + " is stale, " + cp.getPathList()[pathIdx] + " changed");
+          return null;
+        }
+      }
+      int[] symbolOffsets = new int[buffer.getInt()];
+      int count = buffer.getInt();
+      int symbolsLength = buffer.getInt();
+      int classesLength = buffer.getInt();
+      for (int i = 0; i < symbolOffsets.length; ++i) {
+        symbolOffsets[i] = buffer.getInt();
+      }
+      Map<String, Integer> index = new HashMap<>(count * 2);
+      for (int i = 0; i < count; ++i) {
+        String name = readUTF(buffer);
+        index.put(name, buffer.getInt());
+      }
+      int base = buffer.position();
+      for (int i = 0; i < symbolOffsets.length; ++i) {
+        symbolOffsets[i] += base;
+      }
+      int classBase = base + symbolsLength;
+      index.replaceAll((name, offset) -> offset + classBase);
+      return new SharedArchive(cp, buffer, symbolOffsets, index, classBase + classesLength);
+    } catch (IOException e) {
+      logger.warning("open shared archive failed: " + e.getMessage());
+    }
+    return null;
+  }
+
+  // returns null if the class is not in the archive or its class file changed
+  ArchivedClass load(String fullName) {
+    Integer offset = mIndex.get(fullName);
+    if (offset == null) {
+      return null;
+    }
+    ByteBuffer record = mBuffer.duplicate();
+    record.position(offset);
+    int pathIdx = record.getShort() & 0xffff;
+    long size = record.getLong();
+    long mtime = record.getLong();
+    if (mCP.findEntry(fullName) != pathIdx || !ClassPath.isArchive(mCP.getPathList()[pathIdx])
+        && !Arrays.equals(mCP.stampOf(pathIdx, fullName), new long[] { size, mtime })) {
+      logger.warning("class " + fullName + " changed since the shared archive was dumped");
+      return null;
+    }
+    ByteBuffer image = mBuffer.duplicate();
+    image.position(mImageBase + record.getInt());
+    image.limit(image.position() + record.getInt());
+    int[] scanOffsets = new int[record.getInt()];
+    for (int i = 0; i < scanOffsets.length; ++i) {
+      scanOffsets[i] = record.getInt();
+    }
+    try {
+      ClassFile cf = new ClassFile(image, scanOffsets);
+      if (Trace.CLASSLOAD) {
+        logger.info("loaded class " + fullName + " from shared archive");
+      }
+      return new ArchivedClass(cf, record.slice());
+    } catch (IOException | FileFormatException e) {
+      logger.severe("load " + fullName + " from shared archive failed: " + e.getMessage());
+    }
+    return null;
+  }
+
+  private Symbol symbol(int id) {
+    Symbol symbol = mSymbols.get(id);
+    if (symbol == null) {
+      ByteBuffer in = mBuffer.duplicate();
+      in.position(mSymbolOffsets[id]);
+      byte[] bytes = new byte[in.getShort() & 0xffff];
+      in.get(bytes);
+      symbol = Symbol.intern(bytes, 0, bytes.length);
+      mSymbols.set(id, symbol);
+    }
+    return symbol;
+  }
+
+  public int size() { return mIndex.size(); }
+
+  private static String classPathKey(ClassPath cp) {
+    return String.join(";", cp.getPathList());
+  }
+
+  // the archives on the class path are checked when the shared archive is opened, the
+  // directories for each class loaded
+  private static long[] archiveStamp(ClassPath cp, int pathIdx) {
+    return ClassPath.isArchive(cp.getPathList()[pathIdx]) ? cp.stampOf(pathIdx, null) : new long[2];
+  }
+
+  // same format as DataOutputStream.writeUTF for the ASCII class names
+  private static String readUTF(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort() & 0xffff];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  public static List<String> parseClassList(List<String> lines) {
+    List<String> classes = new ArrayList<>();
+    for (String line : lines) {
+      line = line.trim();
+      if (!line.isEmpty() && !line.startsWith("#")) {
+        classes.add(line.replace('.', '/'));
+      }
+    }
+    return classes;
+  }
+}
@@ -0,0 +1,111 @@
+package com.codemacro.jvm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An interned CONSTANT_Utf8 value, e.g. a class, method or field name, or a descriptor.
+ * Every Utf8 constant of every loaded class is interned into one VM-wide table, so the same
+ * name is kept once and names are compared by identity. The hash is computed when interning.
+ * Symbols are never freed, the table only grows with the names of the loaded classes.
+ */
+public final class Symbol {
+  private static final int INITIAL_CAPACITY = 4096;
+  private static Symbol[] sTable = new Symbol[INITIAL_CAPACITY];
+  private static int sCount = 0;
+
+  public static final Symbol INIT = intern("<init>");
+  public static final Symbol CLINIT = intern("<clinit>");
+  public static final Symbol MAIN = intern("main");
+  public static final Symbol VOID_METHOD = intern("()V");
+  public static final Symbol MAIN_METHOD = intern("([Ljava/lang/String;)V");
+  public static final Symbol THROWABLE = intern("java/lang/Throwable");
+
+  private final byte[] mBytes;
+  private final int mHash;
+  private Symbol mNext; // chained in the same bucket
+  private String mString = null;
+
+  private Symbol(byte[] bytes, int hash) {
+    mBytes = bytes;
+    mHash = hash;
+  }
+
+  public static Symbol intern(String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    return intern(bytes, 0, bytes.length);
+  }
+
+  // `bytes' is copied if a new symbol is created
+  public static Symbol intern(byte[] bytes, int off, int len) {
+    int hash = hash(bytes, off, len);
+    synchronized (Symbol.class) {
+      int idx = hash & (sTable.length - 1);
+      for (Symbol s = sTable[idx]; s != null; s = s.mNext) {
+        if (s.mHash == hash && s.equalsBytes(bytes, off, len)) {
+          return s;
+        }
+      }
+      Symbol s = new Symbol(Arrays.copyOfRange(bytes, off, off + len), hash);
+      s.mNext = sTable[idx];
+      sTable[idx] = s;
+      if (++sCount > sTable.length * 3 / 4) {
+        rehash();
+      }
+      return s;
+    }
+  }
+
+  public static synchronized int count() { return sCount; }
+
+  private static void rehash() {
+    Symbol[] table = new Symbol[sTable.length * 2];
+    for (Symbol head : sTable) {
+      for (Symbol s = head; s != null; ) {
+        Symbol next = s.mNext;
+        int idx = s.mHash & (table.length - 1);
+        s.mNext = table[idx];
+        table[idx] = s;
+        s = next;
+      }
+    }
+    sTable = table;
+  }
+
+  private static int hash(byte[] bytes, int off, int len) {
+    int h = 0;
+    for (int i = off; i < off + len; ++i) {
+      h = 31 * h + bytes[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private boolean equalsBytes(byte[] bytes, int off, int len) {
+    if (mBytes.length != len) {
+      return false;
+    }
+    for (int i = 0; i < len; ++i) {
+      if (mBytes[i] != bytes[off + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int length() { return mBytes.length; }
+
+  public byte byteAt(int i) { return mBytes[i]; }
+
+  // symbols are equal only if identical
+  @Override
+  public int hashCode() { return mHash; }
+
+  @Override
+  public String toString() {
+    String s = mString;
+    if (s == null) {
+      s = mString = new String(mBytes, StandardCharsets.UTF_8);
+    }
+    return s;
+  }
+}
@@ -2,8 +2,9 @@ package com.codemacro.jvm;
 
 import org.freeinternals.format.classfile.MethodInfo;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
 import java.util.logging.Logger;
 
 /**
@@ -11,43 +12,140 @@ import java.util.logging.Logger;
  */
 public class Thread {
   private static Logger logger = Logger.getLogger(Thread.class.getName());
-  private List<Frame> mFrames;
+  public static final int DEFAULT_MAX_DEPTH = 10000;
+  private Frame[] mFrames;
+  private int mDepth = 0;
+  private final int mMaxDepth;
+  private final Heap mHeap;
+  private final Arena mArena; // objects are allocated in the arena if not null
+  private final Tlab mTlab = new Tlab();
 
   public Thread() {
-    mFrames = new LinkedList<>();
+    this(DEFAULT_MAX_DEPTH);
   }
 
-  public void run(final Class clazz, final MethodInfo method) {
-    Frame frame = new Frame(this, clazz, method);
-    pushFrame(frame);
-    while (!mFrames.isEmpty()) {
-      topFrame().run();
+  // the thread allocates in a heap of its own
+  public Thread(int maxDepth) {
+    this(maxDepth, new Heap());
+  }
+
+  public Thread(int maxDepth, Heap heap) {
+    this(maxDepth, heap, null);
+  }
+
+  public Thread(int maxDepth, Heap heap, Arena arena) {
+    mMaxDepth = maxDepth;
+    mFrames = new Frame[Math.min(maxDepth, 64)];
+    mHeap = heap;
+    mArena = arena;
+    heap.attach(this);
+    if (arena != null) {
+      arena.attach(this);
+    }
+  }
+
+  public Heap getHeap() { return mHeap; }
+  public Arena getArena() { return mArena; }
+  public Tlab getTlab() { return mTlab; }
+
+  // the references on the stack, GC roots
+  void forEachRef(Consumer<Object> visitor) {
+    for (int i = 0; i < mDepth; ++i) {
+      mFrames[i].forEachRef(visitor);
     }
   }
 
+  void updateHandles(IntUnaryOperator update) {
+    for (int i = 0; i < mDepth; ++i) {
+      mFrames[i].updateHandles(update);
+    }
+  }
+
+  // run the main method, `args' are its String[] argument
+  public void run(final Class clazz, final MethodInfo method, String[] args) {
+    Frame frame = new Frame(this, clazz, method);
+    int depth = mDepth;
+    pushFrame(frame); // the array is a root while the strings are allocated
+    storeArgs(frame, args);
+    runFrom(depth);
+  }
+
   public void runToEnd(Frame startFrame) {
+    int depth = mDepth;
     pushFrame(startFrame);
-    while (frameExist(startFrame)) {
-      topFrame().run();
+    runFrom(depth);
+  }
+
+  private void runFrom(int depth) {
+    while (mDepth > depth) { // until the start frame popped
+      mFrames[mDepth - 1].run();
+    }
+  }
+
+  private void storeArgs(Frame frame, String[] args) {
+    if (mArena != null) {
+      int h = mArena.newArray(mTlab, ArrayType.T_REF, args.length);
+      frame.storeLocalHandle(0, h);
+      for (int i = 0; i < args.length && h != 0; ++i) {
+        int s = mArena.newString(mTlab, args[i]);
+        h = frame.loadLocal(0); // moved if collected
+        if (s == 0) {
+          h = 0;
+        } else {
+          mArena.storeInt(h, i, s);
+        }
+      }
+      if (h == 0) {
+        throw new RuntimeException("guest heap exhausted by the main arguments");
+      }
+      return;
+    }
+    VObject array = (VObject) mHeap.newArray(mTlab, ArrayType.T_REF, args.length);
+    if (array == null) {
+      throw new RuntimeException("guest heap exhausted by the main arguments");
+    }
+    frame.storeLocal(0, array);
+    for (int i = 0; i < args.length; ++i) {
+      String s = mHeap.newString(mTlab, args[i]);
+      if (s == null) {
+        throw new RuntimeException("guest heap exhausted by the main arguments");
+      }
+      array.setRef(i, s);
+      mHeap.writeBarrier(array, s);
     }
   }
 
   public void pushFrame(Frame frame) {
-    logger.info("push frame:" + frame.getName());
-    mFrames.add(frame);
+    if (Trace.FRAMES) {
+      logger.info("push frame:" + frame.getName());
+    }
+    if (mDepth == mFrames.length) {
+      if (mDepth >= mMaxDepth) {
+        throw new StackOverflowError("guest stack depth exceeds " + mMaxDepth);
+      }
+      mFrames = Arrays.copyOf(mFrames, Math.min(mMaxDepth, mDepth * 2));
+    }
+    mFrames[mDepth++] = frame;
   }
 
   public void popFrame() {
-    Frame frame = mFrames.remove(mFrames.size() - 1);
-    logger.info("pop frame:" + frame.getName());
-    frame.dump();
+    Frame frame = mFrames[--mDepth];
+    mFrames[mDepth] = null;
+    if (Trace.FRAMES) {
+      logger.info("pop frame:" + frame.getName());
+      frame.dump();
+    }
   }
 
   public Frame topFrame() {
-    return mFrames.isEmpty() ? null : mFrames.get(mFrames.size() - 1);
+    return mDepth == 0 ? null : mFrames[mDepth - 1];
+  }
+
+  public boolean isStackFull() {
+    return mDepth >= mMaxDepth;
   }
 
-  public boolean frameExist(Frame frame) {
-    return mFrames.lastIndexOf(frame) >= 0;
+  public int getDepth() {
+    return mDepth;
   }
 }
@@ -0,0 +1,75 @@
+package com.codemacro.jvm;
+
+import java.util.Arrays;
+
+/**
+ * A thread-local allocation buffer, a chunk of the young generation of Heap or of the Arena owned
+ * by one thread. Objects are bump-pointer allocated in it without synchronization, a new chunk is
+ * carved from the shared space by a CAS when it's full.
+ * The host objects allocated by Heap are kept in the TLAB until the next GC hands them to the
+ * young generation.
+ */
+public class Tlab {
+  public static final int DEFAULT_SIZE = 32 << 10;
+
+  // [top, end) is free, a Heap byte count or an Arena offset
+  long top = 0;
+  long end = 0;
+  Object[] objects = new Object[64];
+  int objectCount = 0;
+
+  private long mAllocatedBytes = 0;
+  private long mAllocatedObjects = 0;
+  private int mRefills = 0;
+  private long mWasted = 0;
+
+  boolean tryBump(int size) {
+    if (top + size > end) {
+      return false;
+    }
+    top += size;
+    return true;
+  }
+
+  void add(Object object) {
+    if (objectCount == objects.length) {
+      objects = Arrays.copyOf(objects, objectCount * 2);
+    }
+    objects[objectCount++] = object;
+  }
+
+  void count(int size) {
+    mAllocatedBytes += size;
+    mAllocatedObjects++;
+  }
+
+  // the new chunk [start, start + size)
+  void refill(long start, long size) {
+    mWasted += end - top;
+    top = start;
+    end = start + size;
+    mRefills++;
+  }
+
+  // the chunk is given up before a GC
+  void retire() {
+    mWasted += end - top;
+    top = end = 0;
+  }
+
+  void clearObjects() {
+    Arrays.fill(objects, 0, objectCount, null);
+    objectCount = 0;
+  }
+
+  public long getAllocatedBytes() { return mAllocatedBytes; }
+  public long getAllocatedObjects() { return mAllocatedObjects; }
+  public int getRefills() { return mRefills; }
+  public long getWasted() { return mWasted; }
+
+  @Override
+  public String toString() {
+    return String.format("allocated %dK in %d objects, %d TLAB refills, %dK wasted",
+        mAllocatedBytes >> 10, mAllocatedObjects, mRefills, mWasted >> 10);
+  }
+}
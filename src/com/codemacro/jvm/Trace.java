@@ -0,0 +1,31 @@
+package com.codemacro.jvm;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trace categories, enabled by
+ * `-Dtoyjvm.trace=dispatch,frames,classload,natives,gc,profile,exceptions,decode' (or `all').
+ * The flags are static final so the host JIT drops the guarded logging when they are off.
+ * Traces are written by the loggers at INFO level.
+ */
+public final class Trace {
+  public static final String PROPERTY = "toyjvm.trace";
+  private static final List<String> sEnabled =
+      Arrays.asList(System.getProperty(PROPERTY, "").split(","));
+
+  public static final boolean DISPATCH = enabled("dispatch");
+  public static final boolean FRAMES = enabled("frames");
+  public static final boolean CLASSLOAD = enabled("classload");
+  public static final boolean NATIVES = enabled("natives");
+  public static final boolean GC = enabled("gc");
+  public static final boolean PROFILE = enabled("profile"); // the call site profiles when the VM exits
+  public static final boolean EXCEPTIONS = enabled("exceptions"); // the handler search of guest exceptions
+  public static final boolean DECODE = enabled("decode"); // methods falling back from pre-decoding or scalar replacement
+
+  private Trace() {}
+
+  private static boolean enabled(String category) {
+    return sEnabled.contains(category) || sEnabled.contains("all");
+  }
+}
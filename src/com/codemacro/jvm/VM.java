@@ -1,37 +1,108 @@
 package com.codemacro.jvm;
 
-import com.codemacro.jvm.jit.JITMethodFactory;
 import org.freeinternals.format.classfile.MethodInfo;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
+import java.util.logging.Logger;
 
 /**
  * Created on 2017/2/18.
  */
 public class VM {
+  private static final Logger logger = Logger.getLogger(VM.class.getName());
   public static class Config {
     public boolean jit = false;
+    public boolean predecode = false;
+    public boolean escapeAnalysis = false; // takes effect with predecode
+    // invocations and backedges before a method runs pre-decoded (tier 1) and compiled (tier 2)
+    public int tier1Invocations = MethodCounters.DEFAULT_TIER1_INVOCATIONS;
+    public int tier1Backedges = MethodCounters.DEFAULT_TIER1_BACKEDGES;
+    public int tier2Invocations = MethodCounters.DEFAULT_TIER2_INVOCATIONS;
+    public int tier2Backedges = MethodCounters.DEFAULT_TIER2_BACKEDGES;
+    public int maxStackDepth = Thread.DEFAULT_MAX_DEPTH;
+    public boolean preload = false;
+    public boolean lazyParse = false;
+    public long heapMaxSize = Heap.DEFAULT_MAX_SIZE;
+    public long heapYoungSize = 0; // 1/3 of the heap
+    public boolean arenaHeap = false; // guest objects in an off-heap Arena of heapMaxSize
+    public int tlabSize = Tlab.DEFAULT_SIZE;
+    public Share share = Share.OFF;
+    public String sharedArchive = SharedArchive.DEFAULT_FILE;
   }
+  public enum Share { OFF, ON, DUMP }
   private ClassPath mCP;
   private ClassLoader mRootLoader;
   private Config mConf;
+  private Heap mHeap;
+  private Arena mArena = null;
 
   public VM(String[] pathList, Config conf) {
     mCP = new ClassPath(pathList);
-    mRootLoader = new ClassLoader(mCP);
+    mCP.setLazyParse(conf.lazyParse);
+    mRootLoader = new ClassLoader(mCP, conf);
     mConf = conf;
-    JITMethodFactory.enable = mConf.jit;
+    mHeap = new Heap(conf.heapMaxSize, conf.heapYoungSize);
+    mHeap.setTlabSize(conf.tlabSize);
+    if (conf.arenaHeap) {
+      mArena = new Arena(conf.heapMaxSize);
+      mArena.setTlabSize(conf.tlabSize);
+    }
+    if (mConf.share == Share.ON) {
+      mRootLoader.setSharedArchive(SharedArchive.open(mCP, mConf.sharedArchive));
+    }
   }
 
-  public void run(String mainClass) {
+  // write `classes' and their references into the shared archive
+  public void dumpSharedArchive(List<String> classes) throws IOException {
+    int cnt = SharedArchive.dump(mCP, mRootLoader, classes, mConf.sharedArchive);
+    System.out.println(String.format("dumped %d classes into %s", cnt, mConf.sharedArchive));
+  }
+
+  public void run(String mainClass, String[] args) {
+    if (mConf.preload) {
+      new ClassPreloader(mRootLoader, ForkJoinPool.commonPool()).preload(mainClass);
+    }
     Class clazz = mRootLoader.loadClass(mainClass);
     // TODO: initialize the main class first
-    MethodInfo method = clazz.findMethod("main", "([Ljava/lang/String;)V");
+    MethodInfo method = clazz.findMethod(Symbol.MAIN, Symbol.MAIN_METHOD);
     Function<Integer, Boolean> hasFlag = (f) -> (f & method.getAccessFlags()) != 0;
     if (method == null || !hasFlag.apply(MethodInfo.ACC_PUBLIC) || !hasFlag.apply(MethodInfo.ACC_STATIC)) {
       throw new RuntimeException("main method is not static&public");
     }
-    Thread thread = new Thread();
-    thread.run(clazz, method);
+    Thread thread = new Thread(mConf.maxStackDepth, mHeap, mArena);
+    try {
+      thread.run(clazz, method, args);
+    } finally {
+      mHeap.detach(thread);
+      if (mArena != null) {
+        mArena.detach(thread);
+      }
+      if (Trace.GC) {
+        logger.info("main thread " + thread.getTlab());
+        logger.info(mArena != null ? mArena.toString() : mHeap.toString());
+      }
+      if (Trace.PROFILE) {
+        logProfile();
+      }
+    }
+  }
+
+  // the counters of the methods invoked and the inline caches of the call sites run
+  private void logProfile() {
+    for (Class clazz : mRootLoader.getLoadedClasses()) {
+      clazz.getMethodCounters().forEach((method, counters) -> logger.info(String.format("method %s.%s%s %s",
+          clazz.getName(), clazz.getSymbol(method.getNameIndex()), clazz.getSymbol(method.getDescriptorIndex()),
+          counters)));
+      clazz.getInlineCaches().forEach((method, caches) -> new TreeMap<>(caches).forEach((pc, cache) ->
+          logger.info(String.format("inline cache %s.%s@%d %s", clazz.getName(),
+              clazz.getSymbol(method.getNameIndex()), pc, cache))));
+      clazz.getInlinedCaches().forEach((method, caches) -> new TreeMap<>(caches).forEach((site, cache) ->
+          logger.info(String.format("inline cache %s.%s@%s %s", clazz.getName(),
+              clazz.getSymbol(method.getNameIndex()), site, cache))));
+    }
   }
 }
@@ -1,38 +1,68 @@
 package com.codemacro.jvm;
 
-import org.freeinternals.format.classfile.FieldInfo;
-
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Created on 2017/2/19.
  */
 public class VObject {
-  private Map<String, Slot> mFields;
+  private static final int[] NO_INTS = new int[0];
+  private static final Object[] NO_REFS = new Object[0];
+  // fields are indexed by Class.Field.offset
+  private final int[] mInts;
+  private final Object[] mRefs;
   private final Class mClazz;
+  // GC state kept by Heap
+  private byte mGCFlags = 0;
+  private static final byte FLAG_OLD = 1;
+  private static final byte FLAG_REMEMBERED = 2;
 
   public VObject(final Class clazz) {
-    mFields = new HashMap<>();
     mClazz = clazz;
-    initialize(clazz);
+    mInts = clazz.getIntFieldCount() == 0 ? NO_INTS : new int[clazz.getIntFieldCount()];
+    mRefs = clazz.getRefFieldCount() == 0 ? NO_REFS : new Object[clazz.getRefFieldCount()];
   }
 
-  public void setField(String name, Slot slot) {
-    mFields.put(name, slot);
+  // a reference array, the elements are kept as the reference fields of an object of no class
+  public VObject(int length) {
+    mClazz = null;
+    mInts = NO_INTS;
+    mRefs = length == 0 ? NO_REFS : new Object[length];
   }
 
-  public Slot getField(String name) {
-    Slot slot = mFields.get(name);
-    if (slot == null) {
-      throw new RuntimeException("reference to uninitialized field:" + name);
-    }
-    return slot;
+  public boolean isArray() { return mClazz == null; }
+  public int getLength() { return mRefs.length; }
+
+  public int getInt(int offset) { return mInts[offset]; }
+  public void setInt(int offset, int v) { mInts[offset] = v; }
+
+  // a long or double field takes the ints at `offset' and `offset + 1'
+  public long getLong(int offset) {
+    return ((long) mInts[offset] << 32) | (mInts[offset + 1] & 0xffffffffL);
+  }
+
+  public void setLong(int offset, long v) {
+    mInts[offset] = (int) (v >>> 32);
+    mInts[offset + 1] = (int) v;
   }
 
+  public Object getRef(int offset) { return mRefs[offset]; }
+  public void setRef(int offset, Object ref) { mRefs[offset] = ref; }
+
   public Class getClazz() { return mClazz; }
 
-  private void initialize(final Class clazz) {
-    // should we initialize fields list here ?
+  public void forEachRef(Consumer<Object> visitor) {
+    for (Object ref : mRefs) {
+      if (ref != null) {
+        visitor.accept(ref);
+      }
+    }
+  }
+
+  boolean isOld() { return (mGCFlags & FLAG_OLD) != 0; }
+  void setOld() { mGCFlags |= FLAG_OLD; }
+  boolean isRemembered() { return (mGCFlags & FLAG_REMEMBERED) != 0; }
+  void setRemembered(boolean remembered) {
+    mGCFlags = (byte) (remembered ? mGCFlags | FLAG_REMEMBERED : mGCFlags & ~FLAG_REMEMBERED);
   }
 }
@@ -0,0 +1,46 @@
+package com.codemacro.jvm.bench;
+
+import com.codemacro.jvm.Class;
+import com.codemacro.jvm.ClassLoader;
+import com.codemacro.jvm.ClassPath;
+import com.codemacro.jvm.Frame;
+import com.codemacro.jvm.Thread;
+import com.codemacro.jvm.VM;
+import org.freeinternals.format.classfile.MethodInfo;
+
+import java.util.logging.LogManager;
+
+/**
+ * Time the recursive `test/AllTest.fac' at growing depths, the cost per frame should stay flat.
+ * usage: CallStackBenchmark [classpath] [iterations]
+ */
+public class CallStackBenchmark {
+  public static void main(String[] args) {
+    String cp = args.length > 0 ? args[0] : ".:runtime";
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    LogManager.getLogManager().reset();
+    VM.Config conf = new VM.Config();
+    conf.predecode = true;
+
+    ClassLoader loader = new ClassLoader(new ClassPath(cp.split(";|:")), conf);
+    Class clazz = loader.loadClass("test/AllTest");
+    MethodInfo method = clazz.findMethod("fac", "(I)I");
+    Thread thread = new Thread();
+    call(thread, clazz, method, 5000, iterations); // warm up
+    for (int depth = 1000; depth <= 5000; depth += 1000) {
+      long start = System.nanoTime();
+      call(thread, clazz, method, depth, iterations);
+      long used = System.nanoTime() - start;
+      System.out.println(String.format("fac(%d) x %d: %d ms, %d ns/frame", depth, iterations,
+          used / 1000000, used / ((long) depth * iterations)));
+    }
+  }
+
+  private static void call(Thread thread, Class clazz, MethodInfo method, int n, int times) {
+    for (int i = 0; i < times; ++i) {
+      Frame frame = new Frame(thread, clazz, method);
+      frame.storeLocal(0, n);
+      thread.runToEnd(frame);
+    }
+  }
+}
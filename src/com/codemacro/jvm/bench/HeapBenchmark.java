@@ -0,0 +1,94 @@
+package com.codemacro.jvm.bench;
+
+import com.codemacro.jvm.Arena;
+import com.codemacro.jvm.Class;
+import com.codemacro.jvm.ClassLoader;
+import com.codemacro.jvm.ClassPath;
+import com.codemacro.jvm.Tlab;
+import com.codemacro.jvm.VObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.LogManager;
+
+/**
+ * Measure the host heap footprint of guest objects by allocating `test/AllTest' instances,
+ * as host objects and in an off-heap Arena, then by 1 to N host threads with a TLAB each
+ * sharing one Arena.
+ * usage: HeapBenchmark [classpath] [count]
+ */
+public class HeapBenchmark {
+  public static void main(String[] args) {
+    String cp = args.length > 0 ? args[0] : ".:runtime";
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+    LogManager.getLogManager().reset();
+
+    ClassLoader loader = new ClassLoader(new ClassPath(cp.split(";|:")));
+    Class clazz = loader.loadClass("test/AllTest");
+    Class.Field field = clazz.findField("data");
+    int offset = field.offset;
+    VObject[] objects = new VObject[count];
+    long before = usedMemory();
+    long start = System.nanoTime();
+    for (int i = 0; i < count; ++i) {
+      VObject object = new VObject(clazz);
+      object.setInt(offset, 0x11);
+      objects[i] = object;
+    }
+    long used = (System.nanoTime() - start) / 1000000;
+    long after = usedMemory();
+    System.out.println(String.format("%d AllTest objects: %d bytes/object, allocated in %d ms",
+        objects.length, (after - before) / count, used));
+    objects = null;
+
+    Arena arena = new Arena(count * 16L + 1024);
+    Tlab tlab = new Tlab();
+    int[] handles = new int[count];
+    before = usedMemory();
+    start = System.nanoTime();
+    for (int i = 0; i < count; ++i) {
+      int h = arena.newObject(tlab, clazz);
+      arena.setInt(h, field, 0x11);
+      handles[i] = h;
+    }
+    used = (System.nanoTime() - start) / 1000000;
+    after = usedMemory();
+    System.out.println(String.format("%d AllTest objects in arena: %d host bytes/object, %d arena bytes/object, " +
+        "allocated in %d ms", handles.length, (after - before) / count, arena.getUsed() / count, used));
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= cores; threads *= 2) {
+      System.out.println(String.format("%d threads: %d ms", threads, allocateInParallel(clazz, field, count, threads)));
+    }
+  }
+
+  // each thread allocates `count' objects, the arena is large enough to need no GC
+  private static long allocateInParallel(Class clazz, Class.Field field, int count, int threads) {
+    Arena arena = new Arena(count * 16L * threads + Tlab.DEFAULT_SIZE * (threads + 1));
+    List<java.lang.Thread> workers = new ArrayList<>();
+    for (int i = 0; i < threads; ++i) {
+      workers.add(new java.lang.Thread(() -> {
+        Tlab tlab = new Tlab();
+        for (int j = 0; j < count; ++j) {
+          arena.setInt(arena.newObject(tlab, clazz), field, 0x11);
+        }
+      }));
+    }
+    long start = System.nanoTime();
+    workers.forEach(java.lang.Thread::start);
+    for (java.lang.Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  private static long usedMemory() {
+    Runtime rt = Runtime.getRuntime();
+    System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+}
@@ -0,0 +1,54 @@
+package com.codemacro.jvm.bench;
+
+import com.codemacro.jvm.Class;
+import com.codemacro.jvm.ClassLoader;
+import com.codemacro.jvm.ClassPath;
+import com.codemacro.jvm.Frame;
+import com.codemacro.jvm.Thread;
+import com.codemacro.jvm.VM;
+import org.freeinternals.format.classfile.MethodInfo;
+
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Compare the code stream interpreter with the pre-decoded one by calling `test/Simple3.fac2'.
+ * usage: InterpreterBenchmark [classpath] [iterations]
+ */
+public class InterpreterBenchmark {
+  private static final int ARG = 100;
+
+  public static void main(String[] args) {
+    String cp = args.length > 0 ? args[0] : ".:runtime";
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    LogManager.getLogManager().reset();
+    Logger.getLogger("").setLevel(Level.OFF);
+
+    long stream = run(cp, false, iterations);
+    long decoded = run(cp, true, iterations);
+    System.out.println(String.format("fac2(%d) x %d: stream %d ms, predecode %d ms, speedup %.2fx",
+        ARG, iterations, stream, decoded, (double) stream / decoded));
+  }
+
+  private static long run(String cp, boolean predecode, int iterations) {
+    VM.Config conf = new VM.Config();
+    conf.predecode = predecode;
+    ClassLoader loader = new ClassLoader(new ClassPath(cp.split(";|:")), conf);
+    Class clazz = loader.loadClass("test/Simple3");
+    MethodInfo method = clazz.findMethod("fac2", "(I)I");
+    Thread thread = new Thread();
+    call(thread, clazz, method, iterations / 10); // warm up
+    long start = System.nanoTime();
+    call(thread, clazz, method, iterations);
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  private static void call(Thread thread, Class clazz, MethodInfo method, int times) {
+    for (int i = 0; i < times; ++i) {
+      Frame frame = new Frame(thread, clazz, method);
+      frame.storeLocal(0, ARG);
+      thread.runToEnd(frame);
+    }
+  }
+}
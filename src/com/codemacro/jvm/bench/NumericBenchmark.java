@@ -0,0 +1,94 @@
+package com.codemacro.jvm.bench;
+
+import com.codemacro.jvm.Class;
+import com.codemacro.jvm.ClassLoader;
+import com.codemacro.jvm.ClassPath;
+import com.codemacro.jvm.Frame;
+import com.codemacro.jvm.Thread;
+import com.codemacro.jvm.VM;
+import org.freeinternals.format.classfile.MethodInfo;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Time the int, long, float, double and conversion kernels of `test/Numeric' on the code stream
+ * and the pre-decoded interpreter, the results are checked against the host JVM running the
+ * same class.
+ * usage: NumericBenchmark [classpath] [iterations]
+ */
+public class NumericBenchmark {
+  private static final int ARG = 1000;
+  private static final String[][] KERNELS = {
+      {"intOps", "(I)I"}, {"longOps", "(I)J"}, {"floatOps", "(I)F"}, {"doubleOps", "(I)D"}, {"convert", "(I)I"}};
+
+  public static void main(String[] args) throws Exception {
+    String cp = args.length > 0 ? args[0] : ".:runtime";
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    LogManager.getLogManager().reset();
+    Logger.getLogger("").setLevel(Level.OFF);
+
+    for (String[] kernel : KERNELS) {
+      Object expected = runOnHost(cp, kernel[0]);
+      Object[] result = new Object[1];
+      long stream = run(cp, false, kernel, iterations, result);
+      boolean ok = expected.equals(result[0]);
+      long decoded = run(cp, true, kernel, iterations, result);
+      ok &= expected.equals(result[0]);
+      System.out.println(String.format("%-9s x %d: stream %d ms, predecode %d ms, speedup %.2fx, %s",
+          kernel[0], iterations, stream, decoded, (double) stream / decoded,
+          ok ? "result " + expected : "MISMATCH " + result[0] + " != " + expected));
+    }
+  }
+
+  private static Object runOnHost(String cp, String name) throws Exception {
+    String[] paths = cp.split(";|:");
+    URL[] urls = new URL[paths.length];
+    for (int i = 0; i < paths.length; ++i) {
+      urls[i] = new File(paths[i]).toURI().toURL();
+    }
+    try (URLClassLoader loader = new URLClassLoader(urls)) {
+      return loader.loadClass("test.Numeric").getMethod(name, int.class).invoke(null, ARG);
+    }
+  }
+
+  private static long run(String cp, boolean predecode, String[] kernel, int iterations, Object[] result) {
+    VM.Config conf = new VM.Config();
+    conf.predecode = predecode;
+    ClassLoader loader = new ClassLoader(new ClassPath(cp.split(";|:")), conf);
+    Class clazz = loader.loadClass("test/Numeric");
+    MethodInfo method = clazz.findMethod(kernel[0], kernel[1]);
+    Thread thread = new Thread();
+    char type = kernel[1].charAt(kernel[1].length() - 1);
+    result[0] = call(thread, clazz, method, type); // warm up
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      call(thread, clazz, method, type);
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  // the return value is left on the stack of the frame of `result'
+  private static Object call(Thread thread, Class clazz, MethodInfo method, char type) {
+    Frame caller = new Frame(thread, clazz, clazz.findMethod("result", "()D"));
+    thread.pushFrame(caller);
+    Frame frame = new Frame(thread, clazz, method);
+    frame.storeLocal(0, ARG);
+    thread.runToEnd(frame);
+    thread.popFrame();
+    switch (type) {
+      case 'J':
+        return caller.popLong();
+      case 'F':
+        return caller.popFloat();
+      case 'D':
+        return caller.popDouble();
+      default:
+        return caller.popInt();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.codemacro.jvm.instruction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A method code decoded once into parallel arrays indexed by instruction, operands are
+ * pre-read and branch targets are pre-resolved to instruction indexes.
+ * Inlined instructions take the bytecode offset of their call, the frame reserves extra locals
+ * and stack slots for them.
+ */
+public class DecodedCode {
+  public final InstructionFactory.Instruction[] insts;
+  public final int[] opcodes;
+  public final int[] op1;
+  public final int[] op2;
+  public final int[] pcs; // bytecode offset of each instruction
+  private final int[] mIndexes; // bytecode offset -> instruction index
+  public final int extraLocals;
+  public final int extraStack;
+
+  private DecodedCode(InstructionFactory.Instruction[] insts, int[] opcodes, int[] op1, int[] op2,
+                      int[] pcs, int[] indexes, int extraLocals, int extraStack) {
+    this.insts = insts;
+    this.opcodes = opcodes;
+    this.op1 = op1;
+    this.op2 = op2;
+    this.pcs = pcs;
+    mIndexes = indexes;
+    this.extraLocals = extraLocals;
+    this.extraStack = extraStack;
+  }
+
+  public int size() { return insts.length; }
+
+  public int indexOf(int pc) {
+    int idx = pc >= 0 && pc < mIndexes.length ? mIndexes[pc] : -1;
+    if (idx < 0) {
+      throw new RuntimeException("no instruction at pc " + pc);
+    }
+    return idx;
+  }
+
+  static class Builder {
+    private final int[] mIndexes;
+    private InstructionFactory.Instruction[] mInsts;
+    private int[] mOpcodes, mOp1, mOp2, mPcs;
+    private boolean[] mBranches;
+    private final List<SwitchTable> mSwitches = new ArrayList<>();
+    private int mSize = 0;
+    private int mExtraLocals = 0;
+    private int mExtraStack = 0;
+
+    Builder(int codeLength) {
+      mIndexes = new int[codeLength];
+      Arrays.fill(mIndexes, -1);
+      mInsts = new InstructionFactory.Instruction[codeLength];
+      mOpcodes = new int[codeLength];
+      mOp1 = new int[codeLength];
+      mOp2 = new int[codeLength];
+      mPcs = new int[codeLength];
+      mBranches = new boolean[codeLength];
+    }
+
+    // the first instruction at `pc' is the branch target
+    void add(int pc, int opcode, InstructionFactory.Instruction inst, int op1, int op2, boolean branch) {
+      if (mSize == mInsts.length) {
+        int len = mSize * 2;
+        mInsts = Arrays.copyOf(mInsts, len);
+        mOpcodes = Arrays.copyOf(mOpcodes, len);
+        mOp1 = Arrays.copyOf(mOp1, len);
+        mOp2 = Arrays.copyOf(mOp2, len);
+        mPcs = Arrays.copyOf(mPcs, len);
+        mBranches = Arrays.copyOf(mBranches, len);
+      }
+      if (mIndexes[pc] < 0) {
+        mIndexes[pc] = mSize;
+      }
+      mInsts[mSize] = inst;
+      mOpcodes[mSize] = opcode;
+      mOp1[mSize] = op1;
+      mOp2[mSize] = op2;
+      mPcs[mSize] = pc;
+      mBranches[mSize] = branch;
+      mSize ++;
+    }
+
+    // the switch jumps through its table, whose targets are resolved as branches
+    void addSwitch(int pc, int opcode, SwitchTable table) {
+      add(pc, opcode, table, 0, 0, false);
+      mSwitches.add(table);
+    }
+
+    void reserve(int extraLocals, int extraStack) {
+      mExtraLocals = extraLocals;
+      mExtraStack = extraStack;
+    }
+
+    DecodedCode build() {
+      DecodedCode code = new DecodedCode(Arrays.copyOf(mInsts, mSize), Arrays.copyOf(mOpcodes, mSize),
+          Arrays.copyOf(mOp1, mSize), Arrays.copyOf(mOp2, mSize), Arrays.copyOf(mPcs, mSize), mIndexes,
+          mExtraLocals, mExtraStack);
+      for (int i = 0; i < mSize; ++i) {
+        if (mBranches[i]) { // target pc -> target index
+          code.op1[i] = code.indexOf(code.op1[i]);
+        }
+      }
+      for (SwitchTable table : mSwitches) {
+        table.resolve(code::indexOf);
+      }
+      return code;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.codemacro.jvm.instruction;
+
+import com.codemacro.jvm.Class;
+import com.codemacro.jvm.Frame;
+
+import java.util.Arrays;
+
+/**
+ * The inline cache of an invokevirtual or invokeinterface site, keyed by the bytecode offset of
+ * the site in its method. It keeps the receiver classes seen and the methods they dispatch to:
+ * monomorphic with one class, polymorphic with up to MAX_CLASSES, then megamorphic, where every
+ * call looks up the vtable or itable of the receiver's class. A hit is a call dispatched by the
+ * cache, a miss one looking up the tables.
+ */
+public class InlineCache {
+  public static final int MAX_CLASSES = 4;
+  public enum State { EMPTY, MONOMORPHIC, POLYMORPHIC, MEGAMORPHIC }
+  private static final Class[] NO_CLASSES = new Class[0];
+  private static final Class.MethodRef[] NO_TARGETS = new Class.MethodRef[0];
+
+  private final Class mClazz; // the class of the method of the site
+  private final int mCPIndex;
+  private final boolean mInterface;
+  private Class.MethodRef mRef = null; // resolved on the first call
+  private Class[] mClasses = NO_CLASSES;
+  private Class.MethodRef[] mTargets = NO_TARGETS;
+  private boolean mMegamorphic = false;
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  public InlineCache(Class clazz, int cpIdx, boolean isInterface) {
+    mClazz = clazz;
+    mCPIndex = cpIdx;
+    mInterface = isInterface;
+  }
+
+  // the method to run on the receiver on the stack of `frame'
+  Class.MethodRef lookup(Frame frame) {
+    Class.MethodRef ref = mRef;
+    if (ref == null) {
+      ref = mRef = mClazz.resolveMethodByRef(mCPIndex);
+    }
+    if (ref == null || ref.index < 0) {
+      return ref;
+    }
+    Class receiver = InstructionFactory.receiverClass(frame, ref.argCnt - 1);
+    if (receiver == null) {
+      return ref;
+    }
+    Class[] classes = mClasses;
+    for (int i = 0; i < classes.length; ++i) {
+      if (classes[i] == receiver) {
+        ++mHits;
+        return mTargets[i];
+      }
+    }
+    ++mMisses;
+    Class.MethodRef target = InstructionFactory.select(ref, receiver, mInterface);
+    if (mMegamorphic) {
+      return target;
+    }
+    if (classes.length == MAX_CLASSES) {
+      mMegamorphic = true;
+      mClasses = NO_CLASSES;
+      mTargets = NO_TARGETS;
+      return target;
+    }
+    mTargets = Arrays.copyOf(mTargets, classes.length + 1);
+    mTargets[classes.length] = target;
+    classes = Arrays.copyOf(classes, classes.length + 1);
+    classes[classes.length - 1] = receiver;
+    mClasses = classes;
+    return target;
+  }
+
+  public State getState() {
+    if (mMegamorphic) {
+      return State.MEGAMORPHIC;
+    }
+    switch (mClasses.length) {
+      case 0: return State.EMPTY;
+      case 1: return State.MONOMORPHIC;
+      default: return State.POLYMORPHIC;
+    }
+  }
+
+  // the receiver classes seen, none if it's megamorphic
+  public Class[] getReceiverClasses() {
+    return mClasses.clone();
+  }
+
+  // the method run on a receiver of `clazz' seen, null if not cached
+  public Class.MethodRef getTarget(Class clazz) {
+    for (int i = 0; i < mClasses.length; ++i) {
+      if (mClasses[i] == clazz) {
+        return mTargets[i];
+      }
+    }
+    return null;
+  }
+
+  public long getHits() { return mHits; }
+  public long getMisses() { return mMisses; }
+
+  @Override
+  public String toString() {
+    return String.format("%s(%d): %d hits, %d misses", getState().name().toLowerCase(), mClasses.length,
+        mHits, mMisses);
+  }
+}
@@ -1,16 +1,21 @@
 package com.codemacro.jvm.instruction;
 
+import com.codemacro.jvm.Arena;
+import com.codemacro.jvm.ArrayType;
 import com.codemacro.jvm.Frame;
+import com.codemacro.jvm.Symbol;
+import com.codemacro.jvm.Trace;
 import com.codemacro.jvm.Class;
-import com.codemacro.jvm.Slot;
 import com.codemacro.jvm.VObject;
 import org.freeinternals.format.classfile.*;
 
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
 import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+import java.util.function.LongBinaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,27 +25,154 @@ import java.util.logging.Logger;
  */
 public class InstructionFactory {
   private static final Logger logger = Logger.getLogger(InstructionFactory.class.getName());
+  /**
+   * Operands are decoded before `exec', so the same instruction runs on both the byte stream
+   * and the pre-decoded code. A branch target is an address of the frame's code: a bytecode
+   * offset when running on the stream, an instruction index when running on DecodedCode.
+   */
   public interface Instruction {
-    void exec(final DataInputStream codes, final Frame frame) throws IOException;
+    void exec(final Frame frame, int op1, int op2);
   }
 
+  // operand formats
+  static final int OPND_NONE = 0;
+  static final int OPND_S1 = 1; // signed byte
+  static final int OPND_U1 = 2; // local variable index, ldc index
+  static final int OPND_S2 = 3; // signed short
+  static final int OPND_U2 = 4; // constant pool index
+  static final int OPND_BRANCH = 5; // signed short offset, decoded as the target pc
+  static final int OPND_IINC = 6; // local variable index, signed byte
+  static final int OPND_MULTI = 7; // constant pool index, dimensions
+  static final int OPND_SWITCH = 8; // padding and jump table, read as a SwitchTable
+  static final int OPND_INTERFACE = 9; // constant pool index, argument count, 0
+  static final int OPND_WIDE = 10; // opcode, 2 bytes local variable index, 2 bytes signed iinc constant
+
   private static NativeMethodFactory sNativeMethods;
-  private static final Map<Integer, Instruction> instructions = new HashMap<>();
+  static final Instruction[] instructions = new Instruction[256];
+  static final int[] formats = new int[256];
 
   static { initialize(); }
 
-  public static Instruction createInstruction(DataInputStream stream) {
+  /**
+   * Decode and execute one instruction at the current position of the code stream.
+   */
+  public static void execute(final DataInputStream codes, int pc, final Frame frame, final int[] ops)
+      throws IOException {
+    int op = codes.readUnsignedByte();
+    Instruction inst = instructions[op];
+    if (inst == null) {
+      throw new RuntimeException(String.format("unsupported Opcode: 0x%02x", op));
+    }
+    if (formats[op] == OPND_SWITCH) {
+      inst = SwitchTable.read(op, codes, pc);
+    } else {
+      readOperands(formats[op], codes, pc, ops);
+    }
+    inst.exec(frame, ops[0], ops[1]);
+  }
+
+  /**
+   * Decode the code of `method' of `clazz', with the objects not escaping it scalar replaced
+   * if escape analysis is enabled. Returns null if it can't be decoded.
+   */
+  public static DecodedCode decode(Class clazz, MethodInfo method, AttributeCode code) {
+    if (clazz.getClassLoader().getConfig().escapeAnalysis) {
+      DecodedCode decoded = ScalarReplacement.decode(clazz, method, code);
+      if (decoded != null) {
+        return decoded;
+      }
+    }
+    return decode(clazz, method, code.getCode());
+  }
+
+  /**
+   * Decode the whole code array once, returns null if there's any opcode not supported yet,
+   * the method then falls back to the code stream. The invokes dispatched on the receiver are
+   * bound to the inline caches of their sites.
+   */
+  public static DecodedCode decode(Class clazz, MethodInfo method, final byte[] code) {
+    PosDataInputStream codes = new PosDataInputStream(new PosByteArrayInputStream(code));
+    DecodedCode.Builder builder = new DecodedCode.Builder(code.length);
+    int[] ops = new int[2];
     try {
-      int op = stream.readByte() & 0xff;
-      Instruction inst = instructions.get(op);
-      if (inst == null) {
-        throw new RuntimeException(String.format("unsupported Opcode: 0x%02x", op));
+      while (codes.available() > 0) {
+        int pc = codes.getPos();
+        int op = codes.readUnsignedByte();
+        Instruction inst = instructions[op];
+        if (inst == null) {
+          if (Trace.DECODE) {
+            logger.info(String.format("predecode failed by not supported 0x%02x at %04d", op, pc));
+          }
+          return null;
+        }
+        int format = formats[op];
+        if (format == OPND_SWITCH) {
+          builder.addSwitch(pc, op, SwitchTable.read(op, codes, pc));
+          continue;
+        }
+        readOperands(format, codes, pc, ops);
+        if (format == OPND_WIDE) { // decoded as the instruction it modifies
+          op = ops[1] & 0xff;
+          inst = instructions[op];
+          ops[1] >>= 8;
+        }
+        if (op == Opcode.op_invokevirtual || op == Opcode.op_invokeinterface) {
+          inst = invokeCached(clazz.getInlineCache(method, pc, ops[0], op == Opcode.op_invokeinterface));
+        }
+        builder.add(pc, op, inst, ops[0], ops[1], format == OPND_BRANCH);
       }
-      return inst;
     } catch (IOException e) {
       logger.log(Level.SEVERE, null, e);
+      return null;
+    }
+    return builder.build();
+  }
+
+  static void readOperands(int format, DataInputStream codes, int pc, int[] ops) throws IOException {
+    switch (format) {
+      case OPND_NONE:
+        break;
+      case OPND_S1:
+        ops[0] = codes.readByte();
+        break;
+      case OPND_U1:
+        ops[0] = codes.readUnsignedByte();
+        break;
+      case OPND_S2:
+        ops[0] = codes.readShort();
+        break;
+      case OPND_U2:
+        ops[0] = codes.readUnsignedShort();
+        break;
+      case OPND_BRANCH:
+        ops[0] = pc + codes.readShort();
+        break;
+      case OPND_IINC:
+        ops[0] = codes.readUnsignedByte();
+        ops[1] = codes.readByte();
+        break;
+      case OPND_MULTI:
+        ops[0] = codes.readUnsignedShort();
+        ops[1] = codes.readUnsignedByte();
+        break;
+      case OPND_INTERFACE:
+        ops[0] = codes.readUnsignedShort();
+        ops[1] = codes.readUnsignedByte();
+        codes.readByte();
+        break;
+      case OPND_WIDE: { // the opcode in the low byte of ops[1], the iinc constant above it
+        int op = codes.readUnsignedByte();
+        if (op != Opcode.op_iinc && (op < Opcode.op_iload || op > Opcode.op_aload)
+            && (op < Opcode.op_istore || op > Opcode.op_astore)) {
+          throw new RuntimeException(String.format("unsupported wide Opcode: 0x%02x", op));
+        }
+        ops[0] = codes.readUnsignedShort();
+        ops[1] = op == Opcode.op_iinc ? codes.readShort() << 8 | op : op;
+        break;
+      }
+      default:
+        throw new RuntimeException("unknown operand format:" + format);
     }
-    return null;
   }
 
   private static void initialize() {
@@ -53,6 +185,13 @@ public class InstructionFactory {
     register(Opcode.op_iconst_3, createIConst(3));
     register(Opcode.op_iconst_4, createIConst(4));
     register(Opcode.op_iconst_5, createIConst(5));
+    register(Opcode.op_lconst_0, createLConst(0));
+    register(Opcode.op_lconst_1, createLConst(1));
+    register(Opcode.op_fconst_0, createFConst(0));
+    register(Opcode.op_fconst_1, createFConst(1));
+    register(Opcode.op_fconst_2, createFConst(2));
+    register(Opcode.op_dconst_0, createDConst(0));
+    register(Opcode.op_dconst_1, createDConst(1));
 
     register(Opcode.op_istore_0, createIStore(0));
     register(Opcode.op_istore_1, createIStore(1));
@@ -62,6 +201,30 @@ public class InstructionFactory {
     register(Opcode.op_astore_1, createAStore(1));
     register(Opcode.op_astore_2, createAStore(2));
     register(Opcode.op_astore_3, createAStore(3));
+    // a float is moved as its bits, long & double as 2 ints
+    register(Opcode.op_fstore_0, createIStore(0));
+    register(Opcode.op_fstore_1, createIStore(1));
+    register(Opcode.op_fstore_2, createIStore(2));
+    register(Opcode.op_fstore_3, createIStore(3));
+    register(Opcode.op_lstore_0, createStore2(0));
+    register(Opcode.op_lstore_1, createStore2(1));
+    register(Opcode.op_lstore_2, createStore2(2));
+    register(Opcode.op_lstore_3, createStore2(3));
+    register(Opcode.op_dstore_0, createStore2(0));
+    register(Opcode.op_dstore_1, createStore2(1));
+    register(Opcode.op_dstore_2, createStore2(2));
+    register(Opcode.op_dstore_3, createStore2(3));
+    register(Opcode.op_istore, OPND_U1, (frame, idx, op2) -> {
+      frame.storeLocal(idx, frame.popInt());
+    });
+    register(Opcode.op_fstore, OPND_U1, (frame, idx, op2) -> {
+      frame.storeLocal(idx, frame.popInt());
+    });
+    register(Opcode.op_astore, OPND_U1, (frame, idx, op2) -> {
+      frame.storeLocalSlot(idx);
+    });
+    register(Opcode.op_lstore, OPND_U1, InstructionFactory::store2);
+    register(Opcode.op_dstore, OPND_U1, InstructionFactory::store2);
 
     register(Opcode.op_iload_0, createILoad(0));
     register(Opcode.op_iload_1, createILoad(1));
@@ -71,302 +234,1093 @@ public class InstructionFactory {
     register(Opcode.op_aload_1, createALoad(1));
     register(Opcode.op_aload_2, createALoad(2));
     register(Opcode.op_aload_3, createALoad(3));
+    register(Opcode.op_fload_0, createILoad(0));
+    register(Opcode.op_fload_1, createILoad(1));
+    register(Opcode.op_fload_2, createILoad(2));
+    register(Opcode.op_fload_3, createILoad(3));
+    register(Opcode.op_lload_0, createLoad2(0));
+    register(Opcode.op_lload_1, createLoad2(1));
+    register(Opcode.op_lload_2, createLoad2(2));
+    register(Opcode.op_lload_3, createLoad2(3));
+    register(Opcode.op_dload_0, createLoad2(0));
+    register(Opcode.op_dload_1, createLoad2(1));
+    register(Opcode.op_dload_2, createLoad2(2));
+    register(Opcode.op_dload_3, createLoad2(3));
+    register(Opcode.op_iload, OPND_U1, (frame, idx, op2) -> {
+      frame.pushInt(frame.loadLocal(idx));
+    });
+    register(Opcode.op_fload, OPND_U1, (frame, idx, op2) -> {
+      frame.pushInt(frame.loadLocal(idx));
+    });
+    register(Opcode.op_aload, OPND_U1, (frame, idx, op2) -> {
+      frame.loadLocalSlot(idx);
+    });
+    register(Opcode.op_lload, OPND_U1, InstructionFactory::load2);
+    register(Opcode.op_dload, OPND_U1, InstructionFactory::load2);
 
-    register(Opcode.op_ldc, (codes, frame) -> {
-      int idx = codes.readByte();
-      AbstractCPInfo info = frame.getClazz().getClassFile().getConstantPool()[idx];
-      int tag = info.getTag();
-      if (tag == AbstractCPInfo.CONSTANT_String) {
-        String val = frame.getClazz().getNameInConstantPool(((ConstantStringInfo) info).getStringIndex());
-        frame.pushRef(val); // not good for slot because slot only holds Integer and VObject
-      } else {
-        throw new RuntimeException("not implemented ldc type");
-      }
+    register(Opcode.op_ldc, OPND_U1, (frame, idx, op2) -> {
+      ldc(frame, frame.getClazz(), idx);
+    });
+    register(Opcode.op_ldc_w, OPND_U2, (frame, idx, op2) -> {
+      ldc(frame, frame.getClazz(), idx);
+    });
+    register(Opcode.op_ldc2_w, OPND_U2, (frame, idx, op2) -> {
+      ldc(frame, frame.getClazz(), idx);
     });
 
-    register(Opcode.op_bipush, (codes, frame) -> {
-      frame.pushInt(codes.readByte());
+    register(Opcode.op_bipush, OPND_S1, (frame, val, op2) -> {
+      frame.pushInt(val);
     });
-    register(Opcode.op_sipush, (codes, frame) -> {
-      frame.pushInt(codes.readShort());
+    register(Opcode.op_sipush, OPND_S2, (frame, val, op2) -> {
+      frame.pushInt(val);
     });
 
-    register(Opcode.op_dup, (codes, frame) -> {
-      Slot s = frame.popSlot();
-      frame.pushSlot(s);
-      frame.pushSlot(s);
+    register(Opcode.op_dup, (frame, op1, op2) -> {
+      frame.dup();
     });
 
-    register(Opcode.op_pop, (codes, frame) -> {
-      frame.popSlot();
+    register(Opcode.op_pop, (frame, op1, op2) -> {
+      frame.pop();
+    });
+    register(Opcode.op_pop2, (frame, op1, op2) -> {
+      frame.pop();
+      frame.pop();
+    });
+    register(Opcode.op_dup_x1, createDup(1, 1));
+    register(Opcode.op_dup_x2, createDup(1, 2));
+    register(Opcode.op_dup2, createDup(2, 0));
+    register(Opcode.op_dup2_x1, createDup(2, 1));
+    register(Opcode.op_dup2_x2, createDup(2, 2));
+    register(Opcode.op_swap, (frame, op1, op2) -> {
+      frame.swap();
     });
 
-    register(Opcode.op_iinc, (codes, frame) -> {
-      int v1 = codes.readByte();
-      int i1 = codes.readByte();
+    register(Opcode.op_iinc, OPND_IINC, (frame, v1, i1) -> {
       frame.storeLocal(v1, i1 + frame.loadLocal(v1));
     });
-    register(Opcode.op_iadd, (codes, frame) -> {
+    register(Opcode.op_iadd, (frame, op1, op2) -> {
       int i1 = frame.popInt();
       int i2 = frame.popInt();
       frame.pushInt(i1 + i2);
     });
-    register(Opcode.op_isub, (codes, frame) -> {
+    register(Opcode.op_isub, (frame, op1, op2) -> {
       int i1 = frame.popInt();
       int i2 = frame.popInt();
       frame.pushInt(i2 - i1);
     });
-    register(Opcode.op_imul, (codes, frame) -> {
+    register(Opcode.op_imul, (frame, op1, op2) -> {
       int i1 = frame.popInt();
       int i2 = frame.popInt();
       frame.pushInt(i1 * i2);
     });
+    register(Opcode.op_idiv, (frame, op1, op2) -> {
+      int i1 = frame.popInt();
+      int i2 = frame.popInt();
+      if (i1 == 0) {
+        throwException(frame, "java/lang/ArithmeticException");
+        return;
+      }
+      frame.pushInt(i2 / i1);
+    });
+    register(Opcode.op_irem, (frame, op1, op2) -> {
+      int i1 = frame.popInt();
+      int i2 = frame.popInt();
+      if (i1 == 0) {
+        throwException(frame, "java/lang/ArithmeticException");
+        return;
+      }
+      frame.pushInt(i2 % i1);
+    });
+    register(Opcode.op_ineg, (frame, op1, op2) -> {
+      frame.pushInt(-frame.popInt());
+    });
+    register(Opcode.op_ishl, createIOp((a, b) -> a << b));
+    register(Opcode.op_ishr, createIOp((a, b) -> a >> b));
+    register(Opcode.op_iushr, createIOp((a, b) -> a >>> b));
+    register(Opcode.op_iand, createIOp((a, b) -> a & b));
+    register(Opcode.op_ior, createIOp((a, b) -> a | b));
+    register(Opcode.op_ixor, createIOp((a, b) -> a ^ b));
+
+    register(Opcode.op_ladd, createLOp((a, b) -> a + b));
+    register(Opcode.op_lsub, createLOp((a, b) -> a - b));
+    register(Opcode.op_lmul, createLOp((a, b) -> a * b));
+    register(Opcode.op_ldiv, (frame, op1, op2) -> {
+      long l1 = frame.popLong();
+      long l2 = frame.popLong();
+      if (l1 == 0) {
+        throwException(frame, "java/lang/ArithmeticException");
+        return;
+      }
+      frame.pushLong(l2 / l1);
+    });
+    register(Opcode.op_lrem, (frame, op1, op2) -> {
+      long l1 = frame.popLong();
+      long l2 = frame.popLong();
+      if (l1 == 0) {
+        throwException(frame, "java/lang/ArithmeticException");
+        return;
+      }
+      frame.pushLong(l2 % l1);
+    });
+    register(Opcode.op_lneg, (frame, op1, op2) -> {
+      frame.pushLong(-frame.popLong());
+    });
+    register(Opcode.op_lshl, createLShift((a, b) -> a << b));
+    register(Opcode.op_lshr, createLShift((a, b) -> a >> b));
+    register(Opcode.op_lushr, createLShift((a, b) -> a >>> b));
+    register(Opcode.op_land, createLOp((a, b) -> a & b));
+    register(Opcode.op_lor, createLOp((a, b) -> a | b));
+    register(Opcode.op_lxor, createLOp((a, b) -> a ^ b));
+
+    // float results computed in double then rounded are the same as computed in float
+    register(Opcode.op_fadd, createFOp((a, b) -> a + b));
+    register(Opcode.op_fsub, createFOp((a, b) -> a - b));
+    register(Opcode.op_fmul, createFOp((a, b) -> a * b));
+    register(Opcode.op_fdiv, createFOp((a, b) -> a / b));
+    register(Opcode.op_frem, createFOp((a, b) -> a % b));
+    register(Opcode.op_fneg, (frame, op1, op2) -> {
+      frame.pushFloat(-frame.popFloat());
+    });
+    register(Opcode.op_dadd, createDOp((a, b) -> a + b));
+    register(Opcode.op_dsub, createDOp((a, b) -> a - b));
+    register(Opcode.op_dmul, createDOp((a, b) -> a * b));
+    register(Opcode.op_ddiv, createDOp((a, b) -> a / b));
+    register(Opcode.op_drem, createDOp((a, b) -> a % b));
+    register(Opcode.op_dneg, (frame, op1, op2) -> {
+      frame.pushDouble(-frame.popDouble());
+    });
 
-    register(Opcode.op_return, (codes, frame) -> frame.getThread().popFrame());
-    register(Opcode.op_ireturn, (codes, frame) -> {
+    register(Opcode.op_i2l, (frame, op1, op2) -> {
+      frame.pushLong(frame.popInt());
+    });
+    register(Opcode.op_i2f, (frame, op1, op2) -> {
+      frame.pushFloat(frame.popInt());
+    });
+    register(Opcode.op_i2d, (frame, op1, op2) -> {
+      frame.pushDouble(frame.popInt());
+    });
+    register(Opcode.op_l2i, (frame, op1, op2) -> {
+      frame.pushInt((int) frame.popLong());
+    });
+    register(Opcode.op_l2f, (frame, op1, op2) -> {
+      frame.pushFloat(frame.popLong());
+    });
+    register(Opcode.op_l2d, (frame, op1, op2) -> {
+      frame.pushDouble(frame.popLong());
+    });
+    register(Opcode.op_f2i, (frame, op1, op2) -> {
+      frame.pushInt((int) frame.popFloat());
+    });
+    register(Opcode.op_f2l, (frame, op1, op2) -> {
+      frame.pushLong((long) frame.popFloat());
+    });
+    register(Opcode.op_f2d, (frame, op1, op2) -> {
+      frame.pushDouble(frame.popFloat());
+    });
+    register(Opcode.op_d2i, (frame, op1, op2) -> {
+      frame.pushInt((int) frame.popDouble());
+    });
+    register(Opcode.op_d2l, (frame, op1, op2) -> {
+      frame.pushLong((long) frame.popDouble());
+    });
+    register(Opcode.op_d2f, (frame, op1, op2) -> {
+      frame.pushFloat((float) frame.popDouble());
+    });
+    register(Opcode.op_i2b, (frame, op1, op2) -> {
+      frame.pushInt((byte) frame.popInt());
+    });
+    register(Opcode.op_i2c, (frame, op1, op2) -> {
+      frame.pushInt((char) frame.popInt());
+    });
+    register(Opcode.op_i2s, (frame, op1, op2) -> {
+      frame.pushInt((short) frame.popInt());
+    });
+
+    register(Opcode.op_lcmp, (frame, op1, op2) -> {
+      long l1 = frame.popLong();
+      long l2 = frame.popLong();
+      frame.pushInt(Long.compare(l2, l1));
+    });
+    // fcmpl & dcmpl push -1 if either is NaN, fcmpg & dcmpg push 1
+    register(Opcode.op_fcmpl, (frame, op1, op2) -> {
+      float f1 = frame.popFloat();
+      float f2 = frame.popFloat();
+      frame.pushInt(compare(f2, f1, -1));
+    });
+    register(Opcode.op_fcmpg, (frame, op1, op2) -> {
+      float f1 = frame.popFloat();
+      float f2 = frame.popFloat();
+      frame.pushInt(compare(f2, f1, 1));
+    });
+    register(Opcode.op_dcmpl, (frame, op1, op2) -> {
+      double d1 = frame.popDouble();
+      double d2 = frame.popDouble();
+      frame.pushInt(compare(d2, d1, -1));
+    });
+    register(Opcode.op_dcmpg, (frame, op1, op2) -> {
+      double d1 = frame.popDouble();
+      double d2 = frame.popDouble();
+      frame.pushInt(compare(d2, d1, 1));
+    });
+
+    register(Opcode.op_return, (frame, op1, op2) -> frame.getThread().popFrame());
+    Instruction ireturn = (frame, op1, op2) -> {
       int i = frame.popInt();
       frame.getThread().popFrame();
-      frame.getThread().topFrame().pushInt(i);
-    });
-    register(Opcode.op_areturn, (codes, frame) -> {
-      Object ref = frame.popRef();
+      Frame caller = frame.getThread().topFrame();
+      if (caller != null) {
+        caller.pushInt(i);
+      }
+    };
+    register(Opcode.op_ireturn, ireturn);
+    register(Opcode.op_freturn, ireturn);
+    Instruction lreturn = (frame, op1, op2) -> {
+      long l = frame.popLong();
       frame.getThread().popFrame();
-      frame.getThread().topFrame().pushRef(ref);
+      Frame caller = frame.getThread().topFrame();
+      if (caller != null) {
+        caller.pushLong(l);
+      }
+    };
+    register(Opcode.op_lreturn, lreturn);
+    register(Opcode.op_dreturn, lreturn);
+    register(Opcode.op_areturn, (frame, op1, op2) -> {
+      frame.getThread().popFrame();
+      Frame caller = frame.getThread().topFrame();
+      if (caller != null) {
+        frame.returnSlot(caller);
+      }
     });
 
     Function<Boolean, Instruction> createInvoke = (isStatic) -> {
-      return (codes, frame) -> {
-        int b1 = codes.readByte();
-        int b2 = codes.readByte();
-        int idx = (b1 << 8) + b2;
-        Class.Symbol symbol = frame.getClazz().resolveMethodByRef(idx);
-        if (symbol != null) {
-          initClass(frame.getThread(), symbol.clazz);
-        }
+      return (frame, idx, op2) -> {
         // TODO: verify we can invoke the method
-        invokeMethod(symbol, frame, isStatic);
+        invoke(frame, frame.getClazz().resolveMethodByRef(idx), isStatic);
       };
     };
-    register(Opcode.op_invokestatic, createInvoke.apply(true));
-    register(Opcode.op_invokevirtual, createInvoke.apply(false));
-    register(Opcode.op_invokespecial, createInvoke.apply(false));
-
-    register(Opcode.op_if_icmpne, (codes, frame) -> {
-      int b1 = codes.readUnsignedByte();
-      int b2 = codes.readUnsignedByte();
-      short offset = (short)((b1 << 8) + b2);
+    register(Opcode.op_invokestatic, OPND_U2, createInvoke.apply(true));
+    register(Opcode.op_invokespecial, OPND_U2, createInvoke.apply(false));
+    // the inline cache of the site is looked up by its pc, pre-decoded code is bound to it
+    register(Opcode.op_invokevirtual, OPND_U2, (frame, idx, op2) -> {
+      Class clazz = frame.getClazz();
+      invoke(frame, clazz.getInlineCache(frame.getMethod(), frame.getPC(), idx, false).lookup(frame), false);
+    });
+    register(Opcode.op_invokeinterface, OPND_INTERFACE, (frame, idx, op2) -> {
+      Class clazz = frame.getClazz();
+      invoke(frame, clazz.getInlineCache(frame.getMethod(), frame.getPC(), idx, true).lookup(frame), false);
+    });
+
+    register(Opcode.op_if_icmpne, OPND_BRANCH, (frame, target, op2) -> {
       int i1 = frame.popInt();
       int i2 = frame.popInt();
       if (i1 != i2) {
-        frame.offsetPC(offset);
+        frame.jump(target);
       }
     });
-    register(Opcode.op_if_icmpge, (codes, frame) -> {
-      int b1 = codes.readUnsignedByte();
-      int b2 = codes.readUnsignedByte();
-      short offset = (short)((b1 << 8) + b2);
+    register(Opcode.op_if_icmpge, OPND_BRANCH, (frame, target, op2) -> {
       int i1 = frame.popInt();
       int i2 = frame.popInt();
       if (i2 >= i1) {
-        frame.offsetPC(offset);
+        frame.jump(target);
       }
     });
-    register(Opcode.op_ifgt, (codes, frame) -> {
-      int b1 = codes.readUnsignedByte();
-      int b2 = codes.readUnsignedByte();
-      short offset = (short)((b1 << 8) + b2);
+    register(Opcode.op_ifgt, OPND_BRANCH, (frame, target, op2) -> {
       int i1 = frame.popInt();
       if (i1 > 0) {
-        frame.offsetPC(offset);
+        frame.jump(target);
       }
     });
-    register(Opcode.op_ifle, (codes, frame) -> {
-      int b1 = codes.readUnsignedByte();
-      int b2 = codes.readUnsignedByte();
-      short offset = (short)((b1 << 8) + b2);
+    register(Opcode.op_ifle, OPND_BRANCH, (frame, target, op2) -> {
       int i1 = frame.popInt();
       if (i1 <= 0) {
-        frame.offsetPC(offset);
+        frame.jump(target);
       }
     });
-    register(Opcode.op_ifne, (codes, frame) -> {
-      int b1 = codes.readUnsignedByte();
-      int b2 = codes.readUnsignedByte();
-      short offset = (short)((b1 << 8) + b2);
+    register(Opcode.op_ifne, OPND_BRANCH, (frame, target, op2) -> {
       int i1 = frame.popInt();
       if (i1 != 0) {
-        frame.offsetPC(offset);
+        frame.jump(target);
       }
     });
 
-    register(Opcode.op_goto, (codes, frame) -> {
-      int b1 = codes.readUnsignedByte();
-      int b2 = codes.readUnsignedByte();
-      short offset = (short)((b1 << 8) + b2);
-      frame.offsetPC(offset);
+    register(Opcode.op_ifeq, OPND_BRANCH, createIf(v -> v == 0));
+    register(Opcode.op_iflt, OPND_BRANCH, createIf(v -> v < 0));
+    register(Opcode.op_ifge, OPND_BRANCH, createIf(v -> v >= 0));
+    register(Opcode.op_if_icmpeq, OPND_BRANCH, createIfICmp(c -> c == 0));
+    register(Opcode.op_if_icmplt, OPND_BRANCH, createIfICmp(c -> c < 0));
+    register(Opcode.op_if_icmpgt, OPND_BRANCH, createIfICmp(c -> c > 0));
+    register(Opcode.op_if_icmple, OPND_BRANCH, createIfICmp(c -> c <= 0));
+
+    register(Opcode.op_if_acmpeq, OPND_BRANCH, (frame, target, op2) -> {
+      if (frame.popSame()) {
+        frame.jump(target);
+      }
+    });
+    register(Opcode.op_if_acmpne, OPND_BRANCH, (frame, target, op2) -> {
+      if (!frame.popSame()) {
+        frame.jump(target);
+      }
+    });
+    register(Opcode.op_ifnull, OPND_BRANCH, (frame, target, op2) -> {
+      if (frame.popNull()) {
+        frame.jump(target);
+      }
+    });
+    register(Opcode.op_ifnonnull, OPND_BRANCH, (frame, target, op2) -> {
+      if (!frame.popNull()) {
+        frame.jump(target);
+      }
     });
 
-    register(Opcode.op_new, (codes, frame) -> {
-      int b1 = codes.readByte();
-      int b2 = codes.readByte();
-      int idx = (b1 << 8) + b2;
-      String clazzName = frame.getClazz().resolveClassName(idx);
-      Class clazz = frame.getClazz().getClassLoader().loadClass(clazzName);
-      initClass(frame.getThread(), clazz);
-      VObject object = new VObject(clazz);
-      frame.pushRef(object);
+    register(Opcode.op_goto, OPND_BRANCH, (frame, target, op2) -> {
+      frame.jump(target);
+    });
+    // runs the load, store or iinc it modifies with a 2 bytes local variable index
+    register(Opcode.op_wide, OPND_WIDE, (frame, idx, op2) -> {
+      instructions[op2 & 0xff].exec(frame, idx, op2 >> 8);
+    });
+
+    // the switches run as the SwitchTable of their operands
+    Instruction readTable = (frame, op1, op2) -> {
+      throw new IllegalStateException("switch table not read");
+    };
+    register(Opcode.op_tableswitch, OPND_SWITCH, readTable);
+    register(Opcode.op_lookupswitch, OPND_SWITCH, readTable);
+
+    register(Opcode.op_new, OPND_U2, (frame, idx, op2) -> {
+      newObject(frame, frame.getClazz().resolveClass(idx));
     });
 
-    register(Opcode.op_putfield, (codes, frame) -> {
-      int b1 = codes.readByte();
-      int b2 = codes.readByte();
-      int idx = (b1 << 8) + b2;
-      String fieldName = frame.getClazz().resolveFieldName(idx);
-      FieldInfo field = frame.getClazz().findField(fieldName);
+    register(Opcode.op_putfield, OPND_U2, (frame, idx, op2) -> {
       // TODO: verify if we can visit this field
-      Slot val = frame.popSlot();
-      VObject object = (VObject) frame.popRef();
-      object.setField(fieldName, val);
+      putField(frame, frame.getClazz().resolveField(idx));
     });
 
-    register(Opcode.op_getfield, (codes, frame) -> {
-      int b1 = codes.readByte();
-      int b2 = codes.readByte();
-      int idx = (b1 << 8) + b2;
-      String fieldName = frame.getClazz().resolveFieldName(idx);
-      VObject object = (VObject) frame.popRef();
-      Slot val = object.getField(fieldName);
-      frame.pushSlot(val);
+    register(Opcode.op_getfield, OPND_U2, (frame, idx, op2) -> {
+      getField(frame, frame.getClazz().resolveField(idx));
     });
 
-    register(Opcode.op_aconst_null, (codes, frame) -> {
+    register(Opcode.op_aconst_null, (frame, op1, op2) -> {
       frame.pushRef(null);
     });
 
-    register(Opcode.op_checkcast, (codes, frame) -> {
-      int b1 = codes.readByte();
-      int b2 = codes.readByte();
-      int idx = (b1 << 8) + b2;
-      String clazzName = frame.getClazz().resolveClassName(idx);
-      Class clazz = frame.getClazz().getClassLoader().loadClass(clazzName);
-      initClass(frame.getThread(), clazz);
-      // TODO: do the real cast check
-      Object ref = frame.popRef();
-      frame.pushRef(ref);
+    register(Opcode.op_checkcast, OPND_U2, (frame, idx, op2) -> {
+      checkCast(frame, frame.getClazz().resolveClass(idx));
     });
 
-    register(Opcode.op_athrow, (codes, frame) -> {
-      // TODO: clear the stack leaving only the exception object
+    register(Opcode.op_athrow, (frame, op1, op2) -> {
+      Arena arena = frame.getThread().getArena();
+      if (arena != null) {
+        int h = frame.popHandle();
+        throwJump(arena.classOf(h), null, h, frame);
+        return;
+      }
       VObject ex = (VObject) frame.popRef();
-      throwJump(ex, frame);
+      throwJump(ex.getClazz(), ex, 0, frame);
     });
+
+    registerArrays();
+  }
+
+  /**
+   * Array instructions, on host arrays or on Arena arrays. A null array throws a guest
+   * NullPointerException and an index out of bounds a guest ArrayIndexOutOfBoundsException,
+   * float and double elements are moved as their bits in the Arena.
+   */
+  private static void registerArrays() {
+    register(Opcode.op_newarray, OPND_U1, (frame, type, op2) -> {
+      if (!ArrayType.isValid(type) || type == ArrayType.T_REF) {
+        throw new RuntimeException("invalid newarray type:" + type);
+      }
+      newArray(frame, type, frame.popInt());
+    });
+    register(Opcode.op_anewarray, OPND_U2, (frame, idx, op2) -> {
+      frame.getClazz().resolveClass(idx); // loaded, an array doesn't initialize its component class
+      newArray(frame, ArrayType.T_REF, frame.popInt());
+    });
+    register(Opcode.op_multianewarray, OPND_MULTI, (frame, idx, dims) -> {
+      newMultiArray(frame, frame.getClazz().resolveClassName(idx), dims);
+    });
+    register(Opcode.op_arraylength, (frame, op1, op2) -> {
+      Arena arena = frame.getThread().getArena();
+      if (arena != null) {
+        int h = frame.popHandle();
+        if (checkArrayHandle(frame, h)) {
+          frame.pushInt(arena.arrayLength(h));
+        }
+        return;
+      }
+      Object array = frame.popRef();
+      if (checkArray(frame, array)) {
+        frame.pushInt(lengthOf(array));
+      }
+    });
+
+    register(Opcode.op_iaload, createArrayLoad(int[].class,
+        (frame, array, i) -> frame.pushInt(array[i]),
+        (frame, arena, h, i) -> frame.pushInt(arena.loadInt(h, i))));
+    register(Opcode.op_faload, createArrayLoad(float[].class,
+        (frame, array, i) -> frame.pushFloat(array[i]),
+        (frame, arena, h, i) -> frame.pushInt(arena.loadInt(h, i))));
+    register(Opcode.op_laload, createArrayLoad(long[].class,
+        (frame, array, i) -> frame.pushLong(array[i]),
+        (frame, arena, h, i) -> frame.pushLong(arena.loadLong(h, i))));
+    register(Opcode.op_daload, createArrayLoad(double[].class,
+        (frame, array, i) -> frame.pushDouble(array[i]),
+        (frame, arena, h, i) -> frame.pushLong(arena.loadLong(h, i))));
+    register(Opcode.op_baload, createArrayLoad(byte[].class,
+        (frame, array, i) -> frame.pushInt(array[i]),
+        (frame, arena, h, i) -> frame.pushInt(arena.loadByte(h, i))));
+    register(Opcode.op_caload, createArrayLoad(char[].class,
+        (frame, array, i) -> frame.pushInt(array[i]),
+        (frame, arena, h, i) -> frame.pushInt(arena.loadChar(h, i))));
+    register(Opcode.op_saload, createArrayLoad(short[].class,
+        (frame, array, i) -> frame.pushInt(array[i]),
+        (frame, arena, h, i) -> frame.pushInt(arena.loadShort(h, i))));
+    register(Opcode.op_aaload, createArrayLoad(VObject.class,
+        (frame, array, i) -> frame.pushRef(array.getRef(i)),
+        (frame, arena, h, i) -> frame.pushHandle(arena.loadInt(h, i))));
+
+    register(Opcode.op_iastore, createArrayStore(1, int[].class,
+        (frame, array, i) -> array[i] = frame.popInt(),
+        (frame, arena, h, i) -> arena.storeInt(h, i, frame.popInt())));
+    register(Opcode.op_fastore, createArrayStore(1, float[].class,
+        (frame, array, i) -> array[i] = frame.popFloat(),
+        (frame, arena, h, i) -> arena.storeInt(h, i, frame.popInt())));
+    register(Opcode.op_lastore, createArrayStore(2, long[].class,
+        (frame, array, i) -> array[i] = frame.popLong(),
+        (frame, arena, h, i) -> arena.storeLong(h, i, frame.popLong())));
+    register(Opcode.op_dastore, createArrayStore(2, double[].class,
+        (frame, array, i) -> array[i] = frame.popDouble(),
+        (frame, arena, h, i) -> arena.storeLong(h, i, frame.popLong())));
+    register(Opcode.op_bastore, createArrayStore(1, byte[].class,
+        (frame, array, i) -> array[i] = (byte) frame.popInt(),
+        (frame, arena, h, i) -> arena.storeByte(h, i, (byte) frame.popInt())));
+    register(Opcode.op_castore, createArrayStore(1, char[].class,
+        (frame, array, i) -> array[i] = (char) frame.popInt(),
+        (frame, arena, h, i) -> arena.storeChar(h, i, (char) frame.popInt())));
+    register(Opcode.op_sastore, createArrayStore(1, short[].class,
+        (frame, array, i) -> array[i] = (short) frame.popInt(),
+        (frame, arena, h, i) -> arena.storeShort(h, i, (short) frame.popInt())));
+    register(Opcode.op_aastore, createArrayStore(1, VObject.class,
+        (frame, array, i) -> {
+          Object val = frame.popRef();
+          array.setRef(i, val);
+          frame.getThread().getHeap().writeBarrier(array, val);
+        },
+        (frame, arena, h, i) -> arena.storeInt(h, i, frame.popHandle())));
+  }
+
+  // moves an element of a host array of type `A'
+  private interface HostElement<A> {
+    void access(Frame frame, A array, int i);
+  }
+
+  // moves an element of the Arena array `h'
+  private interface ArenaElement {
+    void access(Frame frame, Arena arena, int h, int i);
+  }
+
+  // pushes the element of the array and the index popped, if the array is not null and the
+  // index is in bounds
+  private static <A> Instruction createArrayLoad(java.lang.Class<A> type, HostElement<A> host,
+                                                 ArenaElement arena) {
+    return (frame, op1, op2) -> {
+      int i = frame.popInt();
+      Arena a = frame.getThread().getArena();
+      if (a != null) {
+        int h = frame.popHandle();
+        if (checkElement(frame, a, h, i)) {
+          arena.access(frame, a, h, i);
+        }
+        return;
+      }
+      A array = type.cast(frame.popRef());
+      if (checkElement(frame, array, i)) {
+        host.access(frame, array, i);
+      }
+    };
+  }
+
+  // pops the value of `slots' slots into the element of the array and the index under it, if
+  // the array is not null and the index is in bounds, the accessor pops the value
+  private static <A> Instruction createArrayStore(int slots, java.lang.Class<A> type, HostElement<A> host,
+                                                  ArenaElement arena) {
+    return (frame, op1, op2) -> {
+      int i = frame.peekHandle(slots);
+      Arena a = frame.getThread().getArena();
+      if (a != null) {
+        int h = frame.peekHandle(slots + 1);
+        if (checkElement(frame, a, h, i)) {
+          arena.access(frame, a, h, i);
+          frame.pop();
+          frame.pop();
+        }
+        return;
+      }
+      A array = type.cast(frame.peekRef(slots + 1));
+      if (checkElement(frame, array, i)) {
+        host.access(frame, array, i);
+        frame.pop();
+        frame.pop();
+      }
+    };
   }
 
   private static Instruction createIConst(int val) {
-    return (codes, frame) -> {
+    return (frame, op1, op2) -> {
       frame.pushInt(val);
     };
   }
 
+  private static Instruction createLConst(long val) {
+    return (frame, op1, op2) -> {
+      frame.pushLong(val);
+    };
+  }
+
+  private static Instruction createFConst(float val) {
+    return (frame, op1, op2) -> {
+      frame.pushFloat(val);
+    };
+  }
+
+  private static Instruction createDConst(double val) {
+    return (frame, op1, op2) -> {
+      frame.pushDouble(val);
+    };
+  }
+
   private static Instruction createIStore(int idx) {
-    return (codes, frame) -> {
+    return (frame, op1, op2) -> {
       int val = frame.popInt();
       frame.storeLocal(idx, val);
     };
   }
 
   private static Instruction createAStore(int idx) {
-    return (codes, frame) -> {
-      Object ref = frame.popRef();
-      frame.storeLocal(idx, ref);
+    return (frame, op1, op2) -> {
+      frame.storeLocalSlot(idx);
     };
   }
 
   private static Instruction createILoad(int idx) {
-    return (codes, frame) -> {
+    return (frame, op1, op2) -> {
       int val = frame.loadLocal(idx);
       frame.pushInt(val);
     };
   }
 
   private static Instruction createALoad(int idx) {
-    return (codes, frame) -> {
-      Object ref = frame.loadRefLocal(idx);
-      frame.pushRef(ref);
+    return (frame, op1, op2) -> {
+      frame.loadLocalSlot(idx);
+    };
+  }
+
+  private static Instruction createLoad2(int idx) {
+    return (frame, op1, op2) -> {
+      load2(frame, idx, op2);
+    };
+  }
+
+  private static Instruction createStore2(int idx) {
+    return (frame, op1, op2) -> {
+      store2(frame, idx, op2);
+    };
+  }
+
+  private static void load2(Frame frame, int idx, int op2) {
+    frame.pushInt(frame.loadLocal(idx));
+    frame.pushInt(frame.loadLocal(idx + 1));
+  }
+
+  private static void store2(Frame frame, int idx, int op2) {
+    frame.storeLocal(idx + 1, frame.popInt());
+    frame.storeLocal(idx, frame.popInt());
+  }
+
+  private static Instruction createDup(int cnt, int skip) {
+    return (frame, op1, op2) -> {
+      frame.dup(cnt, skip);
+    };
+  }
+
+  private static Instruction createIOp(IntBinaryOperator op) {
+    return (frame, op1, op2) -> {
+      int i1 = frame.popInt();
+      int i2 = frame.popInt();
+      frame.pushInt(op.applyAsInt(i2, i1));
+    };
+  }
+
+  private static Instruction createLOp(LongBinaryOperator op) {
+    return (frame, op1, op2) -> {
+      long l1 = frame.popLong();
+      long l2 = frame.popLong();
+      frame.pushLong(op.applyAsLong(l2, l1));
+    };
+  }
+
+  // the shift distance is an int
+  private static Instruction createLShift(LongBinaryOperator op) {
+    return (frame, op1, op2) -> {
+      int s = frame.popInt();
+      frame.pushLong(op.applyAsLong(frame.popLong(), s));
+    };
+  }
+
+  private static Instruction createFOp(DoubleBinaryOperator op) {
+    return (frame, op1, op2) -> {
+      float f1 = frame.popFloat();
+      float f2 = frame.popFloat();
+      frame.pushFloat((float) op.applyAsDouble(f2, f1));
+    };
+  }
+
+  private static Instruction createDOp(DoubleBinaryOperator op) {
+    return (frame, op1, op2) -> {
+      double d1 = frame.popDouble();
+      double d2 = frame.popDouble();
+      frame.pushDouble(op.applyAsDouble(d2, d1));
+    };
+  }
+
+  private static Instruction createIf(IntPredicate cond) {
+    return (frame, target, op2) -> {
+      if (cond.test(frame.popInt())) {
+        frame.jump(target);
+      }
+    };
+  }
+
+  // `cond' tests the comparison of the 2 ints
+  private static Instruction createIfICmp(IntPredicate cond) {
+    return (frame, target, op2) -> {
+      int i1 = frame.popInt();
+      int i2 = frame.popInt();
+      if (cond.test(Integer.compare(i2, i1))) {
+        frame.jump(target);
+      }
     };
   }
 
+  private static int compare(double a, double b, int nan) {
+    if (a > b) {
+      return 1;
+    }
+    if (a < b) {
+      return -1;
+    }
+    return a == b ? 0 : nan;
+  }
+
   private static void register(int op, Instruction inst) {
-    instructions.put(op, (code, frame) -> {
+    register(op, OPND_NONE, inst);
+  }
+
+  private static void register(int op, int format, Instruction inst) {
+    formats[op] = format;
+    if (!Trace.DISPATCH) {
+      instructions[op] = inst;
+      return;
+    }
+    instructions[op] = (frame, op1, op2) -> {
       logger.info(String.format("exec 0x%02x", op));
-      inst.exec(code, frame);
-    });
+      inst.exec(frame, op1, op2);
+    };
+  }
+
+  static void invoke(Frame frame, Class.MethodRef ref, boolean isStatic) {
+    if (ref != null) {
+      initClass(frame.getThread(), ref.clazz);
+    }
+    invokeMethod(ref, frame, isStatic);
+  }
+
+  static Instruction invokeCached(InlineCache cache) {
+    return (frame, idx, op2) -> invoke(frame, cache.lookup(frame), false);
+  }
+
+  /**
+   * The method invokevirtual or invokeinterface `ref' runs on a receiver of `clazz', by the slot
+   * of `ref' in the vtable or the itable of the class.
+   */
+  static Class.MethodRef select(Class.MethodRef ref, Class clazz, boolean isInterface) {
+    Class.MethodRef target = isInterface ? clazz.itableMethod(ref.clazz, ref.index) : clazz.vtableMethod(ref.index);
+    if (target == null) {
+      throw new RuntimeException(clazz.getName() + " does not implement " + ref.clazz.getName());
+    }
+    return target;
+  }
+
+  // the class of the receiver at `depth' of the stack, null if it has no class, e.g. a string, or is null
+  static Class receiverClass(Frame frame, int depth) {
+    Arena arena = frame.getThread().getArena();
+    if (arena != null) {
+      int h = frame.peekHandle(depth);
+      return h == 0 ? null : arena.classOf(h);
+    }
+    Object ref = frame.peekRef(depth);
+    return ref instanceof VObject ? ((VObject) ref).getClazz() : null;
+  }
+
+  // the constant `idx' of `clazz'
+  static void ldc(Frame frame, Class clazz, int idx) {
+    int tag = clazz.getClassFile().getCPTag(idx);
+    if (tag == AbstractCPInfo.CONSTANT_String) {
+      pushString(frame, clazz.resolveString(idx));
+      return;
+    }
+    Object value = clazz.resolveConstant(idx);
+    if (value instanceof Integer) {
+      frame.pushInt((Integer) value);
+    } else if (value instanceof Float) {
+      frame.pushFloat((Float) value);
+    } else if (value instanceof Long) {
+      frame.pushLong((Long) value);
+    } else {
+      frame.pushDouble((Double) value);
+    }
+  }
+
+  static void checkCast(Frame frame, Class clazz) {
+    if (clazz != null) {
+      initClass(frame.getThread(), clazz);
+    }
+    // TODO: do the real cast check, the reference is left on the stack
+  }
+
+  static void newObject(Frame frame, Class clazz) {
+    initClass(frame.getThread(), clazz);
+    Arena arena = frame.getThread().getArena();
+    if (arena != null) {
+      int h = arena.newObject(frame.getThread().getTlab(), clazz);
+      if (h == 0) {
+        throwException(frame, "java/lang/OutOfMemoryError");
+        return;
+      }
+      frame.pushHandle(h);
+      return;
+    }
+    VObject object = frame.getThread().getHeap().newObject(frame.getThread().getTlab(), clazz);
+    if (object == null) {
+      throwException(frame, "java/lang/OutOfMemoryError");
+      return;
+    }
+    frame.pushRef(object);
+  }
+
+  static void putField(Frame frame, Class.Field field) {
+    Arena arena = frame.getThread().getArena();
+    if (arena != null) {
+      if (field.isRef) {
+        int val = frame.popHandle();
+        arena.setRef(frame.popHandle(), field, val);
+      } else if (field.isWide) {
+        long val = frame.popLong();
+        arena.setLong(frame.popHandle(), field, val);
+      } else {
+        int val = frame.popInt();
+        arena.setInt(frame.popHandle(), field, val);
+      }
+      return;
+    }
+    if (field.isRef) {
+      Object val = frame.popRef();
+      VObject object = (VObject) frame.popRef();
+      object.setRef(field.offset, val);
+      frame.getThread().getHeap().writeBarrier(object, val);
+    } else if (field.isWide) {
+      long val = frame.popLong();
+      ((VObject) frame.popRef()).setLong(field.offset, val);
+    } else {
+      int val = frame.popInt();
+      ((VObject) frame.popRef()).setInt(field.offset, val);
+    }
   }
 
-  private static void invokeMethod(Class.Symbol symbol, Frame frame, boolean isStatic) {
-    if (symbol == null) { // maybe the class is java.lang.Object which not supported yet
-      logger.warning("null symbol found, skip it");
+  static void getField(Frame frame, Class.Field field) {
+    Arena arena = frame.getThread().getArena();
+    if (arena != null) {
+      int h = frame.popHandle();
+      if (field.isRef) {
+        frame.pushHandle(arena.getRef(h, field));
+      } else if (field.isWide) {
+        frame.pushLong(arena.getLong(h, field));
+      } else {
+        frame.pushInt(arena.getInt(h, field));
+      }
+      return;
+    }
+    VObject object = (VObject) frame.popRef();
+    if (field.isRef) {
+      frame.pushRef(object.getRef(field.offset));
+    } else if (field.isWide) {
+      frame.pushLong(object.getLong(field.offset));
+    } else {
+      frame.pushInt(object.getInt(field.offset));
+    }
+  }
+
+  // returns false if the Arena array `h' is null or `i' is out of its bounds, and the exception is thrown
+  private static boolean checkElement(Frame frame, Arena arena, int h, int i) {
+    return checkArrayHandle(frame, h) && checkIndex(frame, arena.arrayLength(h), i);
+  }
+
+  // returns false if the host `array' is null or `i' is out of its bounds, and the exception is thrown
+  private static boolean checkElement(Frame frame, Object array, int i) {
+    return checkArray(frame, array) && checkIndex(frame, lengthOf(array), i);
+  }
+
+  // returns false if `array' is null and a NullPointerException is thrown
+  private static boolean checkArray(Frame frame, Object array) {
+    if (array == null) {
+      throwException(frame, "java/lang/NullPointerException");
+      return false;
+    }
+    return true;
+  }
+
+  // returns false if the Arena handle `h' is null and a NullPointerException is thrown
+  private static boolean checkArrayHandle(Frame frame, int h) {
+    if (h == 0) {
+      throwException(frame, "java/lang/NullPointerException");
+      return false;
+    }
+    return true;
+  }
+
+  // returns false if `i' is out of bounds and the exception is thrown
+  private static boolean checkIndex(Frame frame, int length, int i) {
+    if (i < 0 || i >= length) {
+      throwException(frame, "java/lang/ArrayIndexOutOfBoundsException");
+      return false;
+    }
+    return true;
+  }
+
+  private static int lengthOf(Object array) {
+    if (array instanceof int[]) {
+      return ((int[]) array).length;
+    } else if (array instanceof VObject) {
+      return ((VObject) array).getLength();
+    } else if (array instanceof byte[]) {
+      return ((byte[]) array).length;
+    } else if (array instanceof char[]) {
+      return ((char[]) array).length;
+    } else if (array instanceof long[]) {
+      return ((long[]) array).length;
+    } else if (array instanceof double[]) {
+      return ((double[]) array).length;
+    } else if (array instanceof float[]) {
+      return ((float[]) array).length;
+    }
+    return ((short[]) array).length;
+  }
+
+  static void newArray(Frame frame, int type, int length) {
+    if (length < 0) {
+      throwException(frame, "java/lang/NegativeArraySizeException");
+      return;
+    }
+    if (!pushArray(frame, type, length)) {
+      throwException(frame, "java/lang/OutOfMemoryError");
+    }
+  }
+
+  // returns false if the heap is exhausted
+  private static boolean pushArray(Frame frame, int type, int length) {
+    Arena arena = frame.getThread().getArena();
+    if (arena != null) {
+      int h = arena.newArray(frame.getThread().getTlab(), type, length);
+      if (h != 0) {
+        frame.pushHandle(h);
+      }
+      return h != 0;
+    }
+    Object array = frame.getThread().getHeap().newArray(frame.getThread().getTlab(), type, length);
+    if (array != null) {
+      frame.pushRef(array);
+    }
+    return array != null;
+  }
+
+  // the arrays are kept on the stack while the sub arrays are allocated, they may be moved by GC
+  private static void newMultiArray(Frame frame, String desc, int dims) {
+    int[] lengths = new int[dims];
+    for (int i = dims - 1; i >= 0; --i) {
+      lengths[i] = frame.popInt();
+      if (lengths[i] < 0) {
+        throwException(frame, "java/lang/NegativeArraySizeException");
+        return;
+      }
+    }
+    int depth = pushMultiArray(frame, desc, lengths, 0);
+    if (depth >= 0) {
+      return;
+    }
+    for (int i = 0; i < -depth - 1; ++i) { // the arrays being filled
+      frame.pop();
+    }
+    throwException(frame, "java/lang/OutOfMemoryError");
+  }
+
+  // returns -1 - the arrays left on the stack if the heap is exhausted
+  private static int pushMultiArray(Frame frame, String desc, int[] lengths, int level) {
+    boolean last = level == lengths.length - 1;
+    if (!pushArray(frame, last ? ArrayType.of(desc.charAt(level + 1)) : ArrayType.T_REF, lengths[level])) {
+      return -1;
+    }
+    if (last) {
+      return 0;
+    }
+    Arena arena = frame.getThread().getArena();
+    for (int i = 0; i < lengths[level]; ++i) {
+      int depth = pushMultiArray(frame, desc, lengths, level + 1);
+      if (depth < 0) {
+        return depth - 1;
+      }
+      if (arena != null) {
+        int sub = frame.popHandle();
+        arena.storeInt(frame.peekHandle(0), i, sub);
+      } else {
+        Object sub = frame.popRef();
+        VObject array = (VObject) frame.popRef();
+        array.setRef(i, sub);
+        frame.getThread().getHeap().writeBarrier(array, sub);
+        frame.pushRef(array);
+      }
+    }
+    return 0;
+  }
+
+  // a string constant, the host String stands for the guest one unless in the arena
+  static void pushString(Frame frame, String s) {
+    Arena arena = frame.getThread().getArena();
+    if (arena == null) {
+      frame.pushRef(s);
+      return;
+    }
+    int h = arena.constant(s);
+    if (h == 0) {
+      throwException(frame, "java/lang/OutOfMemoryError");
+      return;
+    }
+    frame.pushHandle(h);
+  }
+
+  private static void invokeMethod(Class.MethodRef ref, Frame frame, boolean isStatic) {
+    if (ref == null) { // maybe the class is java.lang.Object which not supported yet
+      if (Trace.DISPATCH) { // every Object.<init>, i.e. every new
+        logger.info("null method ref found, skip it");
+      }
       if (!isStatic) { // consume the instance argument at least (hack with java.lang.Object.<init>
-        frame.popSlot();
+        frame.pop();
       }
       return ;
     }
-    if (callNative(symbol, frame)) {
+    if (callNative(ref, frame)) {
       return;
     }
-    Frame newFrame = new Frame(frame.getThread(), symbol.clazz, symbol.method);
-    if (symbol.argCnt > 0) {
-      for (int n = symbol.argCnt - 1; n >= 0; --n) { // TODO: handle float & double
-        Slot val = frame.popSlot();
-        newFrame.storeLocal(n, val);
-      }
+    if (frame.getThread().isStackFull()) {
+      throwException(frame, "java/lang/StackOverflowError");
+      return;
+    }
+    Frame newFrame = new Frame(frame.getThread(), ref.clazz, ref.method);
+    if (ref.argCnt > 0) {
+      frame.popArgs(newFrame, ref.argCnt);
     }
     frame.getThread().pushFrame(newFrame);
   }
 
-  private static boolean callNative(Class.Symbol symbol, Frame frame) {
-    if ((symbol.method.getAccessFlags() & MethodInfo.ACC_NATIVE) != 0) {
+  private static boolean callNative(Class.MethodRef ref, Frame frame) {
+    if ((ref.method.getAccessFlags() & MethodInfo.ACC_NATIVE) != 0) {
       // TODO: verify access level
-      String clazzName = symbol.clazz.getName();
-      String methodName = symbol.clazz.getNameInConstantPool(symbol.method.getNameIndex());
-      String descriptor = symbol.clazz.getNameInConstantPool(symbol.method.getDescriptorIndex());
-      sNativeMethods.invoke(clazzName, methodName, descriptor, frame);
+      Symbol methodName = ref.clazz.getSymbol(ref.method.getNameIndex());
+      Symbol descriptor = ref.clazz.getSymbol(ref.method.getDescriptorIndex());
+      sNativeMethods.invoke(ref.clazz.getNameSymbol(), methodName, descriptor, frame);
       return true;
     }
     return false;
   }
 
-  private static void initClass(com.codemacro.jvm.Thread thread, Class clazz) {
+  static void initClass(com.codemacro.jvm.Thread thread, Class clazz) {
     if (clazz.isStaticInited()) {
       return;
     }
     clazz.setStaticInited();
-    MethodInfo method = clazz.findMethod("<clinit>", "()V");
+    MethodInfo method = clazz.findMethod(Symbol.CLINIT, Symbol.VOID_METHOD);
     if (method != null) {
       Frame frame = new Frame(thread, clazz, method);
       thread.runToEnd(frame); // until this frame popped
-      logger.info("class <clinit> finished");
+      if (Trace.CLASSLOAD) {
+        logger.info("class <clinit> finished");
+      }
+    }
+  }
+
+  // throw an exception raised by the VM itself, its constructor is not run
+  static void throwException(Frame frame, String clazzName) {
+    Class clazz = frame.getClazz().getClassLoader().loadClass(clazzName);
+    Arena arena = frame.getThread().getArena();
+    if (arena == null) {
+      VObject object = frame.getThread().getHeap().newObject(frame.getThread().getTlab(), clazz);
+      if (object == null) {
+        throw new RuntimeException("guest heap exhausted when throwing " + clazzName);
+      }
+      throwJump(clazz, object, 0, frame);
+      return;
+    }
+    int h = arena.newObject(frame.getThread().getTlab(), clazz);
+    if (h == 0) {
+      throw new RuntimeException("guest heap exhausted when throwing " + clazzName);
     }
+    throwJump(clazz, null, h, frame);
   }
 
-  private static void throwJump(VObject ex, Frame frame) {
+  // the exception is the host object `ex', or the Arena handle `h' if `ex' is null
+  private static void throwJump(Class exClass, VObject ex, int h, Frame frame) {
     while (frame.getThread().topFrame() != null) {
-      frame.getThread().topFrame().pushRef(ex);
-      int handler = findExceptionHandler(ex, frame.getThread().topFrame());
+      Frame top = frame.getThread().topFrame();
+      top.clearStack();
+      if (ex != null) {
+        top.pushRef(ex);
+      } else {
+        top.pushHandle(h);
+      }
+      int handler = findExceptionHandler(exClass, top);
       if (handler >= 0) {
-        logger.info("found exception handler at " + handler + " :" + frame.getThread().topFrame().getName());
+        if (Trace.EXCEPTIONS) {
+          logger.info("found exception handler at " + handler + " :" + frame.getThread().topFrame().getName());
+        }
         frame.getThread().topFrame().setPC(handler);
         return;
       }
       frame.getThread().popFrame();
     }
-    throw new RuntimeException("no exception handler for:" + ex.getClazz().getName());
+    throw new RuntimeException("no exception handler for:" + exClass.getName());
   }
 
-  private static int findExceptionHandler(VObject ex, Frame frame) {
+  // whether `clazz' is the class named `name' or a subclass of it, every exception is a Throwable,
+  // which the class loader ignores
+  private static boolean isSubclassOf(Class clazz, Symbol name) {
+    if (name == Symbol.THROWABLE) {
+      return true;
+    }
+    for (Class c = clazz; c != null; c = c.getSuperClass()) {
+      if (c.getNameSymbol() == name) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int findExceptionHandler(Class exClass, Frame frame) {
     int size = frame.getExceptionTableLength();
     if (size == 0) {
-      logger.info("no exception table in " + frame.getName());
+      if (Trace.EXCEPTIONS) {
+        logger.info("no exception table in " + frame.getName());
+      }
       return -1;
     }
     int pc = frame.getPC();
@@ -377,15 +1331,16 @@ public class InstructionFactory {
         if (et.getCatchType() == 0) { // finally
           return et.getHandlerPc();
         } else {
-          String exClassName = frame.getClazz().resolveClassName(et.getCatchType());
-          // TODO: check inheritance
-          if (ex.getClazz().getName().equals(exClassName)) {
+          Symbol catchType = frame.getClazz().resolveClassNameSymbol(et.getCatchType());
+          if (isSubclassOf(exClass, catchType)) {
             return et.getHandlerPc();
           }
         }
       } // pc range check
     } // for
-    logger.info("not found exception handler in " + frame.getName());
+    if (Trace.EXCEPTIONS) {
+      logger.info("not found exception handler in " + frame.getName());
+    }
     return -1;
   }
 }
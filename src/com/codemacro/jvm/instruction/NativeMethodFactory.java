@@ -1,6 +1,9 @@
 package com.codemacro.jvm.instruction;
 
+import com.codemacro.jvm.Arena;
 import com.codemacro.jvm.Frame;
+import com.codemacro.jvm.Symbol;
+import com.codemacro.jvm.Trace;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -16,52 +19,125 @@ public class NativeMethodFactory {
     void exec(Frame frame);
   }
 
-  private final Map<String, NativeMethod> mMethods;
+  // native methods with the same name are chained, matched by the class and descriptor symbols
+  private static class Entry {
+    final Symbol clazzName;
+    final Symbol descriptor;
+    final NativeMethod method;
+    final Entry next;
+    Entry(Symbol clazzName, Symbol descriptor, NativeMethod method, Entry next) {
+      this.clazzName = clazzName;
+      this.descriptor = descriptor;
+      this.method = method;
+      this.next = next;
+    }
+  }
+
+  // method name -> entries
+  private final Map<Symbol, Entry> mMethods;
 
   public NativeMethodFactory() {
     mMethods = new HashMap<>();
-    mMethods.put(makeKey(CLZ_SYSTEM, "registerNative", "()V"), (frame) -> {
+    register(CLZ_SYSTEM, "registerNative", "()V", (frame) -> {
       registerAll();
     });
   }
 
-  public void invoke(String clazzName, String methodName, String descriptor, Frame frame) {
-    String key = makeKey(clazzName, methodName, descriptor);
-    NativeMethod method = mMethods.get(key);
+  public void invoke(Symbol clazzName, Symbol methodName, Symbol descriptor, Frame frame) {
+    NativeMethod method = null;
+    for (Entry e = mMethods.get(methodName); e != null; e = e.next) {
+      if (e.clazzName == clazzName && e.descriptor == descriptor) {
+        method = e.method;
+        break;
+      }
+    }
     if (method == null) {
-      throw new RuntimeException("not found native method:" + key);
+      throw new RuntimeException("not found native method:" + makeKey(clazzName, methodName, descriptor));
+    }
+    if (Trace.NATIVES) {
+      logger.info("call native method:" + makeKey(clazzName, methodName, descriptor));
     }
-    logger.info("call native method:" + key);
     method.exec(frame);
   }
 
+  private void register(String clazzName, String methodName, String descriptor, NativeMethod method) {
+    Symbol name = Symbol.intern(methodName);
+    mMethods.put(name, new Entry(Symbol.intern(clazzName), Symbol.intern(descriptor), method, mMethods.get(name)));
+  }
+
   private void registerAll() {
-    logger.info("register all native methods");
-    mMethods.put(makeKey(CLZ_SYSTEM, "println", "(Ljava/lang/String;)V"), (frame) -> {
-      String s = (String) frame.popRef();
+    if (Trace.NATIVES) {
+      logger.info("register all native methods");
+    }
+    register(CLZ_SYSTEM, "println", "(Ljava/lang/String;)V", (frame) -> {
+      Arena arena = frame.getThread().getArena();
+      String s = arena == null ? (String) frame.popRef() : arena.getString(frame.popHandle());
       System.out.println(s);
     });
-    mMethods.put(makeKey(CLZ_SYSTEM, "showVersion", "()V"), (frame) -> {
+    register(CLZ_SYSTEM, "showVersion", "()V", (frame) -> {
       System.out.println("toy jvm 0.0.1");
     });
-    mMethods.put(makeKey(CLZ_SYSTEM, "currentTimeSeconds", "()I"), (frame) -> {
+    register(CLZ_SYSTEM, "currentTimeSeconds", "()I", (frame) -> {
       frame.pushInt((int) (System.currentTimeMillis() / 1000));
     });
-    mMethods.put(makeKey("java/lang/StringBuilder", "append",
-        "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;"), (frame) -> {
+    register("java/lang/StringBuilder", "append",
+        "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;", (frame) -> {
+      if (frame.getThread().getArena() != null) {
+        appendInArena(frame, frame.getThread().getArena());
+        return;
+      }
       String s = (String) frame.popRef();
       Object data = frame.popRef();
-      String ret = data == null ? s : ((String) data) + s;
-      frame.pushRef(ret);
+      pushString(frame, data == null ? s : ((String) data) + s);
     });
-    mMethods.put(makeKey("java/lang/String", "valueOf", "(I)Ljava/lang/String;"), (frame) -> {
+    register("java/lang/String", "valueOf", "(I)Ljava/lang/String;", (frame) -> {
       int i = frame.popInt();
-      String s = String.valueOf(i);
-      frame.pushRef(s); // invalid type for Slot
+      pushString(frame, String.valueOf(i));
     });
   }
 
-  private String makeKey(String clazzName, String methodName, String descriptor) {
+  // concatenate the two strings on the stack into a new one, the chars are not copied to the host
+  private static void appendInArena(Frame frame, Arena arena) {
+    if (frame.peekHandle(1) == 0) { // no data yet
+      int s = frame.popHandle();
+      frame.pop();
+      frame.pushHandle(s);
+      return;
+    }
+    int len = arena.stringLength(frame.peekHandle(1));
+    // may collect, the operands are read from the stack again after
+    int h = arena.newString(frame.getThread().getTlab(), len + arena.stringLength(frame.peekHandle(0)));
+    if (h == 0) {
+      InstructionFactory.throwException(frame, "java/lang/OutOfMemoryError");
+      return;
+    }
+    int s = frame.popHandle();
+    int data = frame.popHandle();
+    arena.copyChars(data, h, 0);
+    arena.copyChars(s, h, len);
+    frame.pushHandle(h);
+  }
+
+  // a new string is allocated in the guest heap
+  private static void pushString(Frame frame, String s) {
+    Arena arena = frame.getThread().getArena();
+    if (arena != null) {
+      int h = arena.newString(frame.getThread().getTlab(), s);
+      if (h == 0) {
+        InstructionFactory.throwException(frame, "java/lang/OutOfMemoryError");
+        return;
+      }
+      frame.pushHandle(h);
+      return;
+    }
+    if (frame.getThread().getHeap().newString(frame.getThread().getTlab(), s) == null) {
+      InstructionFactory.throwException(frame, "java/lang/OutOfMemoryError");
+      return;
+    }
+    frame.pushRef(s);
+  }
+
+  private static String makeKey(Symbol clazzName, Symbol methodName, Symbol descriptor) {
     return clazzName + "@" + methodName + "@" + descriptor;
   }
 }
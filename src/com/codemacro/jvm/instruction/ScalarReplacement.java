@@ -0,0 +1,294 @@
+package com.codemacro.jvm.instruction;
+
+import com.codemacro.jvm.Class;
+import com.codemacro.jvm.Trace;
+import com.codemacro.jvm.jit.EscapeAnalysis;
+import org.freeinternals.format.classfile.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Pre-decodes a method with the objects not escaping it replaced by locals of the frame.
+ * The `new' of such an object pushes null and clears the locals of its fields, getfield and
+ * putfield on it move the field local, and the small methods invoked on it are inlined with
+ * their locals renumbered after the caller's. Returns null if there's nothing to replace or
+ * any instruction can't be handled, the method is then decoded as it is.
+ */
+class ScalarReplacement {
+  private static final Logger logger = Logger.getLogger(ScalarReplacement.class.getName());
+
+  // field locals of an object not escaping, they're known when the whole method is decoded
+  private static class Site {
+    final Map<Class.Field, Integer> fields = new IdentityHashMap<>();
+    int[] locals = new int[0];
+  }
+
+  private final Class mClazz;
+  private final MethodInfo mMethod;
+  private final DecodedCode.Builder mBuilder;
+  private final Map<Integer, Site> mSites = new HashMap<>();
+  private int mNextLocal;
+
+  private ScalarReplacement(Class clazz, MethodInfo method, int codeLength, int maxLocals) {
+    mClazz = clazz;
+    mMethod = method;
+    mBuilder = new DecodedCode.Builder(codeLength);
+    mNextLocal = maxLocals;
+  }
+
+  static DecodedCode decode(Class clazz, MethodInfo method, AttributeCode code) {
+    EscapeAnalysis.Result result = EscapeAnalysis.analyze(newMethod(clazz, method, code));
+    if (result == null || result.isEmpty()) {
+      return null;
+    }
+    ScalarReplacement sr = new ScalarReplacement(clazz, method, code.getCode().length, code.getMaxLocals());
+    try {
+      int extraStack = sr.emit(clazz, code.getCode(), result, 0, -1);
+      for (Site site : sr.mSites.values()) {
+        site.locals = site.fields.values().stream().mapToInt(Integer::intValue).toArray();
+      }
+      sr.mBuilder.reserve(sr.mNextLocal - code.getMaxLocals(), extraStack);
+    } catch (IOException | UnsupportedOperationException e) {
+      if (Trace.DECODE) {
+        logger.info("scalar replacement failed: " + e.getMessage());
+      }
+      return null;
+    }
+    return sr.mBuilder.build();
+  }
+
+  private static EscapeAnalysis.Method newMethod(Class clazz, MethodInfo method, AttributeCode code) {
+    int[] handlers = new int[code.getExceptionTableLength() * 3];
+    for (int i = 0; i < code.getExceptionTableLength(); ++i) {
+      AttributeCode.ExceptionTable et = code.getExceptionTable(i);
+      handlers[i * 3] = et.getStartPc();
+      handlers[i * 3 + 1] = et.getEndPc();
+      handlers[i * 3 + 2] = et.getHandlerPc();
+    }
+    return new EscapeAnalysis.Method(code.getCode(), code.getMaxLocals(), code.getMaxStack(),
+        clazz.parseArgCount(method, method.getDescriptorIndex()), handlers, new ClassResolver(clazz));
+  }
+
+  /**
+   * Emits `codes' of `clazz' with its locals starting at `base'. An inlined method takes
+   * `callPc', the offset of its outermost call. Returns the stack slots the inlined methods
+   * need above the caller's.
+   */
+  private int emit(Class clazz, byte[] codes, EscapeAnalysis.Result result, int base, int callPc)
+      throws IOException {
+    PosDataInputStream stream = new PosDataInputStream(new PosByteArrayInputStream(codes));
+    boolean inlined = callPc >= 0;
+    int extraStack = 0;
+    int[] ops = new int[2];
+    while (stream.available() > 0) {
+      int pc = stream.getPos();
+      int op = stream.readUnsignedByte();
+      InstructionFactory.Instruction inst = InstructionFactory.instructions[op];
+      if (inst == null) {
+        throw new UnsupportedOperationException(String.format("not supported 0x%02x at %04d", op, pc));
+      }
+      int format = InstructionFactory.formats[op];
+      if (format == InstructionFactory.OPND_SWITCH) { // not in inlined methods
+        mBuilder.addSwitch(pc, op, SwitchTable.read(op, stream, pc));
+        continue;
+      }
+      InstructionFactory.readOperands(format, stream, pc, ops);
+      int at = inlined ? callPc : pc;
+      int site = result.siteAt(pc);
+      EscapeAnalysis.Result callee = result.inlinedAt(pc);
+      if (op == Opcode.op_new && site >= 0) {
+        emitNew(at, op, clazz.resolveClass(ops[0]), site(site));
+      } else if ((op == Opcode.op_getfield || op == Opcode.op_putfield) && site >= 0) {
+        int local = fieldLocal(site(site), clazz.resolveField(ops[0]));
+        mBuilder.add(at, op, op == Opcode.op_getfield ? ScalarReplacement::getField : ScalarReplacement::putField,
+            local, 0, false);
+      } else if (callee != null) {
+        extraStack = Math.max(extraStack, emitInlined(at, op, (Class.MethodRef) callee.target(), callee));
+      } else if (inlined) {
+        emitInlinedInst(at, pc, op, inst, ops, clazz, base);
+      } else {
+        if (op == Opcode.op_invokevirtual || op == Opcode.op_invokeinterface) {
+          inst = InstructionFactory.invokeCached(
+              clazz.getInlineCache(mMethod, pc, ops[0], op == Opcode.op_invokeinterface));
+        }
+        mBuilder.add(pc, op, inst, ops[0], ops[1], format == InstructionFactory.OPND_BRANCH);
+      }
+    }
+    return extraStack;
+  }
+
+  private void emitNew(int pc, int op, Class clazz, Site site) {
+    mBuilder.add(pc, op, (frame, op1, op2) -> {
+      InstructionFactory.initClass(frame.getThread(), clazz);
+      for (int local : site.locals) {
+        frame.storeLocal(local, 0);
+      }
+      frame.pushRef(null);
+    }, 0, 0, false);
+  }
+
+  // the arguments are moved to the callee's locals, the receiver is the null of the object replaced
+  private int emitInlined(int pc, int op, Class.MethodRef ref, EscapeAnalysis.Result result) throws IOException {
+    AttributeCode code = Class.getCode(ref.method);
+    int base = mNextLocal;
+    mNextLocal += code.getMaxLocals();
+    mBuilder.add(pc, op, (frame, op1, op2) -> InstructionFactory.initClass(frame.getThread(), ref.clazz),
+        0, 0, false);
+    for (int i = ref.argCnt - 1; i >= 0; --i) {
+      mBuilder.add(pc, Opcode.op_astore, ScalarReplacement::storeSlot, base + i, 0, false);
+    }
+    return code.getMaxStack() + emit(ref.clazz, code.getCode(), result, base, pc);
+  }
+
+  // an instruction at `inlinedPc' of an inlined method, accessing its locals or its class's
+  // constant pool
+  private void emitInlinedInst(int pc, int inlinedPc, int op, InstructionFactory.Instruction inst, int[] ops,
+                               Class clazz, int base) {
+    switch (op) {
+      case Opcode.op_iload_0: case Opcode.op_iload_1: case Opcode.op_iload_2: case Opcode.op_iload_3:
+        mBuilder.add(pc, op, ScalarReplacement::loadSlot, base + op - Opcode.op_iload_0, 0, false);
+        break;
+      case Opcode.op_aload_0: case Opcode.op_aload_1: case Opcode.op_aload_2: case Opcode.op_aload_3:
+        mBuilder.add(pc, op, ScalarReplacement::loadSlot, base + op - Opcode.op_aload_0, 0, false);
+        break;
+      case Opcode.op_istore_0: case Opcode.op_istore_1: case Opcode.op_istore_2: case Opcode.op_istore_3:
+        mBuilder.add(pc, op, ScalarReplacement::storeSlot, base + op - Opcode.op_istore_0, 0, false);
+        break;
+      case Opcode.op_astore_0: case Opcode.op_astore_1: case Opcode.op_astore_2: case Opcode.op_astore_3:
+        mBuilder.add(pc, op, ScalarReplacement::storeSlot, base + op - Opcode.op_astore_0, 0, false);
+        break;
+      case Opcode.op_iinc:
+        mBuilder.add(pc, op, inst, base + ops[0], ops[1], false);
+        break;
+      case Opcode.op_return: case Opcode.op_ireturn: case Opcode.op_areturn:
+        break; // the return value is left on the caller's stack
+      case Opcode.op_ldc:
+        mBuilder.add(pc, op, (frame, idx, op2) -> InstructionFactory.ldc(frame, clazz, idx), ops[0], 0, false);
+        break;
+      case Opcode.op_new:
+        mBuilder.add(pc, op, (frame, idx, op2) -> InstructionFactory.newObject(frame, clazz.resolveClass(idx)),
+            ops[0], 0, false);
+        break;
+      case Opcode.op_getfield:
+        mBuilder.add(pc, op, (frame, idx, op2) -> InstructionFactory.getField(frame, clazz.resolveField(idx)),
+            ops[0], 0, false);
+        break;
+      case Opcode.op_putfield:
+        mBuilder.add(pc, op, (frame, idx, op2) -> InstructionFactory.putField(frame, clazz.resolveField(idx)),
+            ops[0], 0, false);
+        break;
+      case Opcode.op_checkcast:
+        mBuilder.add(pc, op, (frame, idx, op2) -> InstructionFactory.checkCast(frame, clazz.resolveClass(idx)),
+            ops[0], 0, false);
+        break;
+      case Opcode.op_invokestatic: case Opcode.op_invokespecial:
+        boolean isStatic = op == Opcode.op_invokestatic;
+        mBuilder.add(pc, op, (frame, idx, op2) ->
+            InstructionFactory.invoke(frame, clazz.resolveMethodByRef(idx), isStatic), ops[0], 0, false);
+        break;
+      case Opcode.op_invokevirtual: case Opcode.op_invokeinterface: // a cache of its own in each caller
+        InlineCache cache = mClazz.getInlinedCache(mMethod, pc, clazz, inlinedPc, ops[0],
+            op == Opcode.op_invokeinterface);
+        mBuilder.add(pc, op, InstructionFactory.invokeCached(cache), ops[0], 0, false);
+        break;
+      default:
+        mBuilder.add(pc, op, inst, ops[0], ops[1], false);
+        break;
+    }
+  }
+
+  private Site site(int pc) {
+    return mSites.computeIfAbsent(pc, k -> new Site());
+  }
+
+  private int fieldLocal(Site site, Class.Field field) {
+    if (field == null || field.isWide) {
+      throw new UnsupportedOperationException("not replaceable field");
+    }
+    Integer local = site.fields.get(field);
+    if (local == null) {
+      local = mNextLocal++;
+      site.fields.put(field, local);
+    }
+    return local;
+  }
+
+  private static void getField(com.codemacro.jvm.Frame frame, int local, int op2) {
+    frame.pop();
+    frame.loadLocalSlot(local);
+  }
+
+  private static void putField(com.codemacro.jvm.Frame frame, int local, int op2) {
+    frame.storeLocalSlot(local);
+    frame.pop();
+  }
+
+  private static void loadSlot(com.codemacro.jvm.Frame frame, int local, int op2) {
+    frame.loadLocalSlot(local);
+  }
+
+  private static void storeSlot(com.codemacro.jvm.Frame frame, int local, int op2) {
+    frame.storeLocalSlot(local);
+  }
+
+  private static class ClassResolver implements EscapeAnalysis.Resolver {
+    private final Class mClazz;
+
+    ClassResolver(Class clazz) {
+      mClazz = clazz;
+    }
+
+    @Override
+    public int argCount(int cpIdx, boolean isStatic) {
+      Class.MethodRef ref = mClazz.resolveMethodByRef(cpIdx);
+      if (ref == null) { // skipped by the VM, only the receiver is popped
+        return isStatic ? 0 : 1;
+      }
+      return ref.method == null ? -1 : ref.argCnt;
+    }
+
+    @Override
+    public boolean returnsValue(int cpIdx) {
+      Class.MethodRef ref = mClazz.resolveMethodByRef(cpIdx);
+      return ref != null && !ref.clazz.getSymbol(ref.method.getDescriptorIndex()).toString().endsWith("V");
+    }
+
+    @Override
+    public boolean isIgnored(int cpIdx) {
+      return mClazz.resolveMethodByRef(cpIdx) == null;
+    }
+
+    @Override
+    public Object newClass(int cpIdx) {
+      return mClazz.resolveClass(cpIdx);
+    }
+
+    // the object is of the class created, the method it runs is known
+    @Override
+    public EscapeAnalysis.Method callee(int cpIdx, boolean virtual, Object receiver) {
+      Class.MethodRef ref = mClazz.resolveMethodByRef(cpIdx);
+      if (ref != null && virtual && ref.index >= 0) {
+        if (receiver == null) {
+          return null;
+        }
+        boolean isInterface = mClazz.getClassFile().getCPTag(cpIdx) == AbstractCPInfo.CONSTANT_InterfaceMethodref;
+        Class clazz = (Class) receiver;
+        ref = isInterface ? clazz.itableMethod(ref.clazz, ref.index) : clazz.vtableMethod(ref.index);
+      }
+      if (ref == null || ref.method == null || (ref.method.getAccessFlags() & MethodInfo.ACC_NATIVE) != 0) {
+        return null;
+      }
+      AttributeCode code = Class.getCode(ref.method);
+      if (code == null) {
+        return null;
+      }
+      EscapeAnalysis.Method method = newMethod(ref.clazz, ref.method, code);
+      method.target = ref;
+      return method;
+    }
+  }
+}
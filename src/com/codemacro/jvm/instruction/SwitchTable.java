@@ -0,0 +1,76 @@
+package com.codemacro.jvm.instruction;
+
+import com.codemacro.jvm.Frame;
+import org.freeinternals.format.classfile.Opcode;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The jump table of a tableswitch or lookupswitch, it's the instruction jumping through it.
+ * A tableswitch indexes its targets by the key minus the lowest key, a lookupswitch searches
+ * its keys, which are sorted by the class file. The targets are bytecode offsets, or
+ * instruction indexes once resolved in pre-decoded code.
+ */
+class SwitchTable implements InstructionFactory.Instruction {
+  private final int mLow;
+  private final int[] mKeys; // null for tableswitch
+  private final int[] mTargets;
+  private int mDefault;
+
+  private SwitchTable(int low, int[] keys, int[] targets, int dflt) {
+    mLow = low;
+    mKeys = keys;
+    mTargets = targets;
+    mDefault = dflt;
+  }
+
+  // reads the operands of the switch at `pc', the stream is right after the opcode
+  static SwitchTable read(int op, DataInputStream codes, int pc) throws IOException {
+    int pad = -(pc + 1) & 3; // the operands are aligned to 4 from the code start
+    for (int i = 0; i < pad; ++i) {
+      codes.readByte();
+    }
+    int dflt = pc + codes.readInt();
+    if (op == Opcode.op_tableswitch) {
+      int low = codes.readInt();
+      int high = codes.readInt();
+      int[] targets = new int[high - low + 1];
+      for (int i = 0; i < targets.length; ++i) {
+        targets[i] = pc + codes.readInt();
+      }
+      return new SwitchTable(low, null, targets, dflt);
+    }
+    int npairs = codes.readInt();
+    int[] keys = new int[npairs];
+    int[] targets = new int[npairs];
+    for (int i = 0; i < npairs; ++i) {
+      keys[i] = codes.readInt();
+      targets[i] = pc + codes.readInt();
+    }
+    return new SwitchTable(0, keys, targets, dflt);
+  }
+
+  int target(int key) {
+    if (mKeys == null) {
+      int i = key - mLow; // wraps out of the range if the difference overflows
+      return i >= 0 && i < mTargets.length ? mTargets[i] : mDefault;
+    }
+    int i = Arrays.binarySearch(mKeys, key);
+    return i >= 0 ? mTargets[i] : mDefault;
+  }
+
+  void resolve(IntUnaryOperator indexOf) {
+    mDefault = indexOf.applyAsInt(mDefault);
+    for (int i = 0; i < mTargets.length; ++i) {
+      mTargets[i] = indexOf.applyAsInt(mTargets[i]);
+    }
+  }
+
+  @Override
+  public void exec(Frame frame, int op1, int op2) {
+    frame.jump(target(frame.popInt()));
+  }
+}
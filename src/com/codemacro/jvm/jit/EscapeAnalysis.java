@@ -0,0 +1,508 @@
+package com.codemacro.jvm.jit;
+
+import com.codemacro.jvm.Trace;
+import org.freeinternals.format.classfile.Opcode;
+import org.freeinternals.format.classfile.PosByteArrayInputStream;
+import org.freeinternals.format.classfile.PosDataInputStream;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Intra-procedural escape analysis on the instructions parsed by InstParser.
+ * An object allocated by `new' doesn't escape if it's only kept in locals and on the operand
+ * stack, accessed by getfield/putfield, and used as the receiver of small straight-line methods
+ * in which it doesn't escape either, so that the methods can be inlined.
+ * It escapes when it's stored into a field, passed as an argument, returned, thrown, merged with
+ * another value at a branch target, or allocated again while the last one is alive. Locals
+ * not live at a branch target are dropped before merging, e.g. the last object of a loop.
+ * The code is interpreted on abstract values: the allocation site, which is the bytecode offset
+ * of the `new', or UNKNOWN. It's repeated until no more site is found escaping.
+ */
+public class EscapeAnalysis {
+  private static final Logger logger = Logger.getLogger(EscapeAnalysis.class.getName());
+  public static final int MAX_INLINE_SIZE = 35; // bytes of code
+  public static final int MAX_INLINE_DEPTH = 3;
+  private static final int UNKNOWN = -1;
+  private static final InstParser parser = new InstParser();
+
+  /**
+   * Answers about the constant pool of the analyzed method.
+   */
+  public interface Resolver {
+    // the slots popped by invoke `cpIdx' including the receiver, -1 if the method is unknown
+    int argCount(int cpIdx, boolean isStatic);
+    boolean returnsValue(int cpIdx);
+    // the invoke is skipped by the VM, e.g. java/lang/Object.<init>
+    boolean isIgnored(int cpIdx);
+    // the class of the objects created by `new cpIdx', it's passed back to `callee'
+    Object newClass(int cpIdx);
+    // the method invoked by `cpIdx' on an object of class `receiver', which is dispatched on it
+    // if `virtual', null if it's native or has no code
+    Method callee(int cpIdx, boolean virtual, Object receiver);
+  }
+
+  public static class Method {
+    public final byte[] code;
+    public final int maxLocals;
+    public final int maxStack;
+    public final int argCount; // slots including the receiver
+    public final int[] handlers; // {start pc, end pc, handler pc} of each exception table entry
+    public final Resolver resolver;
+    public Object target = null; // the method as known by the resolver of its caller
+    public Method(byte[] code, int maxLocals, int maxStack, int argCount, int[] handlers, Resolver resolver) {
+      this.code = code;
+      this.maxLocals = maxLocals;
+      this.maxStack = maxStack;
+      this.argCount = argCount;
+      this.handlers = handlers;
+      this.resolver = resolver;
+    }
+  }
+
+  public static class Result {
+    private final Map<Integer, Integer> mSites = new HashMap<>();
+    private final Map<Integer, Result> mInlined = new HashMap<>();
+    private int mReturnValue = UNKNOWN;
+    private Object mTarget = null;
+
+    // the site of the object created by `new' or accessed by getfield/putfield at `pc', -1 if escaping
+    public int siteAt(int pc) {
+      Integer site = mSites.get(pc);
+      return site == null ? -1 : site;
+    }
+
+    // the analysis of the method invoked at `pc' on an object not escaping, null if not inlined
+    public Result inlinedAt(int pc) {
+      return mInlined.get(pc);
+    }
+
+    public boolean isEmpty() { return mSites.isEmpty(); }
+
+    // the `target' of the inlined method
+    public Object target() { return mTarget; }
+  }
+
+  /**
+   * Returns null if the method can't be analyzed, e.g. there's an opcode not supported.
+   */
+  public static Result analyze(Method method) {
+    Set<Integer> escaped = new HashSet<>();
+    try {
+      while (true) {
+        int count = escaped.size();
+        Result result = new Analyzer(method, escaped, new HashMap<>(), UNKNOWN, 0).run();
+        if (escaped.size() == count) {
+          return result;
+        }
+      }
+    } catch (RuntimeException e) {
+      if (Trace.DECODE) {
+        logger.info("escape analysis failed: " + e.getMessage());
+      }
+      return null;
+    }
+  }
+
+  private static class State {
+    final int[] locals;
+    final int[] stack;
+    int sp = 0;
+    State(int maxLocals, int maxStack) {
+      locals = new int[maxLocals];
+      stack = new int[maxStack];
+      Arrays.fill(locals, UNKNOWN);
+    }
+    State(State s) {
+      locals = s.locals.clone();
+      stack = s.stack.clone();
+      sp = s.sp;
+    }
+    void push(int v) { stack[sp++] = v; }
+    int pop() { return stack[--sp]; }
+    boolean holds(int site) {
+      for (int v : locals) {
+        if (v == site) {
+          return true;
+        }
+      }
+      for (int i = 0; i < sp; ++i) {
+        if (stack[i] == site) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static class Analyzer {
+    private final Method mMethod;
+    private final Set<Integer> mEscaped;
+    private final Map<Integer, Object> mClasses; // site -> class of the object
+    private final int mReceiver; // the site of local 0 in an inlined method
+    private final int mDepth;
+    private final Result mResult = new Result();
+    private InstParser.Instruction[] mInsts;
+    private final Map<Integer, Integer> mIndexes = new HashMap<>(); // pc -> instruction index
+    private State[] mStates;
+    private BitSet[] mLive; // locals live before each instruction
+    private final ArrayDeque<Integer> mPending = new ArrayDeque<>();
+
+    Analyzer(Method method, Set<Integer> escaped, Map<Integer, Object> classes, int receiver, int depth) {
+      mMethod = method;
+      mEscaped = escaped;
+      mClasses = classes;
+      mReceiver = receiver;
+      mDepth = depth;
+    }
+
+    Result run() {
+      List<InstParser.Instruction> insts = parser.parse(
+          new PosDataInputStream(new PosByteArrayInputStream(mMethod.code)));
+      mInsts = insts.toArray(new InstParser.Instruction[insts.size()]);
+      for (int i = 0; i < mInsts.length; ++i) {
+        mIndexes.put(mInsts[i].pc, i);
+      }
+      mStates = new State[mInsts.length];
+      computeLiveness();
+      State entry = new State(mMethod.maxLocals, mMethod.maxStack);
+      if (mDepth > 0) {
+        entry.locals[0] = mReceiver;
+      }
+      merge(0, entry);
+      while (!mPending.isEmpty()) {
+        int idx = mPending.poll();
+        step(idx, new State(mStates[idx]));
+      }
+      return mResult;
+    }
+
+    // the analysis of an inlined method, null if it's not straight-line code ending by a return
+    Result runInlined() {
+      List<InstParser.Instruction> insts = parser.parse(
+          new PosDataInputStream(new PosByteArrayInputStream(mMethod.code)));
+      for (int i = 0; i < insts.size(); ++i) {
+        int op = insts.get(i).opcode;
+        boolean isReturn = op == Opcode.op_return || op == Opcode.op_ireturn || op == Opcode.op_areturn;
+        if (isReturn != (i == insts.size() - 1) || isBranch(op) || isSwitch(op) || op == Opcode.op_athrow) {
+          return null;
+        }
+      }
+      return run();
+    }
+
+    private void step(int idx, State s) {
+      InstParser.Instruction inst = mInsts[idx];
+      int op = inst.opcode;
+      for (int i = 0; i < mMethod.handlers.length; i += 3) {
+        if (mMethod.handlers[i] <= inst.pc && inst.pc < mMethod.handlers[i + 1]) {
+          State handler = new State(s);
+          handler.sp = 0;
+          handler.push(UNKNOWN);
+          merge(indexOf(mMethod.handlers[i + 2]), handler);
+        }
+      }
+      switch (op) {
+        case Opcode.op_iconst_m1: case Opcode.op_iconst_0: case Opcode.op_iconst_1:
+        case Opcode.op_iconst_2: case Opcode.op_iconst_3: case Opcode.op_iconst_4:
+        case Opcode.op_iconst_5: case Opcode.op_aconst_null: case Opcode.op_bipush:
+        case Opcode.op_sipush: case Opcode.op_ldc:
+        case Opcode.op_iload_0: case Opcode.op_iload_1: case Opcode.op_iload_2: case Opcode.op_iload_3:
+          s.push(UNKNOWN);
+          break;
+        case Opcode.op_aload_0: case Opcode.op_aload_1: case Opcode.op_aload_2: case Opcode.op_aload_3:
+          s.push(s.locals[op - Opcode.op_aload_0]);
+          break;
+        case Opcode.op_istore_0: case Opcode.op_istore_1: case Opcode.op_istore_2: case Opcode.op_istore_3:
+          s.locals[op - Opcode.op_istore_0] = s.pop();
+          break;
+        case Opcode.op_astore_0: case Opcode.op_astore_1: case Opcode.op_astore_2: case Opcode.op_astore_3:
+          s.locals[op - Opcode.op_astore_0] = s.pop();
+          break;
+        case Opcode.op_iadd: case Opcode.op_isub: case Opcode.op_imul: case Opcode.op_idiv:
+          s.pop();
+          s.pop();
+          s.push(UNKNOWN);
+          break;
+        case Opcode.op_iinc:
+        case Opcode.op_checkcast:
+          break;
+        case Opcode.op_pop:
+          s.pop();
+          break;
+        case Opcode.op_dup:
+          s.push(s.stack[s.sp - 1]);
+          break;
+        case Opcode.op_new:
+          newObject(inst, s);
+          break;
+        case Opcode.op_getfield:
+          record(inst.pc, s.pop());
+          s.push(UNKNOWN);
+          break;
+        case Opcode.op_putfield:
+          escape(s.pop());
+          record(inst.pc, s.pop());
+          break;
+        case Opcode.op_invokestatic:
+          invoke(inst, s, true);
+          break;
+        case Opcode.op_invokevirtual:
+        case Opcode.op_invokeinterface:
+        case Opcode.op_invokespecial:
+          invoke(inst, s, false);
+          break;
+        case Opcode.op_areturn:
+          if (mDepth == 0) {
+            escape(s.pop());
+          } else {
+            mResult.mReturnValue = s.pop();
+          }
+          checkReturn(s);
+          return;
+        case Opcode.op_ireturn:
+          s.pop();
+          checkReturn(s);
+          return;
+        case Opcode.op_return:
+          checkReturn(s);
+          return;
+        case Opcode.op_athrow:
+          escape(s.pop());
+          return;
+        case Opcode.op_goto:
+          merge(indexOf(target(inst)), s);
+          return;
+        case Opcode.op_if_acmpeq: case Opcode.op_if_acmpne:
+        case Opcode.op_ifnull: case Opcode.op_ifnonnull: // a replaced object is a null on the stack
+          escape(s.pop());
+          if (op == Opcode.op_if_acmpeq || op == Opcode.op_if_acmpne) {
+            escape(s.pop());
+          }
+          merge(indexOf(target(inst)), new State(s));
+          break;
+        case Opcode.op_tableswitch:
+        case Opcode.op_lookupswitch:
+          s.pop();
+          merge(indexOf(inst.op1), new State(s));
+          for (int target : inst.targets) {
+            merge(indexOf(target), new State(s));
+          }
+          return;
+        default:
+          if (!isBranch(op)) {
+            throw new IllegalStateException(String.format("unsupported opcode 0x%02x", op));
+          }
+          s.pop();
+          if (op >= Opcode.op_if_icmpeq) {
+            s.pop();
+          }
+          merge(indexOf(target(inst)), new State(s));
+          break;
+      }
+      merge(idx + 1, s);
+    }
+
+    private void newObject(InstParser.Instruction inst, State s) {
+      int pc = inst.pc;
+      if (mDepth > 0 || mEscaped.contains(pc)) { // objects allocated by inlined methods are kept
+        record(pc, UNKNOWN);
+        s.push(UNKNOWN);
+        return;
+      }
+      if (s.holds(pc)) { // in a loop, the object of the last iteration is alive
+        escape(pc);
+        record(pc, UNKNOWN);
+        s.push(UNKNOWN);
+        return;
+      }
+      mClasses.computeIfAbsent(pc, k -> mMethod.resolver.newClass(((inst.op1 & 0xff) << 8) | (inst.op2 & 0xff)));
+      record(pc, pc);
+      s.push(pc);
+    }
+
+    private void invoke(InstParser.Instruction inst, State s, boolean isStatic) {
+      Resolver resolver = mMethod.resolver;
+      int cpIdx = ((inst.op1 & 0xff) << 8) | (inst.op2 & 0xff);
+      int cnt = resolver.argCount(cpIdx, isStatic);
+      if (cnt < 0) {
+        throw new IllegalStateException("unknown method at " + inst.pc);
+      }
+      int[] args = new int[cnt];
+      for (int i = cnt - 1; i >= 0; --i) {
+        args[i] = s.pop();
+      }
+      for (int i = isStatic ? 0 : 1; i < cnt; ++i) {
+        escape(args[i]);
+      }
+      int ret = UNKNOWN;
+      mResult.mInlined.remove(inst.pc);
+      if (!isStatic && args[0] != UNKNOWN && !(resolver.isIgnored(cpIdx) && cnt == 1)) {
+        Result callee = inline(cpIdx, inst.opcode != Opcode.op_invokespecial, args[0]);
+        if (callee == null) {
+          escape(args[0]);
+        } else {
+          mResult.mInlined.put(inst.pc, callee);
+          ret = callee.mReturnValue;
+        }
+      }
+      if (resolver.returnsValue(cpIdx)) {
+        s.push(ret);
+      }
+    }
+
+    private Result inline(int cpIdx, boolean virtual, int site) {
+      if (mDepth + 1 > MAX_INLINE_DEPTH) {
+        return null;
+      }
+      Method callee = mMethod.resolver.callee(cpIdx, virtual, mClasses.get(site));
+      if (callee == null || callee.code.length > MAX_INLINE_SIZE || callee.handlers.length > 0) {
+        return null;
+      }
+      Result result = new Analyzer(callee, mEscaped, mClasses, site, mDepth + 1).runInlined();
+      if (result != null) {
+        result.mTarget = callee.target;
+      }
+      return result;
+    }
+
+    // an inlined method leaves nothing but the return value on the stack
+    private void checkReturn(State s) {
+      if (mDepth > 0 && s.sp != 0) {
+        escape(mReceiver);
+      }
+    }
+
+    private void record(int pc, int site) {
+      if (site == UNKNOWN) {
+        mResult.mSites.remove(pc);
+      } else {
+        mResult.mSites.put(pc, site);
+      }
+    }
+
+    private void escape(int site) {
+      if (site != UNKNOWN) {
+        mEscaped.add(site);
+      }
+    }
+
+    private void merge(int idx, State s) {
+      for (int i = 0; i < s.locals.length; ++i) {
+        if (!mLive[idx].get(i)) {
+          s.locals[i] = UNKNOWN;
+        }
+      }
+      State old = mStates[idx];
+      if (old == null) {
+        mStates[idx] = s;
+        mPending.add(idx);
+        return;
+      }
+      if (old.sp != s.sp) {
+        throw new IllegalStateException("stack depth mismatch at " + mInsts[idx].pc);
+      }
+      boolean changed = mergeSlots(old.locals, s.locals, old.locals.length)
+          | mergeSlots(old.stack, s.stack, old.sp);
+      if (changed && !mPending.contains(idx)) {
+        mPending.add(idx);
+      }
+    }
+
+    private boolean mergeSlots(int[] to, int[] from, int cnt) {
+      boolean changed = false;
+      for (int i = 0; i < cnt; ++i) {
+        if (to[i] != from[i]) {
+          escape(to[i]);
+          escape(from[i]);
+          changed |= to[i] != UNKNOWN;
+          to[i] = UNKNOWN;
+        }
+      }
+      return changed;
+    }
+
+    // backward data flow until no live set changes
+    private void computeLiveness() {
+      mLive = new BitSet[mInsts.length];
+      for (int i = 0; i < mInsts.length; ++i) {
+        mLive[i] = new BitSet();
+      }
+      boolean changed = true;
+      while (changed) {
+        changed = false;
+        for (int i = mInsts.length - 1; i >= 0; --i) {
+          BitSet live = liveOut(i);
+          int op = mInsts[i].opcode;
+          if (op >= Opcode.op_istore_0 && op <= Opcode.op_istore_3) {
+            live.clear(op - Opcode.op_istore_0);
+          } else if (op >= Opcode.op_astore_0 && op <= Opcode.op_astore_3) {
+            live.clear(op - Opcode.op_astore_0);
+          } else if (op >= Opcode.op_iload_0 && op <= Opcode.op_iload_3) {
+            live.set(op - Opcode.op_iload_0);
+          } else if (op >= Opcode.op_aload_0 && op <= Opcode.op_aload_3) {
+            live.set(op - Opcode.op_aload_0);
+          } else if (op == Opcode.op_iinc) {
+            live.set(mInsts[i].op1 & 0xff);
+          }
+          if (!live.equals(mLive[i])) {
+            mLive[i] = live;
+            changed = true;
+          }
+        }
+      }
+    }
+
+    private BitSet liveOut(int idx) {
+      BitSet out = new BitSet();
+      InstParser.Instruction inst = mInsts[idx];
+      int op = inst.opcode;
+      boolean falls = op != Opcode.op_goto && op != Opcode.op_athrow && op != Opcode.op_return
+          && op != Opcode.op_ireturn && op != Opcode.op_areturn && !isSwitch(op);
+      if (falls && idx + 1 < mInsts.length) {
+        out.or(mLive[idx + 1]);
+      }
+      if (isBranch(op)) {
+        out.or(mLive[indexOf(target(inst))]);
+      } else if (isSwitch(op)) {
+        out.or(mLive[indexOf(inst.op1)]);
+        for (int target : inst.targets) {
+          out.or(mLive[indexOf(target)]);
+        }
+      }
+      for (int i = 0; i < mMethod.handlers.length; i += 3) {
+        if (mMethod.handlers[i] <= inst.pc && inst.pc < mMethod.handlers[i + 1]) {
+          out.or(mLive[indexOf(mMethod.handlers[i + 2])]);
+        }
+      }
+      return out;
+    }
+
+    private int indexOf(int pc) {
+      Integer idx = mIndexes.get(pc);
+      if (idx == null) {
+        throw new IllegalStateException("no instruction at " + pc);
+      }
+      return idx;
+    }
+
+    private static int target(InstParser.Instruction inst) {
+      return inst.pc + (short) ((inst.op1 << 8) | inst.op2);
+    }
+
+    private static boolean isBranch(int op) {
+      return op >= Opcode.op_ifeq && op <= Opcode.op_goto || op == Opcode.op_ifnull || op == Opcode.op_ifnonnull;
+    }
+
+    private static boolean isSwitch(int op) {
+      return op == Opcode.op_tableswitch || op == Opcode.op_lookupswitch;
+    }
+  }
+}
@@ -29,6 +29,10 @@ public class IR {
   public static final int op_jmp_le = inst();
   public static final int op_ret = inst(); // ret var
   public static final int op_label = inst(); // label #N
+  // jtab var, N: followed by N `case #L', the default then the labels of indexes 0 .. N-2,
+  // lowered to a bounds check of var jumping to the default and a jump through a native table
+  public static final int op_jmp_tab = inst();
+  public static final int op_case = inst(); // case #L
 
   private static int inst() { return inst_seed ++; }
   private static final Map<Integer, String> OP_STR = new HashMap<Integer, String>(){{
@@ -46,6 +50,8 @@ public class IR {
     put(op_jmp_le, "jle");
     put(op_ret, "ret");
     put(op_label, "lbl");
+    put(op_jmp_tab, "jtab");
+    put(op_case, "case");
   }};
 
   public static class Inst {
@@ -78,11 +84,17 @@ public class IR {
   private static final Map<Integer, Translator> translators = new HashMap<>();
 
   private interface LabelParser {
-    int parse(InstParser.Instruction inst);
+    void parse(InstParser.Instruction inst, List<Integer> labels);
   }
-  private static LabelParser ifLabelParser = (inst) -> {
+  private static LabelParser ifLabelParser = (inst, labels) -> {
     short offset = (short)((inst.op1 << 8) + inst.op2);
-    return offset + inst.pc;
+    labels.add(offset + inst.pc);
+  };
+  private static LabelParser switchLabelParser = (inst, labels) -> {
+    labels.add(inst.op1);
+    for (int pc : inst.targets) {
+      labels.add(pc);
+    }
   };
   private static final Map<Integer, LabelParser> labelParsers = new HashMap<>();
 
@@ -138,8 +150,43 @@ public class IR {
       state.addIR(new Inst(op_jmp_le, var, label));
     });
 
+    translators.put(Opcode.op_tableswitch, (state, inst, iterator) -> {
+      int low = state.pushStack(); // the index is key - low
+      state.addIR(new Inst(op_mov, inst.op2, low));
+      state.popStack();
+      int key = state.popStack();
+      state.addIR(new Inst(op_sub, key, low));
+      addJumpTable(state, key, inst.op1, inst.targets);
+    });
+    translators.put(Opcode.op_lookupswitch, (state, inst, iterator) -> {
+      int[] keys = inst.keys;
+      if (keys.length == 0 || (long) keys[keys.length - 1] - keys[0] + 1 > keys.length * 3L) {
+        throw new UnsupportedOperationException("sparse lookupswitch");
+      }
+      // dense keys become a tableswitch from the lowest one, the gaps jump to the default
+      int low = keys[0];
+      int[] targets = new int[keys[keys.length - 1] - low + 1];
+      Arrays.fill(targets, inst.op1);
+      for (int i = 0; i < keys.length; ++i) {
+        targets[keys[i] - low] = inst.targets[i];
+      }
+      InstParser.Instruction table = new InstParser.Instruction(inst.pc, Opcode.op_tableswitch, inst.op1, low);
+      table.targets = targets;
+      translators.get(Opcode.op_tableswitch).translate(state, table, iterator);
+    });
+
     labelParsers.put(Opcode.op_ifgt, ifLabelParser);
     labelParsers.put(Opcode.op_ifle, ifLabelParser);
+    labelParsers.put(Opcode.op_tableswitch, switchLabelParser);
+    labelParsers.put(Opcode.op_lookupswitch, switchLabelParser);
+  }
+
+  private static void addJumpTable(State state, int var, int dflt, int[] targets) {
+    state.addIR(new Inst(op_jmp_tab, var, targets.length + 1));
+    state.addIR(new Inst(op_case, state.findLabel(dflt)));
+    for (int pc : targets) {
+      state.addIR(new Inst(op_case, state.findLabel(pc)));
+    }
   }
 
   private static Translator createIConst(int val) {
@@ -187,7 +234,12 @@ public class IR {
         logger.info(String.format("IR translate failed by not supported %02x", inst.opcode));
         return null;
       }
-      translator.translate(state, inst, it);
+      try {
+        translator.translate(state, inst, it);
+      } catch (UnsupportedOperationException e) {
+        logger.info("IR translate failed: " + e.getMessage());
+        return null;
+      }
     }
     dumpToFile(state.irs, "irs.out");
     return new IRResult(state.irs, labels.size());
@@ -226,8 +278,7 @@ public class IR {
     for (InstParser.Instruction i : jbytecode) {
       LabelParser labelParser = labelParsers.get(i.opcode);
       if (labelParser != null) {
-        int pc = labelParser.parse(i);
-        labels.add(pc);
+        labelParser.parse(i, labels);
       }
     }
     return labels;
@@ -22,6 +22,9 @@ public class InstParser {
     public final int opcode;
     public final int pc;
     public int op1 = 0, op2 = 0;
+    // a switch has the default target pc in op1 and the lowest key of tableswitch in op2, the
+    // keys of lookupswitch, and the target pcs of its cases
+    public int[] keys = null, targets = null;
     public enum Type { _0, _1, _2} ;
     Type type;
     public Instruction(int pc, int code) { this(pc, code, 0, 0, Type._0); }
@@ -63,6 +66,35 @@ public class InstParser {
     int b2 = stream.readUnsignedByte();
     return new Instruction(pc, code, b1, b2);
   };
+  private Reader readerInterface = (pc, code, stream) -> { // the count and 0 are skipped
+    int b1 = stream.readByte();
+    int b2 = stream.readByte();
+    stream.readShort();
+    return new Instruction(pc, code, b1, b2);
+  };
+  private Reader readerSwitch = (pc, code, stream) -> {
+    int pad = -(pc + 1) & 3; // the operands are aligned to 4 from the code start
+    for (int i = 0; i < pad; ++i) {
+      stream.readByte();
+    }
+    Instruction inst = new Instruction(pc, code, pc + stream.readInt());
+    int count;
+    if (code == Opcode.op_tableswitch) {
+      inst.op2 = stream.readInt();
+      count = stream.readInt() - inst.op2 + 1;
+    } else {
+      count = stream.readInt();
+      inst.keys = new int[count];
+    }
+    inst.targets = new int[count];
+    for (int i = 0; i < count; ++i) {
+      if (inst.keys != null) {
+        inst.keys[i] = stream.readInt();
+      }
+      inst.targets[i] = pc + stream.readInt();
+    }
+    return inst;
+  };
   private Map<Integer, Reader> readers = new HashMap<>();
 
   public InstParser() {
@@ -104,11 +136,19 @@ public class InstParser {
 
     register(Opcode.op_ifgt, readerUBUB);
     register(Opcode.op_ifle, readerUBUB);
+    register(Opcode.op_ifne, readerUBUB);
     register(Opcode.op_if_icmpge, readerUBUB);
     register(Opcode.op_if_icmpgt, readerUBUB);
     register(Opcode.op_if_icmplt, readerUBUB);
     register(Opcode.op_if_icmple, readerUBUB);
+    register(Opcode.op_if_icmpne, readerUBUB);
+    register(Opcode.op_if_acmpeq, readerUBUB);
+    register(Opcode.op_if_acmpne, readerUBUB);
+    register(Opcode.op_ifnull, readerUBUB);
+    register(Opcode.op_ifnonnull, readerUBUB);
     register(Opcode.op_goto, readerUBUB);
+    register(Opcode.op_tableswitch, readerSwitch);
+    register(Opcode.op_lookupswitch, readerSwitch);
 
     register(Opcode.op_new, readerBB);
 
@@ -122,6 +162,7 @@ public class InstParser {
     register(Opcode.op_invokestatic, readerBB);
     register(Opcode.op_invokespecial, readerBB);
     register(Opcode.op_invokevirtual, readerBB);
+    register(Opcode.op_invokeinterface, readerInterface);
     register(Opcode.op_pop, reader0);
 
     register(Opcode.op_dup, reader0);
@@ -129,6 +170,7 @@ public class InstParser {
     register(Opcode.op_putfield, readerBB);
     register(Opcode.op_getfield, readerBB);
     register(Opcode.op_checkcast, readerBB);
+    register(Opcode.op_athrow, reader0);
   }
 
   public List<Instruction> parse(PosDataInputStream stream) {
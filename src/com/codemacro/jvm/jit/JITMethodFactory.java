@@ -6,8 +6,10 @@ import org.freeinternals.format.classfile.PosDataInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,22 +19,27 @@ import java.util.logging.Logger;
 public class JITMethodFactory {
   private static final Logger logger = Logger.getLogger(JITMethodFactory.class.getName());
   private static Map<String, ToyJIT> methods = new HashMap<>();
+  private static Set<String> failed = new HashSet<>(); // not compiled, never tried again
   private static InstParser bytecodeParser = new InstParser();
   private static IR irGenerator = new IR();
-  public static boolean enable = false;
 
   public static ToyJIT compile(String clazzName, String methodName, String methodDescriptor,
                         final byte[] codes, int maxLocals, int maxStack, int argCnt, boolean hasRet) {
-    if (!enable) return null;
     String k = key(clazzName, methodName, methodDescriptor);
     ToyJIT jit = methods.get(k);
-    if (jit != null) {
+    if (jit != null || failed.contains(k)) {
       return jit;
     }
-    jit = compile(codes, maxLocals, maxStack, argCnt, hasRet);
+    try {
+      jit = compile(codes, maxLocals, maxStack, argCnt, hasRet);
+    } catch (RuntimeException e) {
+      logger.info(String.format("can not compile '%s': %s", k, e.getMessage()));
+    }
     if (jit != null) {
       logger.info(String.format("compile '%s' into native code", k));
       methods.put(k, jit);
+    } else {
+      failed.add(k);
     }
     return jit;
   }
@@ -50,8 +50,11 @@ public class AttributeCode extends AttributeInfo {
     private transient ExceptionTable[] exceptionTable;
     private transient final u2 attributes_count;
     private transient AttributeInfo[] attributes;
+    // Lazy mode: the class and offset of the attributes, 0 once decoded
+    private transient final ClassFile classFile;
+    private transient volatile int attributesOffset;
 
-    AttributeCode(final u2 nameIndex, final String type, final PosDataInputStream posDataInputStream, final AbstractCPInfo[] cp)
+    AttributeCode(final u2 nameIndex, final String type, final PosDataInputStream posDataInputStream, final ClassFile cf)
             throws IOException, FileFormatException {
         super(nameIndex, type, posDataInputStream);
 
@@ -78,10 +81,14 @@ public class AttributeCode extends AttributeInfo {
         this.attributes_count = new u2();
         this.attributes_count.value = posDataInputStream.readUnsignedShort();
         final int attrCount = this.attributes_count.value;
-        if (attrCount > 0) {
+        this.classFile = cf;
+        if (cf.isLazy()) {
+            // e.g. LineNumberTable and LocalVariableTable, decoded on demand
+            this.attributesOffset = ClassFile.skipAttributes(posDataInputStream, attrCount);
+        } else if (attrCount > 0) {
             this.attributes = new AttributeInfo[attrCount];
             for (i = 0; i < attrCount; i++) {
-                this.attributes[i] = AttributeInfo.parse(posDataInputStream, cp);
+                this.attributes[i] = AttributeInfo.parse(posDataInputStream, cf);
             }
 
         }
@@ -164,9 +171,19 @@ public class AttributeCode extends AttributeInfo {
      * @return The value of {@code attributes}[{@code index}]
      */
     public AttributeInfo getAttribute(final int index) {
+        if (this.attributesOffset != 0) {
+            this.decodeAttributes();
+        }
         return this.attributes[index];
     }
 
+    private synchronized void decodeAttributes() {
+        if (this.attributesOffset != 0) {
+            this.attributes = this.classFile.parseAttributes(this.attributesOffset, this.attributes_count.value);
+            this.attributesOffset = 0;
+        }
+    }
+
     /**
      * The {@code exception_table} structure in {@code Code} attribute.
      *
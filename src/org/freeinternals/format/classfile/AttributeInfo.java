@@ -128,18 +128,19 @@ public class AttributeInfo extends ClassComponent {
         this.length = this.attribute_length.value + 6;
     }
 
-    static AttributeInfo parse(final PosDataInputStream posDataInputStream, final AbstractCPInfo[] cp)
+    static AttributeInfo parse(final PosDataInputStream posDataInputStream, final ClassFile cf)
             throws IOException, FileFormatException {
         AttributeInfo attr = new AttributeInfo();
 
         final u2 attrNameIndex = new u2();
         attrNameIndex.value = posDataInputStream.readUnsignedShort();
-        if (AbstractCPInfo.CONSTANT_Utf8 == cp[attrNameIndex.value].tag.value) {
-            final String type = ((ConstantUtf8Info) cp[attrNameIndex.value]).getValue();
+        final AbstractCPInfo nameInfo = cf.getCPInfo(attrNameIndex.value);
+        if (AbstractCPInfo.CONSTANT_Utf8 == nameInfo.tag.value) {
+            final String type = ((ConstantUtf8Info) nameInfo).getValue();
             if (TypeConstantValue.equals(type)) {
                 attr = new AttributeConstantValue(attrNameIndex, type, posDataInputStream);
             } else if (TypeCode.equals(type)) {
-                attr = new AttributeCode(attrNameIndex, type, posDataInputStream, cp);
+                attr = new AttributeCode(attrNameIndex, type, posDataInputStream, cf);
             } else if (TypeExceptions.equals(type)) {
                 attr = new AttributeExceptions(attrNameIndex, type, posDataInputStream);
             } else if (TypeInnerClasses.equals(type)) {
@@ -158,7 +159,7 @@ public class AttributeInfo extends ClassComponent {
                 attr = new AttributeExtended(attrNameIndex, Extended + type, posDataInputStream);
             }
         } else {
-            throw new FileFormatException(String.format("Attribute name_index is not CONSTANT_Utf8. Constant index = %d, type = %d.", attrNameIndex.value, cp[attrNameIndex.value].tag.value));
+            throw new FileFormatException(String.format("Attribute name_index is not CONSTANT_Utf8. Constant index = %d, type = %d.", attrNameIndex.value, nameInfo.tag.value));
         }
 
         return attr;
@@ -6,7 +6,10 @@
  */
 package org.freeinternals.format.classfile;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.freeinternals.format.FileFormatException;
@@ -37,6 +40,9 @@ import org.freeinternals.format.FileFormatException;
  * </pre>
  *
  * The {@code ClassFile} object is constructed from the class byte array.
+ * A lazily parsed {@code ClassFile} only scans the class once to record the
+ * offsets of the constant pool entries, members and attributes, each of them
+ * is decoded from the kept image on the first access by the getters.
  *
  *
  *
@@ -76,6 +82,14 @@ public class ClassFile {
     // Attribute
     private AttributeCount attributes_count;
     private AttributeInfo[] attributes;
+    // Lazy mode: the class image and offsets in it, an offset is set to 0
+    // once the part is decoded
+    private ByteBuffer image;
+    private int[] cpOffsets;
+    private int declarationOffset;
+    private volatile int fieldsOffset;
+    private volatile int methodsOffset;
+    private volatile int attributesOffset;
 
     /**
      * Creates a new instance of ClassFile from byte array.
@@ -89,58 +103,168 @@ public class ClassFile {
             throws java.io.IOException, FileFormatException {
         this.classByteArray = classByteArray.clone();
         final ClassFile.Parser parser = new Parser();
-        parser.parse();
+        parser.parse(new PosDataInputStream(new PosByteArrayInputStream(this.classByteArray)));
         this.analysisDeclarations();
     }
 
+    /**
+     * Creates a new instance of ClassFile parsing the remaining bytes of a
+     * buffer in place, e.g. a mapped file. The buffer is not kept, so
+     * {@link #getClassByteArray()} returns {@code null} for this instance.
+     *
+     * @param classByteBuffer Buffer of a class file, its position is not
+     * changed
+     * @throws java.io.IOException Error happened when reading the buffer
+     * @throws FileFormatException The input parameter {@code classByteBuffer}
+     * is not a valid class
+     */
+    public ClassFile(final ByteBuffer classByteBuffer)
+            throws java.io.IOException, FileFormatException {
+        this(classByteBuffer, false);
+    }
+
+    /**
+     * Creates a new instance of ClassFile from the remaining bytes of a
+     * buffer. If {@code lazy} is set, the buffer is kept to decode the
+     * entries on demand, so its content must not change while this instance
+     * is used.
+     *
+     * @param classByteBuffer Buffer of a class file, its position is not
+     * changed
+     * @param lazy Scan the class only and decode the entries on first access
+     * @throws java.io.IOException Error happened when reading the buffer
+     * @throws FileFormatException The input parameter {@code classByteBuffer}
+     * is not a valid class
+     */
+    public ClassFile(final ByteBuffer classByteBuffer, final boolean lazy)
+            throws java.io.IOException, FileFormatException {
+        this.classByteArray = null;
+        final ClassFile.Parser parser = new Parser();
+        if (lazy) {
+            this.image = classByteBuffer.slice();
+            parser.scan(new PosDataInputStream(new PosByteBufferInputStream(this.image)));
+        } else {
+            parser.parse(new PosDataInputStream(new PosByteBufferInputStream(classByteBuffer)));
+            this.analysisDeclarations();
+        }
+        this.posDataInputStream = null; // do not hold the buffer
+    }
+
+    /**
+     * Creates a new lazy instance from the offsets found by a previous scan
+     * of the same class file, see {@link #getScanOffsets()}, so the constant
+     * pool and the members are not scanned again. Only the header and the
+     * class declaration are read.
+     *
+     * @param classByteBuffer Buffer of a class file, kept as in
+     * {@link #ClassFile(ByteBuffer, boolean)}
+     * @param scanOffsets The offsets of the previous scan
+     * @throws java.io.IOException Error happened when reading the buffer
+     * @throws FileFormatException The input parameter {@code classByteBuffer}
+     * is not a valid class
+     */
+    public ClassFile(final ByteBuffer classByteBuffer, final int[] scanOffsets)
+            throws java.io.IOException, FileFormatException {
+        this.classByteArray = null;
+        this.image = classByteBuffer.slice();
+        final int cp_count = scanOffsets.length - 4;
+        this.cpOffsets = Arrays.copyOf(scanOffsets, cp_count);
+        this.declarationOffset = scanOffsets[cp_count];
+        this.fieldsOffset = scanOffsets[cp_count + 1];
+        this.methodsOffset = scanOffsets[cp_count + 2];
+        this.attributesOffset = scanOffsets[cp_count + 3];
+        final ClassFile.Parser parser = new Parser();
+        this.posDataInputStream = this.streamAt(0);
+        this.magic = new u4(this.posDataInputStream.readInt());
+        if (this.magic.value != ClassFile.MAGIC) {
+            throw new FileFormatException("The magic number of the byte array is not 0xCAFEBABE");
+        }
+        parser.parseClassFileVersion();
+        this.constant_pool_count = new CPCount(this.posDataInputStream);
+        if (this.constant_pool_count.getValue() != cp_count) {
+            throw new FileFormatException("The scan offsets are not of this class file");
+        }
+        this.constant_pool = new AbstractCPInfo[cp_count];
+        this.posDataInputStream = this.streamAt(this.declarationOffset);
+        parser.parseClassDeclaration();
+        this.fields_count = new FieldCount(this.streamAt(this.fieldsOffset - 2));
+        this.methods_count = new MethodCount(this.streamAt(this.methodsOffset - 2));
+        this.attributes_count = new AttributeCount(this.streamAt(this.attributesOffset - 2));
+        this.posDataInputStream = null;
+    }
+
+    /**
+     * Get the offsets found by the scan of a lazy instance: each constant
+     * pool entry, then the class declaration, the fields, the methods and
+     * the attributes. It's valid before any member or attribute is decoded.
+     *
+     * @return The offsets, {@code null} if the instance is not lazy
+     */
+    public int[] getScanOffsets() {
+        if (this.cpOffsets == null) {
+            return null;
+        }
+        final int cp_count = this.cpOffsets.length;
+        final int[] offsets = Arrays.copyOf(this.cpOffsets, cp_count + 4);
+        offsets[cp_count] = this.declarationOffset;
+        offsets[cp_count + 1] = this.fieldsOffset;
+        offsets[cp_count + 2] = this.methodsOffset;
+        offsets[cp_count + 3] = this.attributesOffset;
+        return offsets;
+    }
+
     private void analysisDeclarations()
             throws FileFormatException {
-
-        // Analysis field declarations
         if (this.fields_count.getValue() > 0) {
-            String type;
             for (FieldInfo field : fields) {
-                try {
-                    type = SignatureConvertor.signature2Type(this.getConstantUtf8Value(field.getDescriptorIndex()));
-                } catch (SignatureException se) {
-                    type = "[Unexpected signature type]: " + this.getConstantUtf8Value(field.getDescriptorIndex());
-                    //System.err.println(se.toString());
-                }
-                field.setDeclaration(String.format("%s %s %s",
-                        field.getModifiers(),
-                        type,
-                        this.getConstantUtf8Value(field.getNameIndex())));
+                field.setDeclaration(this.declarationOf(field));
             }
         }
-
-
-        // Analysis method declarations
         if (this.methods_count.getValue() > 0) {
-            String mtdReturnType;
-            String mtdParameters;
             for (MethodInfo method : methods) {
-                try {
-                    mtdReturnType = SignatureConvertor.parseMethodReturnType(this.getConstantUtf8Value(method.getDescriptorIndex()));
-                } catch (SignatureException se) {
-                    mtdReturnType = String.format("[Unexpected method return type: %s]", this.getConstantUtf8Value(method.getDescriptorIndex()));
-                    //System.err.println(se.toString());
-                }
-                try {
-                    mtdParameters = SignatureConvertor.parseMethodParameters(this.getConstantUtf8Value(method.getDescriptorIndex()));
-                } catch (SignatureException se) {
-                    mtdParameters = String.format("[Unexpected method parameters: %s]", this.getConstantUtf8Value(method.getDescriptorIndex()));
-                    //System.err.println(se.toString());
-                }
-
-                method.setDeclaration(String.format("%s %s %s %s",
-                        method.getModifiers(),
-                        mtdReturnType,
-                        this.getConstantUtf8Value(method.getNameIndex()),
-                        mtdParameters));
+                method.setDeclaration(this.declarationOf(method));
             }
         }
     }
 
+    String declarationOf(final FieldInfo field)
+            throws FileFormatException {
+        String type;
+        try {
+            type = SignatureConvertor.signature2Type(this.getConstantUtf8Value(field.getDescriptorIndex()));
+        } catch (SignatureException se) {
+            type = "[Unexpected signature type]: " + this.getConstantUtf8Value(field.getDescriptorIndex());
+            //System.err.println(se.toString());
+        }
+        return String.format("%s %s %s",
+                field.getModifiers(),
+                type,
+                this.getConstantUtf8Value(field.getNameIndex()));
+    }
+
+    String declarationOf(final MethodInfo method)
+            throws FileFormatException {
+        String mtdReturnType;
+        String mtdParameters;
+        try {
+            mtdReturnType = SignatureConvertor.parseMethodReturnType(this.getConstantUtf8Value(method.getDescriptorIndex()));
+        } catch (SignatureException se) {
+            mtdReturnType = String.format("[Unexpected method return type: %s]", this.getConstantUtf8Value(method.getDescriptorIndex()));
+            //System.err.println(se.toString());
+        }
+        try {
+            mtdParameters = SignatureConvertor.parseMethodParameters(this.getConstantUtf8Value(method.getDescriptorIndex()));
+        } catch (SignatureException se) {
+            mtdParameters = String.format("[Unexpected method parameters: %s]", this.getConstantUtf8Value(method.getDescriptorIndex()));
+            //System.err.println(se.toString());
+        }
+        return String.format("%s %s %s %s",
+                method.getModifiers(),
+                mtdReturnType,
+                this.getConstantUtf8Value(method.getNameIndex()),
+                mtdParameters);
+    }
+
     /**
      * Get a UTF-8 text from the constant pool.
      * 
@@ -158,14 +282,15 @@ public class ClassFile {
                     cpIndex));
         }
 
-        if (this.constant_pool[cpIndex].tag.value == AbstractCPInfo.CONSTANT_Utf8) {
-            final ConstantUtf8Info utf8Info = (ConstantUtf8Info) this.constant_pool[cpIndex];
+        final AbstractCPInfo info = this.getCPInfo(cpIndex);
+        if (info.tag.value == AbstractCPInfo.CONSTANT_Utf8) {
+            final ConstantUtf8Info utf8Info = (ConstantUtf8Info) info;
             returnValue = utf8Info.getValue();
         } else {
             throw new FileFormatException(String.format(
                     "Unexpected constant pool type: Utf8(%d) expected, but it is '%d'.",
                     AbstractCPInfo.CONSTANT_Utf8,
-                    this.constant_pool[cpIndex].tag.value));
+                    info.tag.value));
         }
 
         return returnValue;
@@ -246,9 +371,54 @@ public class ClassFile {
      * @return The {@code constant_pool[]}
      */
     public AbstractCPInfo[] getConstantPool() {
+        if (this.cpOffsets != null) {
+            for (int i = 1; i < this.cpOffsets.length; i++) {
+                this.getCPInfo(i);
+            }
+        }
         return this.constant_pool;
     }
 
+    /**
+     * Get the {@code constant_pool[index]} of the {@code ClassFile} structure,
+     * it's decoded on the first access in lazy mode.
+     *
+     * @param index Index in the constant pool
+     * @return The {@code constant_pool[index]}, {@code null} for index 0 and
+     * the second slot of a long or double
+     */
+    public AbstractCPInfo getCPInfo(final int index) {
+        if (this.cpOffsets == null) {
+            return this.constant_pool[index];
+        }
+        synchronized (this) {
+            if (this.constant_pool[index] == null && this.cpOffsets[index] != 0) {
+                try {
+                    final PosDataInputStream input = this.streamAt(this.cpOffsets[index]);
+                    this.constant_pool[index] = parseCPInfo(input, input.readUnsignedByte());
+                } catch (IOException | FileFormatException e) {
+                    throw new IllegalStateException("Decode constant pool entry " + index + " failed", e);
+                }
+            }
+            return this.constant_pool[index];
+        }
+    }
+
+    /**
+     * Get the tag of {@code constant_pool[index]} without decoding it.
+     *
+     * @param index Index in the constant pool
+     * @return The tag, or 0 for index 0 and the second slot of a long or
+     * double
+     */
+    public int getCPTag(final int index) {
+        if (this.cpOffsets == null) {
+            final AbstractCPInfo info = this.constant_pool[index];
+            return info == null ? 0 : info.getTag();
+        }
+        return this.cpOffsets[index] == 0 ? 0 : this.image.get(this.cpOffsets[index]) & 0xFF;
+    }
+
     /**
      * Returns a string of the constant pool item at the specified
      * {@code index}.
@@ -330,6 +500,9 @@ public class ClassFile {
      * @return The {@code fields}[]
      */
     public FieldInfo[] getFields() {
+        if (this.fieldsOffset != 0) {
+            this.decodeFields();
+        }
         return this.fields;
     }
 
@@ -348,6 +521,9 @@ public class ClassFile {
      * @return The {@code methods}[]
      */
     public MethodInfo[] getMethods() {
+        if (this.methodsOffset != 0) {
+            this.decodeMethods();
+        }
         return this.methods;
     }
 
@@ -366,11 +542,135 @@ public class ClassFile {
      * @return The {@code attributes}[]
      */
     public AttributeInfo[] getAttributes() {
+        if (this.attributesOffset != 0) {
+            this.decodeAttributes();
+        }
         return this.attributes;
     }
 
+    ///////////////////////////////////////////////////////////////////////////
+    // Lazy decoding
+    boolean isLazy() {
+        return this.image != null;
+    }
+
+    private PosDataInputStream streamAt(final int offset) {
+        return new PosDataInputStream(new PosByteBufferInputStream(this.image, offset));
+    }
+
+    private synchronized void decodeFields() {
+        if (this.fieldsOffset == 0) {
+            return;
+        }
+        final int fieldCount = this.fields_count.getValue();
+        final PosDataInputStream input = this.streamAt(this.fieldsOffset);
+        try {
+            final FieldInfo[] decoded = new FieldInfo[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                decoded[i] = new FieldInfo(input, this);
+            }
+            this.fields = decoded;
+        } catch (IOException | FileFormatException e) {
+            throw new IllegalStateException("Decode fields failed", e);
+        }
+        this.fieldsOffset = 0;
+    }
+
+    private synchronized void decodeMethods() {
+        if (this.methodsOffset == 0) {
+            return;
+        }
+        final int methodCount = this.methods_count.getValue();
+        final PosDataInputStream input = this.streamAt(this.methodsOffset);
+        try {
+            final MethodInfo[] decoded = new MethodInfo[methodCount];
+            for (int i = 0; i < methodCount; i++) {
+                decoded[i] = new MethodInfo(input, this);
+            }
+            this.methods = decoded;
+        } catch (IOException | FileFormatException e) {
+            throw new IllegalStateException("Decode methods failed", e);
+        }
+        this.methodsOffset = 0;
+    }
+
+    private synchronized void decodeAttributes() {
+        if (this.attributesOffset != 0) {
+            this.attributes = this.parseAttributes(this.attributesOffset, this.attributes_count.getValue());
+            this.attributesOffset = 0;
+        }
+    }
+
+    /**
+     * Decode {@code count} attributes at {@code offset} of the image, for
+     * the lazily decoded attributes of the class, members and code.
+     */
+    AttributeInfo[] parseAttributes(final int offset, final int count) {
+        final PosDataInputStream input = this.streamAt(offset);
+        final AttributeInfo[] decoded = new AttributeInfo[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                decoded[i] = AttributeInfo.parse(input, this);
+            }
+        } catch (IOException | FileFormatException e) {
+            throw new IllegalStateException("Decode attributes at " + offset + " failed", e);
+        }
+        return decoded;
+    }
+
+    private static void skipFully(final PosDataInputStream input, final int n)
+            throws IOException {
+        if (input.skipBytes(n) != n) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Skip {@code count} attributes, returns the position of the first one.
+     */
+    static int skipAttributes(final PosDataInputStream input, final int count)
+            throws IOException {
+        final int pos = input.getPos();
+        for (int i = 0; i < count; i++) {
+            skipFully(input, 2);
+            skipFully(input, input.readInt());
+        }
+        return pos;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Get extracted data
+    private static AbstractCPInfo parseCPInfo(final PosDataInputStream input, final int tag)
+            throws java.io.IOException, FileFormatException {
+        switch (tag) {
+            case AbstractCPInfo.CONSTANT_Utf8:
+                return new ConstantUtf8Info(input);
+            case AbstractCPInfo.CONSTANT_Integer:
+                return new ConstantIntegerInfo(input);
+            case AbstractCPInfo.CONSTANT_Float:
+                return new ConstantFloatInfo(input);
+            case AbstractCPInfo.CONSTANT_Long:
+                return new ConstantLongInfo(input);
+            case AbstractCPInfo.CONSTANT_Double:
+                return new ConstantDoubleInfo(input);
+            case AbstractCPInfo.CONSTANT_Class:
+                return new ConstantClassInfo(input);
+            case AbstractCPInfo.CONSTANT_String:
+                return new ConstantStringInfo(input);
+            case AbstractCPInfo.CONSTANT_Fieldref:
+                return new ConstantFieldrefInfo(input);
+            case AbstractCPInfo.CONSTANT_Methodref:
+                return new ConstantMethodrefInfo(input);
+            case AbstractCPInfo.CONSTANT_InterfaceMethodref:
+                return new ConstantInterfaceMethodrefInfo(input);
+            case AbstractCPInfo.CONSTANT_NameAndType:
+                return new ConstantNameAndTypeInfo(input);
+            default:
+                throw new FileFormatException(
+                        String.format("Unreconizable constant pool type found. Constant pool tag: [%d]; class file offset: [%d].", tag, input.getPos() - 1));
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Internal Classes
     private class Parser {
@@ -378,10 +678,77 @@ public class ClassFile {
         Parser() {
         }
 
-        public void parse()
+        /**
+         * Scan the class for the offsets only, without decoding the constant
+         * pool entries, members and attributes.
+         */
+        public void scan(final PosDataInputStream input)
+                throws FileFormatException, IOException {
+            ClassFile.this.posDataInputStream = input;
+
+            ClassFile.this.magic = new u4(input.readInt());
+            if (ClassFile.this.magic.value != ClassFile.MAGIC) {
+                throw new FileFormatException("The magic number of the byte array is not 0xCAFEBABE");
+            }
+            this.parseClassFileVersion();
+
+            ClassFile.this.constant_pool_count = new CPCount(input);
+            final int cp_count = ClassFile.this.constant_pool_count.getValue();
+            ClassFile.this.constant_pool = new AbstractCPInfo[cp_count];
+            ClassFile.this.cpOffsets = new int[cp_count];
+            short tag;
+            for (int i = 1; i < cp_count; i++) {
+                ClassFile.this.cpOffsets[i] = input.getPos();
+                tag = (short) input.readUnsignedByte();
+                switch (tag) {
+                    case AbstractCPInfo.CONSTANT_Utf8:
+                        skipFully(input, input.readUnsignedShort());
+                        break;
+                    case AbstractCPInfo.CONSTANT_Long:
+                    case AbstractCPInfo.CONSTANT_Double:
+                        skipFully(input, 8);
+                        i++;
+                        break;
+                    case AbstractCPInfo.CONSTANT_Class:
+                    case AbstractCPInfo.CONSTANT_String:
+                        skipFully(input, 2);
+                        break;
+                    case AbstractCPInfo.CONSTANT_Integer:
+                    case AbstractCPInfo.CONSTANT_Float:
+                    case AbstractCPInfo.CONSTANT_Fieldref:
+                    case AbstractCPInfo.CONSTANT_Methodref:
+                    case AbstractCPInfo.CONSTANT_InterfaceMethodref:
+                    case AbstractCPInfo.CONSTANT_NameAndType:
+                        skipFully(input, 4);
+                        break;
+                    default:
+                        throw new FileFormatException(
+                                String.format("Unreconizable constant pool type found. Constant pool tag: [%d]; class file offset: [%d].", tag, input.getPos() - 1));
+                }
+            }
+
+            ClassFile.this.declarationOffset = input.getPos();
+            this.parseClassDeclaration();
+
+            ClassFile.this.fields_count = new FieldCount(input);
+            ClassFile.this.fieldsOffset = input.getPos();
+            for (int i = 0; i < ClassFile.this.fields_count.getValue(); i++) {
+                skipFully(input, 6);
+                ClassFile.skipAttributes(input, input.readUnsignedShort());
+            }
+            ClassFile.this.methods_count = new MethodCount(input);
+            ClassFile.this.methodsOffset = input.getPos();
+            for (int i = 0; i < ClassFile.this.methods_count.getValue(); i++) {
+                skipFully(input, 6);
+                ClassFile.skipAttributes(input, input.readUnsignedShort());
+            }
+            ClassFile.this.attributes_count = new AttributeCount(input);
+            ClassFile.this.attributesOffset = ClassFile.skipAttributes(input, ClassFile.this.attributes_count.getValue());
+        }
+
+        public void parse(final PosDataInputStream input)
                 throws FileFormatException, IOException {
-            final PosByteArrayInputStream posByteArrayInputStream = new PosByteArrayInputStream(classByteArray);
-            ClassFile.this.posDataInputStream = new PosDataInputStream(posByteArrayInputStream);
+            ClassFile.this.posDataInputStream = input;
 
             ClassFile.this.magic = new u4(ClassFile.this.posDataInputStream.readInt());
             if (ClassFile.this.magic.value != ClassFile.MAGIC) {
@@ -411,69 +778,10 @@ public class ClassFile {
             short tag;
             for (int i = 1; i < cp_count; i++) {
                 tag = (short) ClassFile.this.posDataInputStream.readUnsignedByte();
-
-                switch (tag) {
-                    case AbstractCPInfo.CONSTANT_Utf8:
-                        ClassFile.this.constant_pool[i] = new ConstantUtf8Info(ClassFile.this.posDataInputStream);
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_Integer:
-                        ClassFile.this.constant_pool[i] = new ConstantIntegerInfo(ClassFile.this.posDataInputStream);
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_Float:
-                        ClassFile.this.constant_pool[i] = new ConstantFloatInfo(ClassFile.this.posDataInputStream);
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_Long:
-                        ClassFile.this.constant_pool[i] = new ConstantLongInfo(ClassFile.this.posDataInputStream);
-                        i++;
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_Double:
-                        ClassFile.this.constant_pool[i] = new ConstantDoubleInfo(ClassFile.this.posDataInputStream);
-                        i++;
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_Class:
-                        ClassFile.this.constant_pool[i] = new ConstantClassInfo(ClassFile.this.posDataInputStream);
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_String:
-                        ClassFile.this.constant_pool[i] = new ConstantStringInfo(ClassFile.this.posDataInputStream);
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_Fieldref:
-                        ClassFile.this.constant_pool[i] = new ConstantFieldrefInfo(ClassFile.this.posDataInputStream);
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_Methodref:
-                        ClassFile.this.constant_pool[i] = new ConstantMethodrefInfo(ClassFile.this.posDataInputStream);
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_InterfaceMethodref:
-                        ClassFile.this.constant_pool[i] = new ConstantInterfaceMethodrefInfo(ClassFile.this.posDataInputStream);
-                        break;
-
-                    case AbstractCPInfo.CONSTANT_NameAndType:
-                        ClassFile.this.constant_pool[i] = new ConstantNameAndTypeInfo(ClassFile.this.posDataInputStream);
-                        break;
-
-                    default:
-                        throw new FileFormatException(
-                                String.format("Unreconizable constant pool type found. Constant pool tag: [%d]; class file offset: [%d].", tag, ClassFile.this.posDataInputStream.getPos() - 1));
+                ClassFile.this.constant_pool[i] = parseCPInfo(ClassFile.this.posDataInputStream, tag);
+                if (tag == AbstractCPInfo.CONSTANT_Long || tag == AbstractCPInfo.CONSTANT_Double) {
+                    i++;
                 }
-
-                // -- Debug information.
-//                if (ClassFile.this.constant_pool[i] != null)
-//                {
-//                    System.out.print(ClassFile.this.constant_pool[i].getDescription());
-//                }
-//                else
-//                {
-//                    System.out.print(ClassFile.this.constant_pool[i-1].getDescription());
-//                }
-//                System.out.println ();
             }
         }
 
@@ -499,7 +807,7 @@ public class ClassFile {
             if (fieldCount > 0) {
                 ClassFile.this.fields = new FieldInfo[fieldCount];
                 for (int i = 0; i < fieldCount; i++) {
-                    ClassFile.this.fields[i] = new FieldInfo(ClassFile.this.posDataInputStream, ClassFile.this.constant_pool);
+                    ClassFile.this.fields[i] = new FieldInfo(ClassFile.this.posDataInputStream, ClassFile.this);
                 }
             }
         }
@@ -512,7 +820,7 @@ public class ClassFile {
             if (methodCount > 0) {
                 ClassFile.this.methods = new MethodInfo[methodCount];
                 for (int i = 0; i < methodCount; i++) {
-                    ClassFile.this.methods[i] = new MethodInfo(ClassFile.this.posDataInputStream, ClassFile.this.constant_pool);
+                    ClassFile.this.methods[i] = new MethodInfo(ClassFile.this.posDataInputStream, ClassFile.this);
                 }
             }
         }
@@ -524,7 +832,7 @@ public class ClassFile {
             if (attributeCount > 0) {
                 ClassFile.this.attributes = new AttributeInfo[attributeCount];
                 for (int i = 0; i < attributeCount; i++) {
-                    ClassFile.this.attributes[i] = AttributeInfo.parse(ClassFile.this.posDataInputStream, ClassFile.this.constant_pool);
+                    ClassFile.this.attributes[i] = AttributeInfo.parse(ClassFile.this.posDataInputStream, ClassFile.this);
                 }
             }
         }
@@ -552,51 +860,51 @@ public class ClassFile {
         public String getCPDescr(final int index) {
             final StringBuilder sb = new StringBuilder(40);
 
-            switch (ClassFile.this.constant_pool[index].getTag()) {
+            switch (ClassFile.this.getCPInfo(index).getTag()) {
                 case AbstractCPInfo.CONSTANT_Utf8:
                     sb.append("Utf8: ");
-                    sb.append(this.getDescr_Utf8((ConstantUtf8Info) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_Utf8((ConstantUtf8Info) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_Integer:
                     sb.append("Integer: ");
-                    sb.append(this.getDescr_Integer((ConstantIntegerInfo) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_Integer((ConstantIntegerInfo) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_Float:
                     sb.append("Float: ");
-                    sb.append(this.getDescr_Float((ConstantFloatInfo) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_Float((ConstantFloatInfo) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_Long:
                     sb.append("Long: ");
-                    sb.append(this.getDescr_Long((ConstantLongInfo) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_Long((ConstantLongInfo) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_Double:
                     sb.append("Double: ");
-                    sb.append(this.getDescr_Double((ConstantDoubleInfo) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_Double((ConstantDoubleInfo) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_Class:
                     sb.append("Class: ");
-                    sb.append(this.getDescr_Class((ConstantClassInfo) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_Class((ConstantClassInfo) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_String:
                     sb.append("String: ");
-                    sb.append(this.getDescr_String((ConstantStringInfo) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_String((ConstantStringInfo) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_Fieldref:
                     sb.append("Fieldref: ");
-                    sb.append(this.getDescr_Fieldref((ConstantFieldrefInfo) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_Fieldref((ConstantFieldrefInfo) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_Methodref:
                     sb.append("Methodref: ");
-                    sb.append(this.getDescr_Methodref((ConstantMethodrefInfo) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_Methodref((ConstantMethodrefInfo) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_InterfaceMethodref:
                     sb.append("InterfaceMethodref: ");
-                    sb.append(this.getDescr_InterfaceMethodref((ConstantInterfaceMethodrefInfo) ClassFile.this.constant_pool[index]));
+                    sb.append(this.getDescr_InterfaceMethodref((ConstantInterfaceMethodrefInfo) ClassFile.this.getCPInfo(index)));
                     break;
                 case AbstractCPInfo.CONSTANT_NameAndType:
                     sb.append("NameAndType: ");
                     sb.append(this.getDescr_NameAndType(
-                            (ConstantNameAndTypeInfo) ClassFile.this.constant_pool[index],
+                            (ConstantNameAndTypeInfo) ClassFile.this.getCPInfo(index),
                             ClassFile.Descr_NameAndType.RAW));
                     break;
                 default:
@@ -632,7 +940,7 @@ public class ClassFile {
             // The constant_pool entry at that index must be a CONSTANT_Utf8_info structure 
             // representing a valid fully qualified class or interface name encoded in internal form.
             return SignatureConvertor.parseClassSignature(this.getDescr_Utf8(
-                    (ConstantUtf8Info) ClassFile.this.constant_pool[info.getNameIndex()]));
+                    (ConstantUtf8Info) ClassFile.this.getCPInfo(info.getNameIndex())));
         }
 
         private String getDescr_String(final ConstantStringInfo info) {
@@ -640,7 +948,7 @@ public class ClassFile {
             // The constant_pool entry at that index must be a CONSTANT_Utf8_info (.4.7) structure 
             // representing the sequence of characters to which the String object is to be initialized.
             return SignatureConvertor.parseClassSignature(this.getDescr_Utf8(
-                    (ConstantUtf8Info) ClassFile.this.constant_pool[info.getStringIndex()]));
+                    (ConstantUtf8Info) ClassFile.this.getCPInfo(info.getStringIndex())));
         }
 
         private String getDescr_Fieldref(final ConstantFieldrefInfo info) {
@@ -666,9 +974,9 @@ public class ClassFile {
 
         private String getDescr_ref(final int classindex, final int natindex, final ClassFile.Descr_NameAndType type) {
             final StringBuilder sb = new StringBuilder();
-            sb.append(this.getDescr_Class((ConstantClassInfo) ClassFile.this.constant_pool[classindex]));
+            sb.append(this.getDescr_Class((ConstantClassInfo) ClassFile.this.getCPInfo(classindex)));
             sb.append(".");
-            sb.append(this.getDescr_NameAndType((ConstantNameAndTypeInfo) ClassFile.this.constant_pool[natindex], type));
+            sb.append(this.getDescr_NameAndType((ConstantNameAndTypeInfo) ClassFile.this.getCPInfo(natindex), type));
 
             return sb.toString();
         }
@@ -677,9 +985,9 @@ public class ClassFile {
             final StringBuilder sb = new StringBuilder();
             String type;
 
-            sb.append(this.getDescr_Utf8((ConstantUtf8Info) ClassFile.this.constant_pool[info.getNameIndex()]));
+            sb.append(this.getDescr_Utf8((ConstantUtf8Info) ClassFile.this.getCPInfo(info.getNameIndex())));
             sb.append(", ");
-            type = this.getDescr_Utf8((ConstantUtf8Info) ClassFile.this.constant_pool[info.getDescriptorIndex()]);
+            type = this.getDescr_Utf8((ConstantUtf8Info) ClassFile.this.getCPInfo(info.getDescriptorIndex()));
 
             switch (format) {
                 case RAW:
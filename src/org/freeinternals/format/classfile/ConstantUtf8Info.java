@@ -69,6 +69,16 @@ public class ConstantUtf8Info extends AbstractCPInfo {
         return this.length_utf8.value;
     }
 
+    /**
+     * Get the raw bytes of the text, the array is not copied so it must not
+     * be modified.
+     *
+     * @return The raw bytes
+     */
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
     /**
      * Get a string for the content of the Utf8 info.
      *
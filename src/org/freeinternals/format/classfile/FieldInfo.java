@@ -35,6 +35,9 @@ public class FieldInfo extends ClassComponent {
     private u2 descriptor_index;
     private u2 attributes_count;
     private AttributeInfo[] attributes;
+    // Lazy mode: the offset of the attributes, 0 once decoded
+    private final ClassFile classFile;
+    private volatile int attributesOffset;
     /**
      * Value for access flag {@code ACC_PUBLIC} for a {@code Field}.
      */
@@ -66,9 +69,10 @@ public class FieldInfo extends ClassComponent {
     private String declaration;
 
     FieldInfo() {
+        this.classFile = null;
     }
 
-    FieldInfo(final PosDataInputStream posDataInputStream, final AbstractCPInfo[] cp)
+    FieldInfo(final PosDataInputStream posDataInputStream, final ClassFile cf)
             throws IOException, FileFormatException {
         this.startPos = posDataInputStream.getPos();
         this.length = -1;
@@ -83,16 +87,29 @@ public class FieldInfo extends ClassComponent {
         this.attributes_count.value = posDataInputStream.readUnsignedShort();
 
         final int attrCount = this.attributes_count.value;
+        this.classFile = cf;
+        if (cf.isLazy()) {
+            this.attributesOffset = ClassFile.skipAttributes(posDataInputStream, attrCount);
+            this.length = posDataInputStream.getPos() - this.startPos;
+            return;
+        }
         if (attrCount > 0) {
             this.attributes = new AttributeInfo[attrCount];
             for (int i = 0; i < attrCount; i++) {
-                this.attributes[i] = AttributeInfo.parse(posDataInputStream, cp);
+                this.attributes[i] = AttributeInfo.parse(posDataInputStream, cf);
             }
         }
 
         this.calculateLength();
     }
 
+    private synchronized void decodeAttributes() {
+        if (this.attributesOffset != 0) {
+            this.attributes = this.classFile.parseAttributes(this.attributesOffset, this.attributes_count.value);
+            this.attributesOffset = 0;
+        }
+    }
+
     private void calculateLength() {
         this.length = 8;
 
@@ -147,6 +164,9 @@ public class FieldInfo extends ClassComponent {
      */
     public AttributeInfo getAttribute(final int index) {
         AttributeInfo info = null;
+        if (this.attributesOffset != 0) {
+            this.decodeAttributes();
+        }
         if (this.attributes != null) {
             info = this.attributes[index];
         }
@@ -219,6 +239,13 @@ public class FieldInfo extends ClassComponent {
      * @return {@code Field} declaration
      */
     public String getDeclaration() {
+        if (this.declaration == null && this.classFile != null) {
+            try {
+                this.declaration = this.classFile.declarationOf(this);
+            } catch (FileFormatException e) {
+                throw new IllegalStateException(e);
+            }
+        }
         return this.declaration;
     }
 }
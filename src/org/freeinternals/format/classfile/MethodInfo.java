@@ -35,6 +35,9 @@ public class MethodInfo extends ClassComponent {
     u2 descriptor_index;
     u2 attributes_count;
     AttributeInfo[] attributes;
+    // Lazy mode: the offset of the attributes, 0 once decoded
+    private final ClassFile classFile;
+    private volatile int attributesOffset;
     /**
      * Value for access flag {@code ACC_PUBLIC} for a {@code Method}.
      */
@@ -74,9 +77,10 @@ public class MethodInfo extends ClassComponent {
     private String declaration;
 
     MethodInfo() {
+        this.classFile = null;
     }
 
-    MethodInfo(final PosDataInputStream posDataInputStream, final AbstractCPInfo[] cp)
+    MethodInfo(final PosDataInputStream posDataInputStream, final ClassFile cf)
             throws IOException, FileFormatException {
         this.startPos = posDataInputStream.getPos();
         this.length = -1;
@@ -91,16 +95,29 @@ public class MethodInfo extends ClassComponent {
         this.attributes_count = new u2();
         this.attributes_count.value = posDataInputStream.readUnsignedShort();
         final int attrCount = this.attributes_count.value;
+        this.classFile = cf;
+        if (cf.isLazy()) {
+            this.attributesOffset = ClassFile.skipAttributes(posDataInputStream, attrCount);
+            this.length = posDataInputStream.getPos() - this.startPos;
+            return;
+        }
         if (attrCount > 0) {
             this.attributes = new AttributeInfo[attrCount];
             for (int i = 0; i < attrCount; i++) {
-                this.attributes[i] = AttributeInfo.parse(posDataInputStream, cp);
+                this.attributes[i] = AttributeInfo.parse(posDataInputStream, cf);
             }
         }
 
         this.calculateLength();
     }
 
+    private synchronized void decodeAttributes() {
+        if (this.attributesOffset != 0) {
+            this.attributes = this.classFile.parseAttributes(this.attributesOffset, this.attributes_count.value);
+            this.attributesOffset = 0;
+        }
+    }
+
     private void calculateLength() {
         this.length = 8;
 
@@ -155,6 +172,9 @@ public class MethodInfo extends ClassComponent {
      */
     public AttributeInfo getAttribute(final int index) {
         AttributeInfo info = null;
+        if (this.attributesOffset != 0) {
+            this.decodeAttributes();
+        }
         if (this.attributes != null) {
             info = this.attributes[index];
         }
@@ -245,6 +265,13 @@ public class MethodInfo extends ClassComponent {
      * @return {@code Method} declaration
      */
     public String getDeclaration() {
+        if (this.declaration == null && this.classFile != null) {
+            try {
+                this.declaration = this.classFile.declarationOf(this);
+            } catch (FileFormatException e) {
+                throw new IllegalStateException(e);
+            }
+        }
         return this.declaration;
     }
 }
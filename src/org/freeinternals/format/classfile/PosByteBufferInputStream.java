@@ -0,0 +1,90 @@
+package org.freeinternals.format.classfile;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading a {@code ByteBuffer} in place, e.g. a mapped
+ * class file, without copying it into a byte array first.
+ */
+public class PosByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buf;
+    private final int start;
+    private int mark;
+
+    /**
+     * Creates a new instance reading from the current position to the limit
+     * of {@code buf}. The position of {@code buf} itself is not changed.
+     *
+     * @param buf
+     */
+    public PosByteBufferInputStream(final ByteBuffer buf) {
+        this.buf = buf.duplicate();
+        this.start = this.buf.position();
+        this.mark = this.start;
+    }
+
+    /**
+     * Creates a new instance reading from {@code offset} bytes after the
+     * current position of {@code buf}, the positions are still counted from
+     * the current position of {@code buf}.
+     *
+     * @param buf
+     * @param offset
+     */
+    public PosByteBufferInputStream(final ByteBuffer buf, final int offset) {
+        this(buf);
+        this.buf.position(this.start + offset);
+        this.mark = this.buf.position();
+    }
+
+    int getPos() {
+        return this.buf.position() - this.start;
+    }
+
+    @Override
+    public int read() {
+        return this.buf.hasRemaining() ? this.buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!this.buf.hasRemaining()) {
+            return -1;
+        }
+        final int n = Math.min(len, this.buf.remaining());
+        this.buf.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) {
+        final int k = (int) Math.max(0, Math.min(n, this.buf.remaining()));
+        this.buf.position(this.buf.position() + k);
+        return k;
+    }
+
+    @Override
+    public int available() {
+        return this.buf.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(final int readlimit) {
+        this.mark = this.buf.position();
+    }
+
+    @Override
+    public void reset() {
+        this.buf.position(this.mark);
+    }
+}
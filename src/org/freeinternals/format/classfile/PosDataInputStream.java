@@ -22,16 +22,26 @@ public class PosDataInputStream extends DataInputStream {
         super(in);
     }
 
+    /** Creates a new instance of PosDataInputStream reading a buffer in place
+     * @param in 
+     */
+    public PosDataInputStream(final PosByteBufferInputStream in) {
+        super(in);
+    }
+
     /**
      *
      * @return  The index of the next character to read from the input stream
      *          buffer, or <code>-1</code> if there is internal error, the 
-     *          input stream is not <code>PosByteArrayInputStream</code>.
+     *          input stream is not <code>PosByteArrayInputStream</code>
+     *          or <code>PosByteBufferInputStream</code>.
      */
     public int getPos() {
         int pos = -1;
         if (this.in instanceof PosByteArrayInputStream) {
             pos = ((PosByteArrayInputStream) this.in).getPos();
+        } else if (this.in instanceof PosByteBufferInputStream) {
+            pos = ((PosByteBufferInputStream) this.in).getPos();
         }
 
         return pos;
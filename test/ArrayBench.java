@@ -0,0 +1,167 @@
+package test;
+
+import java.lang.System;
+
+/**
+ * Array kernels: a sieve of Eratosthenes and matrix multiplies, usage: ArrayBench [args...]
+ */
+public class ArrayBench {
+  public static int sieve(int n) {
+    boolean[] composite = new boolean[n + 1];
+    int count = 0;
+    for (int i = 2; i <= n; ++i) {
+      if (!composite[i]) {
+        ++count;
+        for (int j = i * 2; j <= n; j += i) {
+          composite[j] = true;
+        }
+      }
+    }
+    return count;
+  }
+
+  public static int matmul(int n) {
+    int[][] a = new int[n][n];
+    int[][] b = new int[n][n];
+    for (int i = 0; i < n; ++i) {
+      for (int j = 0; j < n; ++j) {
+        a[i][j] = i + j;
+        b[i][j] = i - j;
+      }
+    }
+    int[][] c = new int[n][n];
+    for (int i = 0; i < n; ++i) {
+      int[] row = c[i];
+      for (int k = 0; k < n; ++k) {
+        int aik = a[i][k];
+        int[] bk = b[k];
+        for (int j = 0; j < n; ++j) {
+          row[j] += aik * bk[j];
+        }
+      }
+    }
+    int sum = 0;
+    for (int i = 0; i < n; ++i) {
+      for (int j = 0; j < n; ++j) {
+        sum = sum * 31 + c[i][j];
+      }
+    }
+    return sum;
+  }
+
+  // a flat row-major matrix
+  public static double matmulDouble(int n) {
+    double[] a = new double[n * n];
+    double[] c = new double[n * n];
+    for (int i = 0; i < n * n; ++i) {
+      a[i] = i * 0.5;
+    }
+    for (int i = 0; i < n; ++i) {
+      for (int k = 0; k < n; ++k) {
+        double aik = a[i * n + k];
+        for (int j = 0; j < n; ++j) {
+          c[i * n + j] += aik * a[k * n + j];
+        }
+      }
+    }
+    double trace = 0;
+    for (int i = 0; i < n; ++i) {
+      trace += c[i * n + i];
+    }
+    return trace;
+  }
+
+  // the other element types
+  public static int mixed(int n) {
+    long[] fib = new long[n];
+    char[] chars = new char[n];
+    byte[] bytes = new byte[n];
+    short[] shorts = new short[n];
+    float[] floats = new float[n];
+    fib[0] = 1;
+    fib[1] = 1;
+    for (int i = 2; i < n; ++i) {
+      fib[i] = fib[i - 1] + fib[i - 2];
+    }
+    int sum = 0;
+    for (int i = 0; i < n; ++i) {
+      chars[i] = (char) ('a' + i % 26);
+      bytes[i] = (byte) (i * 7);
+      shorts[i] = (short) (i * 1000);
+      floats[i] = i / 4.0f;
+      sum += chars[i] + bytes[i] + shorts[i] + (int) floats[i] + (int) fib[i];
+    }
+    return sum + fib.length + chars.length;
+  }
+
+  // loads, stores and lengths of null arrays, each throws a NullPointerException
+  public static int nullArrays(int[] ints, Object[] refs) {
+    int caught = 0;
+    try {
+      caught += ints[0];
+    } catch (NullPointerException e) {
+      ++caught;
+    }
+    try {
+      refs[0] = "x";
+    } catch (NullPointerException e) {
+      ++caught;
+    }
+    try {
+      caught += refs.length;
+    } catch (NullPointerException e) {
+      ++caught;
+    }
+    return caught;
+  }
+
+  public static void main(String[] args) {
+    System.println("array kernels");
+    System.println("args:" + String.valueOf(args.length));
+    for (int i = 0; i < args.length; ++i) {
+      System.println(args[i]);
+    }
+    int start = System.currentTimeSeconds();
+    System.println("sieve(100000):" + String.valueOf(sieve(100000)));
+    System.println("matmul(60):" + String.valueOf(matmul(60)));
+    System.println("matmulDouble(40):" + String.valueOf((int) matmulDouble(40)));
+    System.println("mixed(60):" + String.valueOf(mixed(60)));
+    try {
+      int[] a = new int[3];
+      a[3] = 1;
+      System.println("no exception");
+    } catch (ArrayIndexOutOfBoundsException e) {
+      System.println("index out of bounds");
+    }
+    try {
+      int[] a = new int[-1];
+      System.println("no exception");
+    } catch (NegativeArraySizeException e) {
+      System.println("negative size");
+    }
+    System.println("null arrays:" + String.valueOf(nullArrays(null, null)));
+    try {
+      int[] a = new int[1];
+      a[1] = 1;
+      System.println("no exception");
+    } catch (RuntimeException e) {
+      System.println("index out of bounds as RuntimeException");
+    }
+    try {
+      int[] a = null;
+      a[0] = a.length;
+      System.println("no exception");
+    } catch (Throwable e) {
+      System.println("null array as Throwable");
+    }
+    try {
+      Object[] refs = new Object[2];
+      refs[-1] = "x";
+      System.println("no exception");
+    } catch (ArrayIndexOutOfBoundsException e) {
+      System.println("index out of bounds");
+    }
+    int end = System.currentTimeSeconds();
+    System.println("total used: " + String.valueOf(end - start));
+  }
+}
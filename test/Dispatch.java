@@ -0,0 +1,170 @@
+package test;
+
+import java.lang.System;
+
+/**
+ * Virtual and interface dispatch: overriding, super calls, abstract and default methods, and a
+ * polymorphic call site over a mix of classes.
+ */
+public class Dispatch {
+  interface Named {
+    int id();
+
+    default int weight() {
+      return id() * 2;
+    }
+  }
+
+  interface Tagged extends Named {
+    int tag();
+  }
+
+  static abstract class Shape implements Named {
+    abstract int area();
+
+    int sides() {
+      return 0;
+    }
+
+    int describe() {
+      return area() * 10 + sides();
+    }
+  }
+
+  static class Rect extends Shape {
+    final int w;
+    final int h;
+
+    Rect(int w, int h) {
+      this.w = w;
+      this.h = h;
+    }
+
+    int area() {
+      return w * h;
+    }
+
+    int sides() {
+      return 4;
+    }
+
+    public int id() {
+      return 1;
+    }
+  }
+
+  static class Square extends Rect implements Tagged {
+    Square(int s) {
+      super(s, s);
+    }
+
+    int area() {
+      return super.area() + 1;
+    }
+
+    public int id() {
+      return 2;
+    }
+
+    public int tag() {
+      return 7;
+    }
+
+    public int weight() {
+      return Tagged.super.weight() + 100;
+    }
+  }
+
+  static class Triangle extends Shape {
+    final int b;
+
+    Triangle(int b) {
+      this.b = b;
+    }
+
+    int area() {
+      return b * b / 2;
+    }
+
+    int sides() {
+      return 3;
+    }
+
+    public int id() {
+      return 3;
+    }
+  }
+
+  static class Pentagon extends Triangle {
+    Pentagon(int b) {
+      super(b);
+    }
+
+    int sides() {
+      return 5;
+    }
+  }
+
+  static class Hexagon extends Rect {
+    Hexagon(int s) {
+      super(s, s + 1);
+    }
+
+    int sides() {
+      return 6;
+    }
+  }
+
+  // more receiver classes than an inline cache keeps
+  public static int megamorphic(int n) {
+    Shape[] shapes = new Shape[5];
+    shapes[0] = new Rect(2, 3);
+    shapes[1] = new Square(4);
+    shapes[2] = new Triangle(5);
+    shapes[3] = new Pentagon(6);
+    shapes[4] = new Hexagon(7);
+    int sum = 0;
+    for (int i = 0; i < n; ++i) {
+      sum += shapes[i % 5].sides();
+    }
+    return sum;
+  }
+
+  public static int polymorphic(int n) {
+    Shape[] shapes = new Shape[3];
+    shapes[0] = new Rect(2, 3);
+    shapes[1] = new Square(4);
+    shapes[2] = new Triangle(5);
+    int sum = 0;
+    for (int i = 0; i < n; ++i) {
+      Shape s = shapes[i % 3];
+      sum += s.describe() + s.weight();
+      Named named = s;
+      sum += named.id();
+    }
+    return sum;
+  }
+
+  // the object doesn't escape, the method inlined is the one of its class
+  public static int exact(int n) {
+    int sum = 0;
+    for (int i = 0; i < n; ++i) {
+      Rect r = new Square(i);
+      sum += r.area();
+    }
+    return sum;
+  }
+
+  public static int run() {
+    Tagged t = new Square(3);
+    return polymorphic(3000) + exact(100) * 3 + megamorphic(1000) + t.tag() * 1000 + t.weight() * 10000;
+  }
+
+  public static void main(String[] args) {
+    System.println("dispatch");
+    System.println("polymorphic:" + String.valueOf(polymorphic(3000)));
+    System.println("exact:" + String.valueOf(exact(100)));
+    System.println("megamorphic:" + String.valueOf(megamorphic(1000)));
+    System.println("run:" + String.valueOf(run()));
+  }
+}
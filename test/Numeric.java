@@ -0,0 +1,106 @@
+package test;
+
+import java.lang.System;
+
+/**
+ * Numeric kernels of each type, run by NumericBenchmark and compared with the host JVM.
+ */
+public class Numeric {
+  public static int intOps(int n) {
+    int a = 1;
+    int b = 0;
+    for (int i = 1; i <= n; ++i) {
+      a = a * 31 + i;
+      b ^= a >>> 3;
+      b += (a << 2) | (i & 7);
+      b -= a % 7 + b / i - (a >> 1);
+      if (b < 0) {
+        b = -b;
+      }
+    }
+    return a ^ b;
+  }
+
+  public static long longOps(int n) {
+    long a = 1L;
+    long b = 0x123456789L;
+    for (int i = 1; i <= n; ++i) {
+      a = a * 6364136223846793005L + 1442695040888963407L;
+      b ^= a >>> 17;
+      b += (a << 5) | (i & 0xff);
+      b -= a % 1000003L + b / i - (a >> 9);
+      if (b > a) {
+        b = -b;
+      }
+    }
+    return a ^ b;
+  }
+
+  public static float floatOps(int n) {
+    float x = 0.5f;
+    float sum = 0f;
+    for (int i = 1; i <= n; ++i) {
+      x = x * 1.0001f + 0.25f / i;
+      sum += x % 3.0f - (float) i / 7;
+      if (sum > 1000.0f) {
+        sum = -sum * 0.5f;
+      }
+    }
+    return sum + x;
+  }
+
+  public static double doubleOps(int n) {
+    double x = 0.5;
+    double sum = 0;
+    for (int i = 1; i <= n; ++i) {
+      x = x * 1.000001 + 0.25 / i;
+      sum += x % 3.0 - (double) i / 7;
+      if (sum < -1000.0) {
+        sum = -sum * 0.5;
+      }
+    }
+    return sum * x;
+  }
+
+  // every conversion between int, long, float and double, and the narrowing ones of int
+  public static int convert(int n) {
+    int acc = 0;
+    for (int i = 0; i < n; ++i) {
+      long l = (long) i * 100000L;
+      float f = l / 3.0f;
+      double d = f * 1.5;
+      float g = (float) d + i;
+      acc += (int) d + (int) (l >> 8) + (int) g + (int) (long) f + (int) (long) d + (int) (double) l;
+      acc ^= (byte) i + (char) (i * 1000) + (short) (i * 70000);
+    }
+    return acc;
+  }
+
+  public static int divide(int a, int b) {
+    return a / b;
+  }
+
+  // the frame receiving the results in NumericBenchmark
+  public static double result() {
+    return 0;
+  }
+
+  private static int hash(long v) {
+    return (int) (v ^ (v >>> 32));
+  }
+
+  public static void main(String[] args) {
+    System.println("numeric kernels");
+    System.println("int:" + String.valueOf(intOps(1000)));
+    System.println("long:" + String.valueOf(hash(longOps(1000))));
+    System.println("float:" + String.valueOf((int) (floatOps(1000) * 1000)));
+    System.println("double:" + String.valueOf(hash((long) (doubleOps(1000) * 1000000))));
+    System.println("convert:" + String.valueOf(convert(1000)));
+    try {
+      divide(1, 0);
+      System.println("no exception");
+    } catch (ArithmeticException e) {
+      System.println("divided by zero");
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package test;
+
+import java.lang.System;
+
+/**
+ * Reference comparisons, null checks and locals past index 255, accessed by wide loads and stores.
+ */
+public class Refs {
+  private Refs next;
+
+  public static int same(Object a, Object b) {
+    return a == b ? 1 : 0;
+  }
+
+  public static int differ(Object a, Object b) {
+    return a != b ? 1 : 0;
+  }
+
+  public static int length(Refs r) {
+    int n = 0;
+    while (r != null) {
+      ++n;
+      r = r.next;
+    }
+    return n;
+  }
+
+  // the object doesn't escape, but its null check needs it
+  public static int nonNull() {
+    Refs r = new Refs();
+    return r == null ? 0 : 1;
+  }
+
+  public static int wide(int n) {
+    int l0 = n + 0, l1 = n + 1, l2 = n + 2, l3 = n + 3, l4 = n + 4, l5 = n + 5, l6 = n + 6, l7 = n + 7, l8 = n + 8, l9 = n + 9, l10 = n + 10, l11 = n + 11, l12 = n + 12, l13 = n + 13, l14 = n + 14, l15 = n + 15;
+    int l16 = n + 16, l17 = n + 17, l18 = n + 18, l19 = n + 19, l20 = n + 20, l21 = n + 21, l22 = n + 22, l23 = n + 23, l24 = n + 24, l25 = n + 25, l26 = n + 26, l27 = n + 27, l28 = n + 28, l29 = n + 29, l30 = n + 30, l31 = n + 31;
+    int l32 = n + 32, l33 = n + 33, l34 = n + 34, l35 = n + 35, l36 = n + 36, l37 = n + 37, l38 = n + 38, l39 = n + 39, l40 = n + 40, l41 = n + 41, l42 = n + 42, l43 = n + 43, l44 = n + 44, l45 = n + 45, l46 = n + 46, l47 = n + 47;
+    int l48 = n + 48, l49 = n + 49, l50 = n + 50, l51 = n + 51, l52 = n + 52, l53 = n + 53, l54 = n + 54, l55 = n + 55, l56 = n + 56, l57 = n + 57, l58 = n + 58, l59 = n + 59, l60 = n + 60, l61 = n + 61, l62 = n + 62, l63 = n + 63;
+    int l64 = n + 64, l65 = n + 65, l66 = n + 66, l67 = n + 67, l68 = n + 68, l69 = n + 69, l70 = n + 70, l71 = n + 71, l72 = n + 72, l73 = n + 73, l74 = n + 74, l75 = n + 75, l76 = n + 76, l77 = n + 77, l78 = n + 78, l79 = n + 79;
+    int l80 = n + 80, l81 = n + 81, l82 = n + 82, l83 = n + 83, l84 = n + 84, l85 = n + 85, l86 = n + 86, l87 = n + 87, l88 = n + 88, l89 = n + 89, l90 = n + 90, l91 = n + 91, l92 = n + 92, l93 = n + 93, l94 = n + 94, l95 = n + 95;
+    int l96 = n + 96, l97 = n + 97, l98 = n + 98, l99 = n + 99, l100 = n + 100, l101 = n + 101, l102 = n + 102, l103 = n + 103, l104 = n + 104, l105 = n + 105, l106 = n + 106, l107 = n + 107, l108 = n + 108, l109 = n + 109, l110 = n + 110, l111 = n + 111;
+    int l112 = n + 112, l113 = n + 113, l114 = n + 114, l115 = n + 115, l116 = n + 116, l117 = n + 117, l118 = n + 118, l119 = n + 119, l120 = n + 120, l121 = n + 121, l122 = n + 122, l123 = n + 123, l124 = n + 124, l125 = n + 125, l126 = n + 126, l127 = n + 127;
+    int l128 = n + 128, l129 = n + 129, l130 = n + 130, l131 = n + 131, l132 = n + 132, l133 = n + 133, l134 = n + 134, l135 = n + 135, l136 = n + 136, l137 = n + 137, l138 = n + 138, l139 = n + 139, l140 = n + 140, l141 = n + 141, l142 = n + 142, l143 = n + 143;
+    int l144 = n + 144, l145 = n + 145, l146 = n + 146, l147 = n + 147, l148 = n + 148, l149 = n + 149, l150 = n + 150, l151 = n + 151, l152 = n + 152, l153 = n + 153, l154 = n + 154, l155 = n + 155, l156 = n + 156, l157 = n + 157, l158 = n + 158, l159 = n + 159;
+    int l160 = n + 160, l161 = n + 161, l162 = n + 162, l163 = n + 163, l164 = n + 164, l165 = n + 165, l166 = n + 166, l167 = n + 167, l168 = n + 168, l169 = n + 169, l170 = n + 170, l171 = n + 171, l172 = n + 172, l173 = n + 173, l174 = n + 174, l175 = n + 175;
+    int l176 = n + 176, l177 = n + 177, l178 = n + 178, l179 = n + 179, l180 = n + 180, l181 = n + 181, l182 = n + 182, l183 = n + 183, l184 = n + 184, l185 = n + 185, l186 = n + 186, l187 = n + 187, l188 = n + 188, l189 = n + 189, l190 = n + 190, l191 = n + 191;
+    int l192 = n + 192, l193 = n + 193, l194 = n + 194, l195 = n + 195, l196 = n + 196, l197 = n + 197, l198 = n + 198, l199 = n + 199, l200 = n + 200, l201 = n + 201, l202 = n + 202, l203 = n + 203, l204 = n + 204, l205 = n + 205, l206 = n + 206, l207 = n + 207;
+    int l208 = n + 208, l209 = n + 209, l210 = n + 210, l211 = n + 211, l212 = n + 212, l213 = n + 213, l214 = n + 214, l215 = n + 215, l216 = n + 216, l217 = n + 217, l218 = n + 218, l219 = n + 219, l220 = n + 220, l221 = n + 221, l222 = n + 222, l223 = n + 223;
+    int l224 = n + 224, l225 = n + 225, l226 = n + 226, l227 = n + 227, l228 = n + 228, l229 = n + 229, l230 = n + 230, l231 = n + 231, l232 = n + 232, l233 = n + 233, l234 = n + 234, l235 = n + 235, l236 = n + 236, l237 = n + 237, l238 = n + 238, l239 = n + 239;
+    int l240 = n + 240, l241 = n + 241, l242 = n + 242, l243 = n + 243, l244 = n + 244, l245 = n + 245, l246 = n + 246, l247 = n + 247, l248 = n + 248, l249 = n + 249, l250 = n + 250, l251 = n + 251, l252 = n + 252, l253 = n + 253, l254 = n + 254, l255 = n + 255;
+    int sum = 0;
+    for (int i = 0; i < 1000; i += 300) {
+      sum += i;
+    }
+    Object o = null;
+    long big = 1L << 40;
+    double d = 0.5;
+    if (o == null) {
+      o = "wide";
+    }
+    return sum + l0 + l255 + same(o, "wide") + (int) (big >> 36) + (int) (d * 4);
+  }
+
+  public static void main(String[] args) {
+    System.println("refs");
+    Refs a = new Refs();
+    Refs b = new Refs();
+    a.next = b;
+    System.println("same:" + String.valueOf(same(a, a)) + String.valueOf(same(a, b)) + String.valueOf(same(null, null)));
+    System.println("differ:" + String.valueOf(differ(a, b)) + String.valueOf(differ(b, a.next)));
+    System.println("length:" + String.valueOf(length(a)) + String.valueOf(length(null)));
+    System.println("nonnull:" + String.valueOf(nonNull()));
+    System.println("wide:" + String.valueOf(wide(1)));
+  }
+}
@@ -0,0 +1,106 @@
+package test;
+
+import java.lang.System;
+
+/**
+ * A switch-driven lexer counting the tokens of a text, and dense and sparse switches on ints.
+ */
+public class SwitchBench {
+  private static final int SPACE = 0;
+  private static final int WORD = 1;
+  private static final int NUMBER = 2;
+
+  // character classes by a dense tableswitch
+  public static int classOf(char c) {
+    switch (c) {
+      case '0': case '1': case '2': case '3': case '4':
+      case '5': case '6': case '7': case '8': case '9':
+        return NUMBER;
+      case ' ': case '\t': case '\n': case ',': case '.':
+        return SPACE;
+      default:
+        return WORD;
+    }
+  }
+
+  // the state machine counts words * 1000 + numbers
+  public static int lex(char[] text, int rounds) {
+    int words = 0;
+    int numbers = 0;
+    for (int r = 0; r < rounds; ++r) {
+      int state = SPACE;
+      for (int i = 0; i < text.length; ++i) {
+        int cls = classOf(text[i]);
+        switch (state) {
+          case SPACE:
+            if (cls == WORD) {
+              ++words;
+            } else if (cls == NUMBER) {
+              ++numbers;
+            }
+            state = cls;
+            break;
+          case WORD:
+            if (cls == SPACE) {
+              state = SPACE;
+            }
+            break;
+          case NUMBER:
+            if (cls == WORD) {
+              ++words;
+              state = WORD;
+            } else if (cls == SPACE) {
+              state = SPACE;
+            }
+            break;
+        }
+      }
+    }
+    return words * 1000 + numbers;
+  }
+
+  // a sparse lookupswitch
+  public static int sparse(int key) {
+    switch (key) {
+      case -1000000: return 1;
+      case -7: return 2;
+      case 0: return 3;
+      case 42: return 4;
+      case 4096: return 5;
+      case 1 << 20: return 6;
+      case 0x7fffffff: return 7;
+      default: return 0;
+    }
+  }
+
+  // a tableswitch from a negative key, probed by keys far out of its range
+  public static int dense(int key) {
+    switch (key) {
+      case -3: return 10;
+      case -2: return 20;
+      case -1: return 30;
+      case 0: return 40;
+      case 1: return 50;
+      default: return -1;
+    }
+  }
+
+  public static void main(String[] args) {
+    System.println("switch kernels");
+    char[] text = new char[64];
+    for (int i = 0; i < text.length; ++i) {
+      text[i] = i % 6 == 5 ? ' ' : i % 4 == 0 ? (char) ('0' + i % 10) : (char) ('a' + i % 26);
+    }
+    int start = System.currentTimeSeconds();
+    System.println("lex:" + String.valueOf(lex(text, 2000)));
+    int sum = 0;
+    for (int i = -10; i < 5000; ++i) {
+      sum = sum * 7 + sparse(i) + dense(i);
+    }
+    sum += sparse(0x7fffffff) + sparse(0x80000000) + sparse(-1000000) + sparse(1 << 20);
+    sum += dense(0x80000000) + dense(0x7fffffff) + dense(-3) + dense(1);
+    System.println("sum:" + String.valueOf(sum));
+    int end = System.currentTimeSeconds();
+    System.println("total used: " + String.valueOf(end - start));
+  }
+}